@@ -0,0 +1,171 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.zbh.fame.fame3.modelling.descriptors.circular.CircularData;
+
+import java.util.*;
+
+/**
+ * Descriptors of the heavy atoms of a molecule as calculated by {@link DescriptorCalculator}.
+ *
+ * The base descriptors are kept in a dense matrix (one row per heavy atom, one column per entry
+ * in {@link DescriptorCalculator#desc_names}), the circular descriptors and fingerprints
+ * in {@link CircularData} tables. Nothing here depends on a particular model; the values
+ * are turned into the input of a model by {@link FeatureLayout}.
+ */
+public class AtomDescriptors {
+
+    private IAtomContainer molecule;
+    private int[] atom_indices;
+    private IAtom[] atoms;
+    private String[] atom_types;
+    private double[][] base;
+    private boolean[] base_integer;
+    private CircularData circular;
+    private Set<String> circular_signatures;
+    private CircularData fingerprints;
+    private Set<String> fingerprint_signatures;
+
+    /**
+     * @param molecule the molecule
+     * @param atom_indices indices of the heavy atoms in the molecule
+     * @param atom_types the Sybyl atom types of the heavy atoms
+     * @param base the base descriptors of the heavy atoms
+     * @param base_integer marks the base descriptors that have integer values
+     */
+    public AtomDescriptors(IAtomContainer molecule, int[] atom_indices, String[] atom_types, double[][] base, boolean[] base_integer) {
+        this.molecule = molecule;
+        this.atom_indices = atom_indices;
+        this.atom_types = atom_types;
+        this.base = base;
+        this.base_integer = base_integer;
+        this.atoms = new IAtom[atom_indices.length];
+        for (int idx = 0; idx < atom_indices.length; idx++) {
+            atoms[idx] = molecule.getAtom(atom_indices[idx]);
+        }
+        this.circular = null;
+        this.circular_signatures = new HashSet<>();
+        this.fingerprints = null;
+        this.fingerprint_signatures = new HashSet<>();
+    }
+
+    public IAtomContainer getMolecule() {
+        return molecule;
+    }
+
+    public int getAtomCount() {
+        return atom_indices.length;
+    }
+
+    public int[] getAtomIndices() {
+        return atom_indices;
+    }
+
+    public IAtom[] getAtoms() {
+        return atoms;
+    }
+
+    public String getAtomType(int atom) {
+        return atom_types[atom];
+    }
+
+    public double getBaseValue(int atom, int desc_idx) {
+        return base[atom][desc_idx];
+    }
+
+    public CircularData getCircular() {
+        return circular;
+    }
+
+    /**
+     * @return all possible signatures of the circular descriptors (empty if these were not calculated)
+     */
+    public Set<String> getCircularSignatures() {
+        return circular_signatures;
+    }
+
+    public void setCircular(CircularData circular, Set<String> signatures) {
+        this.circular = circular;
+        this.circular_signatures = signatures;
+    }
+
+    public CircularData getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @return all possible signatures of the atom type fingerprints (empty if these were not calculated)
+     */
+    public Set<String> getFingerprintSignatures() {
+        return fingerprint_signatures;
+    }
+
+    public void setFingerprints(CircularData fingerprints, Set<String> signatures) {
+        this.fingerprints = fingerprints;
+        this.fingerprint_signatures = signatures;
+    }
+
+    /**
+     * Writes all descriptors to the atom properties of the molecule. The properties have the same names
+     * and values as in the original FAME 3 implementation, which is what the CSV and HTML output
+     * and the applicability domain model expect. The atom types are not encoded.
+     */
+    public void writeProperties() {
+        for (int idx = 0; idx < atoms.length; idx++) {
+            IAtom atm = atoms[idx];
+            atm.setProperty("AtomType", atom_types[idx]);
+            for (int desc_idx = 0; desc_idx < DescriptorCalculator.desc_names.length; desc_idx++) {
+                double value = base[idx][desc_idx];
+                atm.setProperty(
+                        DescriptorCalculator.desc_names[desc_idx]
+                        , base_integer[desc_idx] ? Integer.toString((int) value) : Double.toString(value)
+                );
+            }
+        }
+        if (circular != null) {
+            writeProperties(circular, false);
+        }
+        if (fingerprints != null) {
+            writeProperties(fingerprints, true);
+        }
+    }
+
+    private void writeProperties(CircularData data, boolean counts) {
+        for (int key : data.getKeys()) {
+            String signature = data.getIndex().getSignature(key);
+            double[] values = data.getValues(key);
+            BitSet present = data.getPresent(key);
+            for (int idx = present.nextSetBit(0); idx >= 0; idx = present.nextSetBit(idx + 1)) {
+                if (counts) {
+                    atoms[idx].setProperty(signature, (int) values[idx]);
+                } else {
+                    atoms[idx].setProperty(signature, values[idx]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.qsar.IAtomicDescriptor;
+import org.openscience.cdk.qsar.descriptors.atomic.*;
+import org.openscience.cdk.qsar.result.DoubleResult;
+import org.openscience.cdk.qsar.result.IDescriptorResult;
+import org.openscience.cdk.qsar.result.IntegerResult;
+import org.zbh.fame.fame3.globals.Globals;
+import org.zbh.fame.fame3.modelling.descriptors.PartialSigmaChargeDescriptorPatched;
+import org.zbh.fame.fame3.utils.data.FAMEMolSupplier;
+import org.zbh.fame.fame3.utils.data.parsers.FAMEFileParser;
+import org.zbh.fame.fame3.utils.data.parsers.SDFParser;
+import org.zbh.fame.fame3.utils.data.parsers.SMILESFileParser;
+import org.zbh.fame.fame3.utils.data.parsers.SMILESListParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the CDK descriptors calculated by {@link DescriptorCalculator#calculateBaseDescriptors()},
+ * which calculate the charge models once per molecule, are the same as the values of the original per-atom CDK descriptors.
+ *
+ * The reference values are calculated on a copy of the prepared molecule with the original descriptors
+ * in the same order as before (atom by atom), so that any side effects of the descriptors on the molecule are reproduced as well.
+ *
+ * Usage: ChargeDescriptorParity (file.sdf | file.smi | SMILES)...
+ */
+public class ChargeDescriptorParity {
+
+    public static void main(String[] args) throws Exception {
+        List<FAMEFileParser> parsers = new ArrayList<>();
+        List<String> smiles = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.endsWith(".sdf")) {
+                parsers.add(new SDFParser(arg));
+            } else if (arg.endsWith(".smi")) {
+                parsers.add(new SMILESFileParser(arg));
+            } else {
+                smiles.add(arg);
+            }
+        }
+        if (!smiles.isEmpty()) {
+            parsers.add(new SMILESListParser(smiles));
+        }
+        if (parsers.isEmpty()) {
+            System.err.println("Usage: ChargeDescriptorParity (file.sdf | file.smi | SMILES)...");
+            System.exit(2);
+        }
+
+        FAMEMolSupplier supplier = new FAMEMolSupplier(parsers);
+        int molecules = 0;
+        int mismatches = 0;
+        long reference_time = 0;
+        long calculator_time = 0;
+        while (supplier.hasNext()) {
+            IAtomContainer molecule = supplier.getNext();
+            String mol_name = molecule.getProperty(Globals.ID_PROP).toString();
+            DescriptorCalculator calculator = new DescriptorCalculator(molecule);
+            try {
+                calculator.standardize();
+                calculator.prepare();
+            } catch (Exception exp) {
+                System.err.println("Skipping " + mol_name + ": " + exp.getMessage());
+                continue;
+            }
+            IAtomContainer reference_molecule = molecule.clone();
+
+            long start = System.nanoTime();
+            AtomDescriptors descriptors = calculator.calculateBaseDescriptors();
+            calculator_time += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double[][] reference = calculateReference(reference_molecule, descriptors.getAtomIndices());
+            reference_time += System.nanoTime() - start;
+
+            for (int idx = 0; idx < reference.length; idx++) {
+                for (int desc_idx = 0; desc_idx < reference[idx].length; desc_idx++) {
+                    double expected = reference[idx][desc_idx];
+                    double actual = descriptors.getBaseValue(idx, desc_idx);
+                    if (Double.compare(expected, actual) != 0) {
+                        System.out.println(String.format("%s\tatom %d\t%s\t%s != %s", mol_name
+                                , descriptors.getAtomIndices()[idx] + 1, DescriptorCalculator.desc_names[desc_idx], actual, expected));
+                        mismatches++;
+                    }
+                }
+            }
+            molecules++;
+        }
+
+        System.out.println(String.format("Molecules: %d, mismatches: %d", molecules, mismatches));
+        System.out.println(String.format("Per-atom CDK descriptors: %.1f ms, DescriptorCalculator (including SPAN): %.1f ms"
+                , reference_time / 1e6, calculator_time / 1e6));
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Calculates the CDK descriptors the way FAME 3 did originally: every descriptor is called for every heavy atom.
+     */
+    private static double[][] calculateReference(IAtomContainer molecule, int[] atom_indices) throws Exception {
+        List<IAtomicDescriptor> calculators = Arrays.asList(
+                new AtomDegreeDescriptor()
+                , new AtomHybridizationDescriptor()
+                , new AtomHybridizationVSEPRDescriptor()
+                , new AtomValenceDescriptor()
+                , new EffectiveAtomPolarizabilityDescriptor()
+                , new IPAtomicHOSEDescriptor()
+                , new PartialSigmaChargeDescriptorPatched()
+                , new PartialTChargeMMFF94Descriptor()
+                , new PiElectronegativityDescriptor()
+                , new ProtonAffinityHOSEDescriptor()
+                , new SigmaElectronegativityDescriptor()
+                , new StabilizationPlusChargeDescriptor()
+        );
+
+        double[][] values = new double[atom_indices.length][calculators.size()];
+        for (int idx = 0; idx < atom_indices.length; idx++) {
+            IAtom atom = molecule.getAtom(atom_indices[idx]);
+            for (int desc_idx = 0; desc_idx < calculators.size(); desc_idx++) {
+                IDescriptorResult result = calculators.get(desc_idx).calculate(atom, molecule).getValue();
+                if (result instanceof DoubleResult) {
+                    values[idx][desc_idx] = ((DoubleResult) result).doubleValue();
+                } else if (result instanceof IntegerResult) {
+                    values[idx][desc_idx] = ((IntegerResult) result).intValue();
+                } else {
+                    values[idx][desc_idx] = Double.parseDouble(result.toString());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.zbh.fame.fame3.globals.Globals;
+import org.zbh.fame.fame3.main.Main;
+import org.zbh.fame.fame3.utils.data.FAMEMolSupplier;
+import org.zbh.fame.fame3.utils.data.parsers.FAMEFileParser;
+import org.zbh.fame.fame3.utils.data.parsers.SDFParser;
+import org.zbh.fame.fame3.utils.data.parsers.SMILESFileParser;
+import org.zbh.fame.fame3.utils.data.parsers.SMILESListParser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the compiled tree ensembles ({@link CompiledTreeEnsemble}) give the same probabilities as the
+ * generic jpmml evaluator. Every heavy atom of the input molecules is scored by both with each of the given models.
+ *
+ * The compiled model sums the votes of the trees in a different order than jpmml, so the probabilities are compared
+ * with a tolerance. Atoms that the compiled model refuses to score are counted separately, because
+ * they are scored by jpmml in the prediction anyway.
+ *
+ * Usage: CompiledModelParity models tolerance (file.sdf | file.smi | SMILES)...
+ * where models is a comma-separated list of FAME 3 model names (e.g. P1,P2,UGT) and tolerance is e.g. 1e-9.
+ */
+public class CompiledModelParity {
+
+    private static final String usage = "Usage: CompiledModelParity models tolerance (file.sdf | file.smi | SMILES)...";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println(usage);
+            System.exit(2);
+        }
+        double tolerance = Double.parseDouble(args[1]);
+
+        List<FAMEFileParser> parsers = new ArrayList<>();
+        List<String> smiles = new ArrayList<>();
+        for (int arg_idx = 2; arg_idx < args.length; arg_idx++) {
+            String arg = args[arg_idx];
+            if (arg.endsWith(".sdf")) {
+                parsers.add(new SDFParser(arg));
+            } else if (arg.endsWith(".smi")) {
+                parsers.add(new SMILESFileParser(arg));
+            } else {
+                smiles.add(arg);
+            }
+        }
+        if (!smiles.isEmpty()) {
+            parsers.add(new SMILESListParser(smiles));
+        }
+
+        Map<String, Globals> models = new LinkedHashMap<>();
+        for (String model_name : args[0].split(",")) {
+            // same settings as GLORYx uses (see SoMPredictor.createGlobals), without the applicability domain model
+            Namespace model_args = Main.getArgumentParser().parseArgs(new String[] {"-r", "1", "-m", model_name, "-s", "dummy", "-a"});
+            models.put(model_name, new Globals(model_args));
+        }
+        MultiModelPredictor all_models = new MultiModelPredictor(models, false);
+
+        FAMEMolSupplier supplier = new FAMEMolSupplier(parsers);
+        int molecules = 0;
+        int atoms = 0;
+        int not_compiled = 0;
+        int mismatches = 0;
+        double max_difference = 0;
+        while (supplier.hasNext()) {
+            IAtomContainer molecule = supplier.getNext();
+            String mol_name = molecule.getProperty(Globals.ID_PROP).toString();
+            AtomDescriptors descriptors;
+            try {
+                descriptors = all_models.calculateDescriptors(molecule);
+            } catch (Exception exp) {
+                System.err.println("Skipping " + mol_name + ": " + exp.getMessage());
+                continue;
+            }
+
+            for (Map.Entry<String, Globals> model : models.entrySet()) {
+                Modeller modeller = model.getValue().modeller;
+                FeatureMatrix features = modeller.getFeatureLayout().createMatrix(descriptors);
+                double[] row = modeller.createCompiledRow();
+                double[] proba = new double[2];
+                for (int atom_row = 0; atom_row < features.getAtomCount(); atom_row++) {
+                    atoms++;
+                    if (!modeller.scoreCompiled(features, atom_row, row, proba)) {
+                        not_compiled++;
+                        continue;
+                    }
+                    Map<String, Double> outfields = modeller.evaluate(features, atom_row);
+                    double difference = Math.max(Math.abs(proba[0] - outfields.get(Modeller.proba_yes_fld))
+                            , Math.abs(proba[1] - outfields.get(Modeller.proba_no_fld)));
+                    max_difference = Math.max(max_difference, difference);
+                    if (difference > tolerance) {
+                        System.out.println(String.format("%s\t%s\tatom %d\t%s, %s != %s, %s", mol_name, model.getKey()
+                                , features.getAtomIndex(atom_row) + 1, proba[0], proba[1]
+                                , outfields.get(Modeller.proba_yes_fld), outfields.get(Modeller.proba_no_fld)));
+                        mismatches++;
+                    }
+                }
+            }
+            molecules++;
+        }
+
+        System.out.println(String.format("Molecules: %d, atoms scored (all models): %d, not scored by the compiled model: %d, mismatches: %d (tolerance %s), largest difference: %s"
+                , molecules, atoms, not_compiled, mismatches, tolerance, max_difference));
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+}
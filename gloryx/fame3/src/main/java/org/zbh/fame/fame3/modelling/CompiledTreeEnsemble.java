@@ -0,0 +1,625 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import org.dmg.pmml.*;
+import org.dmg.pmml.mining.MiningModel;
+import org.dmg.pmml.mining.Segment;
+import org.dmg.pmml.mining.Segmentation;
+import org.dmg.pmml.tree.Node;
+import org.dmg.pmml.tree.TreeModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Flat, array-based representation of the extra-trees ensembles stored in the FAME 3 PMML files.
+ *
+ * The nodes of all trees are laid out so that the children of each node are stored
+ * next to each other and every attribute of a node (split feature, operator, threshold,
+ * class probabilities) lives in its own primitive array. A row of prepared feature values
+ * can then be scored without building the argument maps and boxed field values the generic
+ * jpmml evaluator needs for every atom.
+ *
+ * Only the subset of PMML produced for the FAME 3 models is supported (an averaged ensemble of
+ * classification trees with simple predicates on continuous fields). {@link #compile(PMML)}
+ * returns null for anything else and {@link #score(double[], double[])} refuses rows
+ * with missing values, so the caller can always fall back to the jpmml evaluator.
+ */
+public class CompiledTreeEnsemble {
+
+    private static final byte op_true = 0;
+    private static final byte op_false = 1;
+    private static final byte op_equal = 2;
+    private static final byte op_not_equal = 3;
+    private static final byte op_less_than = 4;
+    private static final byte op_less_or_equal = 5;
+    private static final byte op_greater_than = 6;
+    private static final byte op_greater_or_equal = 7;
+
+    private static final int max_derivation_depth = 16;
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledTreeEnsemble.class.getName());
+
+    // input features
+    private final String[] feature_names;
+    private final DataType[] feature_types;
+    private final String[] missing_replacements;
+
+    // nodes
+    private final int[] child_start;
+    private final int[] child_count;
+    private final byte[] op;
+    private final int[] feature;
+    private final boolean[] round_to_float;
+    private final double[] threshold;
+    private final boolean[] has_score;
+    private final double[] proba; // [2 * node] -> yes, [2 * node + 1] -> no
+
+    // trees
+    private final int[] roots;
+    private final boolean[] return_last_prediction;
+    private final double[] weights;
+    private final double weight_sum;
+
+    private CompiledTreeEnsemble(Builder builder) {
+        feature_names = builder.feature_names.toArray(new String[0]);
+        feature_types = builder.feature_types.toArray(new DataType[0]);
+        missing_replacements = builder.missing_replacements.toArray(new String[0]);
+
+        int node_count = builder.op.size();
+        child_start = new int[node_count];
+        child_count = new int[node_count];
+        op = new byte[node_count];
+        feature = new int[node_count];
+        round_to_float = new boolean[node_count];
+        threshold = new double[node_count];
+        has_score = new boolean[node_count];
+        proba = new double[2 * node_count];
+        for (int i = 0; i < node_count; i++) {
+            child_start[i] = builder.child_start.get(i);
+            child_count[i] = builder.child_count.get(i);
+            op[i] = builder.op.get(i);
+            feature[i] = builder.feature.get(i);
+            round_to_float[i] = builder.round_to_float.get(i);
+            threshold[i] = builder.threshold.get(i);
+            has_score[i] = builder.has_score.get(i);
+            proba[2 * i] = builder.proba.get(2 * i);
+            proba[2 * i + 1] = builder.proba.get(2 * i + 1);
+        }
+
+        int tree_count = builder.roots.size();
+        roots = new int[tree_count];
+        return_last_prediction = new boolean[tree_count];
+        weights = new double[tree_count];
+        double sum = 0;
+        for (int i = 0; i < tree_count; i++) {
+            roots[i] = builder.roots.get(i);
+            return_last_prediction[i] = builder.return_last_prediction.get(i);
+            weights[i] = builder.weights.get(i);
+            sum += weights[i];
+        }
+        weight_sum = sum;
+    }
+
+    /**
+     * Compiles the tree ensemble in the given PMML document.
+     *
+     * @param pmml the loaded model
+     * @return the compiled ensemble or null if the model uses a construct that is not supported
+     */
+    public static CompiledTreeEnsemble compile(PMML pmml) {
+        try {
+            Builder builder = new Builder(pmml);
+            builder.build();
+            CompiledTreeEnsemble compiled = new CompiledTreeEnsemble(builder);
+            logger.info(String.format("Compiled %d trees (%d nodes) for %d input features."
+                    , compiled.roots.length
+                    , compiled.op.length
+                    , compiled.feature_names.length
+            ));
+            return compiled;
+        } catch (UnsupportedModelException exp) {
+            logger.info("Model cannot be compiled, the generic PMML evaluator will be used: " + exp.getMessage());
+            return null;
+        }
+    }
+
+    public int getFeatureCount() {
+        return feature_names.length;
+    }
+
+    public String getFeatureName(int feature) {
+        return feature_names[feature];
+    }
+
+    /**
+     * Converts a raw atom property to the value used in the compiled trees,
+     * mirroring the type conversion done by the jpmml input fields.
+     *
+     * @param raw the raw value (number, string or null)
+     * @param feature index of the feature
+     * @return the prepared value or NaN if the value is missing or cannot be converted
+     */
+    public double prepare(Object raw, int feature) {
+        if (raw == null) {
+            raw = missing_replacements[feature];
+            if (raw == null) {
+                return Double.NaN;
+            }
+        }
+
+        try {
+            switch (feature_types[feature]) {
+                case DOUBLE:
+                    return raw instanceof Number ? ((Number) raw).doubleValue() : Double.parseDouble(raw.toString());
+                case FLOAT:
+                    return raw instanceof Number ? ((Number) raw).floatValue() : Float.parseFloat(raw.toString());
+                case INTEGER:
+                    if (raw instanceof Number) {
+                        double value = ((Number) raw).doubleValue();
+                        return value == Math.rint(value) ? value : Double.NaN;
+                    }
+                    return Integer.parseInt(raw.toString());
+                default:
+                    return Double.NaN;
+            }
+        } catch (NumberFormatException exp) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Same as {@link #prepare(Object, int)} for a value that is present.
+     */
+    public double prepare(double value, int feature) {
+        switch (feature_types[feature]) {
+            case DOUBLE:
+                return value;
+            case FLOAT:
+                return (float) value;
+            case INTEGER:
+                return value == Math.rint(value) ? value : Double.NaN;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Scores one row of prepared feature values.
+     *
+     * @param row prepared values indexed by feature
+     * @param out receives the probability of the yes class at index 0 and of the no class at index 1
+     * @return false if the row could not be scored (missing value or no prediction in some tree)
+     */
+    public boolean score(double[] row, double[] out) {
+        double yes = 0;
+        double no = 0;
+        for (int tree = 0; tree < roots.length; tree++) {
+            int leaf = findLeaf(tree, row);
+            if (leaf < 0) {
+                return false;
+            }
+            yes += weights[tree] * proba[2 * leaf];
+            no += weights[tree] * proba[2 * leaf + 1];
+        }
+        out[0] = yes / weight_sum;
+        out[1] = no / weight_sum;
+        return !Double.isNaN(out[0]) && !Double.isNaN(out[1]);
+    }
+
+    private int findLeaf(int tree, double[] row) {
+        int node = roots[tree];
+        if (test(node, row) != 1) {
+            return -1;
+        }
+        while (child_count[node] > 0) {
+            int next = -1;
+            int end = child_start[node] + child_count[node];
+            for (int child = child_start[node]; child < end; child++) {
+                int result = test(child, row);
+                if (result < 0) {
+                    return -1;
+                }
+                if (result == 1) {
+                    next = child;
+                    break;
+                }
+            }
+            if (next < 0) {
+                return return_last_prediction[tree] && has_score[node] ? node : -1;
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    private int test(int node, double[] row) {
+        switch (op[node]) {
+            case op_true:
+                return 1;
+            case op_false:
+                return 0;
+            default:
+                break;
+        }
+
+        double value = row[feature[node]];
+        if (Double.isNaN(value)) {
+            return -1;
+        }
+        if (round_to_float[node]) {
+            value = (float) value;
+        }
+
+        boolean result;
+        switch (op[node]) {
+            case op_equal:
+                result = value == threshold[node];
+                break;
+            case op_not_equal:
+                result = value != threshold[node];
+                break;
+            case op_less_than:
+                result = value < threshold[node];
+                break;
+            case op_less_or_equal:
+                result = value <= threshold[node];
+                break;
+            case op_greater_than:
+                result = value > threshold[node];
+                break;
+            case op_greater_or_equal:
+                result = value >= threshold[node];
+                break;
+            default:
+                return -1;
+        }
+        return result ? 1 : 0;
+    }
+
+    private static class UnsupportedModelException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedModelException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Builder {
+
+        private final PMML pmml;
+        private final Map<FieldName, DataField> data_fields = new HashMap<>();
+        private final Map<FieldName, DerivedField> global_derived_fields = new HashMap<>();
+        private final Map<FieldName, Integer> feature_indices = new HashMap<>();
+
+        private final List<String> feature_names = new ArrayList<>();
+        private final List<DataType> feature_types = new ArrayList<>();
+        private final List<String> missing_replacements = new ArrayList<>();
+
+        private final List<Integer> child_start = new ArrayList<>();
+        private final List<Integer> child_count = new ArrayList<>();
+        private final List<Byte> op = new ArrayList<>();
+        private final List<Integer> feature = new ArrayList<>();
+        private final List<Boolean> round_to_float = new ArrayList<>();
+        private final List<Double> threshold = new ArrayList<>();
+        private final List<Boolean> has_score = new ArrayList<>();
+        private final List<Double> proba = new ArrayList<>();
+
+        private final List<Integer> roots = new ArrayList<>();
+        private final List<Boolean> return_last_prediction = new ArrayList<>();
+        private final List<Double> weights = new ArrayList<>();
+
+        Builder(PMML pmml) {
+            this.pmml = pmml;
+        }
+
+        void build() throws UnsupportedModelException {
+            if (pmml.getModels().size() != 1) {
+                throw new UnsupportedModelException("expected exactly one model");
+            }
+            for (DataField field : pmml.getDataDictionary().getDataFields()) {
+                data_fields.put(field.getName(), field);
+            }
+            if (pmml.getTransformationDictionary() != null) {
+                addDerivedFields(global_derived_fields, pmml.getTransformationDictionary().getDerivedFields());
+            }
+
+            Model model = pmml.getModels().get(0);
+            checkClassification(model);
+            addFeatures(model.getMiningSchema());
+
+            Map<FieldName, DerivedField> derived_fields = new HashMap<>(global_derived_fields);
+            addDerivedFields(derived_fields, model.getLocalTransformations());
+            if (model instanceof TreeModel) {
+                addTree((TreeModel) model, 1.0, derived_fields);
+            } else if (model instanceof MiningModel) {
+                Segmentation segmentation = ((MiningModel) model).getSegmentation();
+                boolean weighted;
+                switch (segmentation.getMultipleModelMethod()) {
+                    case AVERAGE:
+                        weighted = false;
+                        break;
+                    case WEIGHTED_AVERAGE:
+                        weighted = true;
+                        break;
+                    default:
+                        throw new UnsupportedModelException("unsupported segmentation method: " + segmentation.getMultipleModelMethod());
+                }
+                addDerivedFields(derived_fields, segmentation.getLocalTransformations());
+                for (Segment segment : segmentation.getSegments()) {
+                    if (!(segment.getPredicate() instanceof True)) {
+                        throw new UnsupportedModelException("unsupported segment predicate in segment " + segment.getId());
+                    }
+                    if (!(segment.getModel() instanceof TreeModel)) {
+                        throw new UnsupportedModelException("unsupported segment model in segment " + segment.getId());
+                    }
+                    TreeModel tree = (TreeModel) segment.getModel();
+                    checkClassification(tree);
+                    checkMiningSchema(tree.getMiningSchema());
+                    Map<FieldName, DerivedField> tree_fields = new HashMap<>(derived_fields);
+                    addDerivedFields(tree_fields, tree.getLocalTransformations());
+                    double weight = weighted && segment.getWeight() != null ? segment.getWeight() : 1.0;
+                    addTree(tree, weight, tree_fields);
+                }
+            } else {
+                throw new UnsupportedModelException("unsupported model type: " + model.getClass().getSimpleName());
+            }
+
+            if (roots.isEmpty()) {
+                throw new UnsupportedModelException("no trees found");
+            }
+        }
+
+        private void checkClassification(Model model) throws UnsupportedModelException {
+            if (model.getMiningFunction() != MiningFunction.CLASSIFICATION) {
+                throw new UnsupportedModelException("not a classification model");
+            }
+            if (model.getTargets() != null && model.getTargets().hasTargets()) {
+                throw new UnsupportedModelException("targets are not supported");
+            }
+        }
+
+        private void checkMiningSchema(MiningSchema schema) throws UnsupportedModelException {
+            for (MiningField field : schema.getMiningFields()) {
+                if (field.getUsageType() != MiningField.UsageType.ACTIVE) {
+                    continue;
+                }
+                if (!feature_indices.containsKey(field.getName())) {
+                    throw new UnsupportedModelException("unknown field in segment: " + field.getName());
+                }
+                checkMiningField(field);
+            }
+        }
+
+        private void checkMiningField(MiningField field) throws UnsupportedModelException {
+            if (field.getOutlierTreatment() != OutlierTreatmentMethod.AS_IS) {
+                throw new UnsupportedModelException("outlier treatment is not supported: " + field.getName());
+            }
+            if (field.getMissingValueReplacement() != null
+                    && !field.getMissingValueReplacement().equals(missing_replacements.get(feature_indices.get(field.getName())))) {
+                throw new UnsupportedModelException("nested missing value replacement is not supported: " + field.getName());
+            }
+        }
+
+        private void addFeatures(MiningSchema schema) throws UnsupportedModelException {
+            for (MiningField mining_field : schema.getMiningFields()) {
+                if (mining_field.getUsageType() != MiningField.UsageType.ACTIVE) {
+                    continue;
+                }
+                DataField data_field = data_fields.get(mining_field.getName());
+                if (data_field == null) {
+                    throw new UnsupportedModelException("no data field for: " + mining_field.getName());
+                }
+                if (data_field.hasIntervals() || data_field.hasValues()) {
+                    throw new UnsupportedModelException("value restrictions are not supported: " + data_field.getName());
+                }
+                switch (data_field.getDataType()) {
+                    case DOUBLE:
+                    case FLOAT:
+                    case INTEGER:
+                        break;
+                    default:
+                        throw new UnsupportedModelException("unsupported data type of field: " + data_field.getName());
+                }
+
+                feature_indices.put(mining_field.getName(), feature_names.size());
+                feature_names.add(mining_field.getName().getValue());
+                feature_types.add(data_field.getDataType());
+                missing_replacements.add(mining_field.getMissingValueReplacement());
+                checkMiningField(mining_field);
+            }
+        }
+
+        private void addDerivedFields(Map<FieldName, DerivedField> target, LocalTransformations transformations) {
+            if (transformations != null) {
+                addDerivedFields(target, transformations.getDerivedFields());
+            }
+        }
+
+        private void addDerivedFields(Map<FieldName, DerivedField> target, List<DerivedField> fields) {
+            for (DerivedField field : fields) {
+                target.put(field.getName(), field);
+            }
+        }
+
+        private void addTree(TreeModel tree, double weight, Map<FieldName, DerivedField> derived_fields) throws UnsupportedModelException {
+            roots.add(addNode());
+            return_last_prediction.add(tree.getNoTrueChildStrategy() == TreeModel.NoTrueChildStrategy.RETURN_LAST_PREDICTION);
+            weights.add(weight);
+
+            // breadth-first so that the children of each node are stored next to each other
+            Deque<Node> queue = new ArrayDeque<>();
+            Deque<Integer> indices = new ArrayDeque<>();
+            queue.add(tree.getNode());
+            indices.add(roots.get(roots.size() - 1));
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                int index = indices.poll();
+                setNode(index, node, derived_fields);
+
+                child_start.set(index, op.size());
+                child_count.set(index, node.hasNodes() ? node.getNodes().size() : 0);
+                if (node.hasNodes()) {
+                    for (Node child : node.getNodes()) {
+                        queue.add(child);
+                        indices.add(addNode());
+                    }
+                }
+            }
+        }
+
+        private int addNode() {
+            child_start.add(0);
+            child_count.add(0);
+            op.add(op_false);
+            feature.add(-1);
+            round_to_float.add(false);
+            threshold.add(Double.NaN);
+            has_score.add(false);
+            proba.add(Double.NaN);
+            proba.add(Double.NaN);
+            return op.size() - 1;
+        }
+
+        private void setNode(int index, Node node, Map<FieldName, DerivedField> derived_fields) throws UnsupportedModelException {
+            if (node.getEmbeddedModel() != null || node.getDefaultChild() != null) {
+                throw new UnsupportedModelException("unsupported node: " + node.getId());
+            }
+
+            Predicate predicate = node.getPredicate();
+            if (predicate instanceof True) {
+                op.set(index, op_true);
+            } else if (predicate instanceof False) {
+                op.set(index, op_false);
+            } else if (predicate instanceof SimplePredicate) {
+                setSimplePredicate(index, (SimplePredicate) predicate, derived_fields);
+            } else {
+                throw new UnsupportedModelException("unsupported predicate: " + (predicate == null ? null : predicate.getClass().getSimpleName()));
+            }
+
+            has_score.set(index, node.hasScore());
+            if (node.hasScoreDistributions()) {
+                double total = 0;
+                for (ScoreDistribution distribution : node.getScoreDistributions()) {
+                    total += distribution.getRecordCount();
+                }
+                double yes = 0;
+                double no = 0;
+                for (ScoreDistribution distribution : node.getScoreDistributions()) {
+                    double value = distribution.getProbability() != null ? distribution.getProbability() : distribution.getRecordCount() / total;
+                    if (distribution.getValue().equals(Integer.toString(Modeller.yes_val))) {
+                        yes = value;
+                    } else if (distribution.getValue().equals(Integer.toString(Modeller.no_val))) {
+                        no = value;
+                    } else {
+                        throw new UnsupportedModelException("unknown class in node " + node.getId() + ": " + distribution.getValue());
+                    }
+                }
+                proba.set(2 * index, yes);
+                proba.set(2 * index + 1, no);
+            }
+        }
+
+        private void setSimplePredicate(int index, SimplePredicate predicate, Map<FieldName, DerivedField> derived_fields) throws UnsupportedModelException {
+            switch (predicate.getOperator()) {
+                case EQUAL:
+                    op.set(index, op_equal);
+                    break;
+                case NOT_EQUAL:
+                    op.set(index, op_not_equal);
+                    break;
+                case LESS_THAN:
+                    op.set(index, op_less_than);
+                    break;
+                case LESS_OR_EQUAL:
+                    op.set(index, op_less_or_equal);
+                    break;
+                case GREATER_THAN:
+                    op.set(index, op_greater_than);
+                    break;
+                case GREATER_OR_EQUAL:
+                    op.set(index, op_greater_or_equal);
+                    break;
+                default:
+                    throw new UnsupportedModelException("unsupported operator: " + predicate.getOperator());
+            }
+
+            // follow the chain of casts down to the input field
+            FieldName name = predicate.getField();
+            DataType predicate_type = null;
+            boolean rounded = false;
+            for (int depth = 0; depth < max_derivation_depth; depth++) {
+                DerivedField derived = derived_fields.get(name);
+                if (derived == null) {
+                    break;
+                }
+                if (!(derived.getExpression() instanceof FieldRef)) {
+                    throw new UnsupportedModelException("unsupported expression in derived field: " + name);
+                }
+                if (derived.getDataType() == DataType.FLOAT) {
+                    rounded = true;
+                } else if (derived.getDataType() != DataType.DOUBLE) {
+                    throw new UnsupportedModelException("unsupported data type of derived field: " + name);
+                }
+                if (predicate_type == null) {
+                    predicate_type = derived.getDataType();
+                }
+                name = ((FieldRef) derived.getExpression()).getField();
+            }
+
+            Integer feature_index = feature_indices.get(name);
+            if (feature_index == null) {
+                throw new UnsupportedModelException("predicate on an unknown field: " + name);
+            }
+            if (predicate_type == null) {
+                predicate_type = feature_types.get(feature_index);
+            }
+
+            double value;
+            try {
+                switch (predicate_type) {
+                    case FLOAT:
+                        rounded = true;
+                        value = Float.parseFloat(predicate.getValue());
+                        break;
+                    case INTEGER:
+                        value = Integer.parseInt(predicate.getValue());
+                        break;
+                    default:
+                        value = Double.parseDouble(predicate.getValue());
+                        break;
+                }
+            } catch (NumberFormatException exp) {
+                throw new UnsupportedModelException("invalid threshold: " + predicate.getValue());
+            }
+
+            feature.set(index, feature_index);
+            round_to_float.set(index, rounded);
+            threshold.set(index, value);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+//Span descriptor calculation taken from SmartCyp
+
+package org.zbh.fame.fame3.modelling;
+
+import ambit2.smarts.SMIRKSManager;
+import ambit2.smarts.SMIRKSReaction;
+
+import org.openscience.cdk.atomtype.IAtomTypeMatcher;
+import org.openscience.cdk.atomtype.SybylAtomTypeMatcher;
+import org.openscience.cdk.graph.ConnectivityChecker;
+import org.openscience.cdk.interfaces.*;
+import org.openscience.cdk.normalize.SMSDNormalizer;
+import org.openscience.cdk.qsar.IAtomicDescriptor;
+import org.openscience.cdk.qsar.descriptors.atomic.*;
+import org.openscience.cdk.qsar.result.DoubleResult;
+import org.openscience.cdk.qsar.result.IDescriptorResult;
+import org.openscience.cdk.qsar.result.IntegerResult;
+import org.openscience.cdk.ringsearch.AllRingsFinder;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.tools.CDKHydrogenAdder;
+import org.openscience.cdk.tools.DeAromatizationTool;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zbh.fame.fame3.globals.Globals;
+import org.zbh.fame.fame3.modelling.descriptors.PartialSigmaChargeDescriptorPatched;
+import org.zbh.fame.fame3.modelling.descriptors.PiElectronegativityDescriptorPatched;
+import org.zbh.fame.fame3.modelling.descriptors.SigmaElectronegativityDescriptorPatched;
+import org.zbh.fame.fame3.modelling.descriptors.SpanDescriptors;
+import org.zbh.fame.fame3.modelling.descriptors.circular.CircularCollector;
+import org.zbh.fame.fame3.modelling.descriptors.circular.NeighborhoodShells;
+
+import java.util.*;
+
+/**
+ * Standardizes and prepares a molecule and calculates the atom descriptors used by the FAME 3 models
+ * (base descriptors, circular descriptors and atom type fingerprints) as {@link AtomDescriptors}.
+ *
+ * None of this depends on a particular model, so it only has to be done once per molecule
+ * even if several models are evaluated (see {@link MultiModelPredictor}).
+ */
+public class DescriptorCalculator {
+
+    public static final String[] desc_names = ("atomDegree,atomHybridization,atomHybridizationVSEPR,atomValence,effectiveAtomPolarizability," +
+            "iPAtomicHOSE,partialSigmaCharge,partialTChargeMMFF94,piElectronegativity,protonAffinityHOSE,sigmaElectronegativity," +
+            "stabilizationPlusCharge,relSPAN,diffSPAN,highestMaxTopDistInMatrixRow,longestMaxTopDistInMolecule").split(",");
+
+    // Standardize structure:
+    // This is necessary because input SMILES may have used expanded valence representation of
+    // nitro groups or other nitrogen-containing functional groups, and this representation is not compatible with calculating descriptors.
+    private static final String nitroGroupStandardizationSMIRKS = "[*:1][N:2](=[O:3])=[O:4]>>[*:1][N+:2](=[O:3])[O-:4]";  // can be found on Daylight SMIRKS website
+    private static final String nitrogenStandardizationSMIRKS = "[*:1][N;v5:2](=[O:3])>>[*:1][N+:2][O-:3]";  // this SMIRKS covers the case of nitro groups as well (valence 5), but would result in two products
+
+    private static final Set<String> allowed_atoms = new HashSet<>(Arrays.asList(
+            "C"
+            , "N"
+            , "S"
+            , "O"
+            , "H"
+            , "F"
+            , "Cl"
+            , "Br"
+            , "I"
+            , "P"
+            , "B"
+            , "Si"
+    ));
+
+    private static final Logger logger = LoggerFactory.getLogger(DescriptorCalculator.class.getName());
+
+    private IAtomContainer molecule;
+    private String mol_name;
+    private NeighborhoodShells shells;
+
+    public DescriptorCalculator(IAtomContainer molecule) {
+        this.molecule = molecule;
+        this.mol_name = molecule.getProperty(Globals.ID_PROP).toString();
+    }
+
+    /**
+     * Runs all steps for the given descriptor groups and depths.
+     *
+     * @return the calculated descriptors
+     */
+    public AtomDescriptors calculate(Set<String> desc_groups, int circ_depth, int fing_depth) throws Exception {
+        standardize();
+        prepare();
+        return calculateDescriptors(desc_groups, circ_depth, fing_depth);
+    }
+
+    /**
+     * Calculates the descriptors of a standardized and prepared molecule.
+     *
+     * @return the calculated descriptors
+     */
+    public AtomDescriptors calculateDescriptors(Set<String> desc_groups, int circ_depth, int fing_depth) throws Exception {
+        AtomDescriptors descriptors = calculateBaseDescriptors();
+
+        // the neighborhoods are shared by the circular descriptors and the fingerprints
+        int shell_depth = 0;
+        if (desc_groups.contains("ccdk")) {
+            shell_depth = Math.max(shell_depth, circ_depth);
+        }
+        if (desc_groups.contains("fing")) {
+            shell_depth = Math.max(shell_depth, fing_depth);
+        }
+        getShells(descriptors, shell_depth);
+
+        if (desc_groups.contains("ccdk")) {
+            calculateCircularDescriptors(descriptors, circ_depth);
+        }
+        if (desc_groups.contains("fing")) {
+            calculateFingerprints(descriptors, fing_depth);
+        }
+        return descriptors;
+    }
+
+    public void standardize() throws Exception {
+        //check if salt
+        if (!ConnectivityChecker.isConnected(molecule)) {
+            throw new Exception("Error: salt: " + mol_name);
+        }
+
+        AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
+
+        SMIRKSManager smirksManager = new SMIRKSManager(SilentChemObjectBuilder.getInstance());
+        SMIRKSReaction transformationNitroGroup = smirksManager.parse(nitroGroupStandardizationSMIRKS);
+        SMIRKSReaction transformationExpandedValenceNitrogen = smirksManager.parse(nitrogenStandardizationSMIRKS);
+        if (smirksManager.hasErrors()) {
+            logger.error("Error parsing SMIRKS " + nitroGroupStandardizationSMIRKS);
+        }
+        smirksManager.applyTransformation(molecule, null, transformationNitroGroup);  // apply this first because otherwise the other SMIRKS may result in two (same) products. Only want one.
+        smirksManager.applyTransformation(molecule, null, transformationExpandedValenceNitrogen);
+        // Note: There is still a chance that there will be multiple molecules inside the atom container. Hence there should be a salt checker after this code
+
+        //check if salt
+        if (!ConnectivityChecker.isConnected(molecule)) {
+            // FIXME: check the components after transformation and only select one (they should be the same)
+            throw new Exception("Error: Two components after standardization: " + mol_name);
+        }
+    }
+
+    /**
+     * Prepares the structure for the descriptor calculation (aromaticity, hydrogens).
+     *
+     * @return true if implicit hydrogens were found and made explicit
+     */
+    public boolean prepare() throws Exception {
+        AllRingsFinder finder = new AllRingsFinder();
+        IRingSet rings = finder.findAllRings(molecule);
+        for (IAtomContainer ring: rings.atomContainers()) {
+            DeAromatizationTool.deAromatize((IRing) ring);
+        }
+
+        AtomContainerManipulator.percieveAtomTypesAndConfigureUnsetProperties(molecule);
+        // aromatize; required for correct Sybyl atom type determination
+        SMSDNormalizer.aromatizeMolecule(molecule);
+        CDKHydrogenAdder adder;
+        adder = CDKHydrogenAdder.getInstance(molecule.getBuilder());
+        try {
+            adder.addImplicitHydrogens(molecule);
+        } catch (Exception exp) {
+            logger.error("CDK internal error for: " + mol_name);
+            throw exp;
+        }
+
+        // check atom types and count the number of added hydrogens
+        int hydrogens_total = 0;
+        int implicit_hydrogens = 0;
+        for (int atomNr = 0; atomNr < molecule.getAtomCount()  ; atomNr++ ) {
+            IAtom atom = molecule.getAtom(atomNr);
+
+            String symbol = atom.getSymbol();
+            if (!allowed_atoms.contains(symbol)) {
+                throw new Exception("Atypical atom detected: " + symbol + ". Skipping: " + mol_name);
+            }
+
+            if (atom.getImplicitHydrogenCount() != null) {
+                implicit_hydrogens += atom.getImplicitHydrogenCount();
+            }
+            if (atom.getSymbol().equals("H")) {
+                hydrogens_total++;
+            }
+        }
+
+        // if implicit hydrogens were added, show a warning and make them explicit
+        if (implicit_hydrogens > 0) {
+            logger.warn("WARNING: implicit hydrogens detected for molecule: " + mol_name);
+
+            // add convert implicit hydrogens to explicit ones
+            logger.warn("Making all hydrogens explicit...");
+            logger.debug("Explicit hydrogens in the original structure: " + Integer.toString(hydrogens_total));
+            logger.debug("Added hydrogens: " + AtomContainerManipulator.getTotalHydrogenCount(molecule));
+            AtomContainerManipulator.convertImplicitToExplicitHydrogens(molecule);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determines the Sybyl atom types and calculates the CDK and SPAN descriptors (see {@link #desc_names}).
+     * Apart from the atom and molecule names, nothing is written to the atom properties.
+     */
+    public AtomDescriptors calculateBaseDescriptors() throws Exception {
+        List<Integer> heavy_atoms = new ArrayList<>();
+        for(int atomNr = 0; atomNr < molecule.getAtomCount(); atomNr++){
+            if (!molecule.getAtom(atomNr).getSymbol().equals("H")) {
+                heavy_atoms.add(atomNr);
+            }
+        }
+        int[] atom_indices = new int[heavy_atoms.size()];
+        for (int idx = 0; idx < atom_indices.length; idx++) {
+            atom_indices[idx] = heavy_atoms.get(idx);
+        }
+
+        // needed for the SPAN descriptors
+        SpanDescriptors span = SpanDescriptors.calculate(molecule, atom_indices);
+        double longestMaxTopDistInMolecule = span.getLongestDistance();
+
+        IAtomTypeMatcher atm = SybylAtomTypeMatcher.getInstance(SilentChemObjectBuilder.getInstance());
+        String[] atom_types = new String[atom_indices.length];
+        for (int idx = 0; idx < atom_indices.length; idx++) {
+            int atomNr = atom_indices[idx];
+            IAtom iAtom = molecule.getAtom(atomNr);
+
+            //determine Sybyl atom types
+            IAtomType iAtomType = atm.findMatchingAtomType(molecule,molecule.getAtom(atomNr));
+            if (iAtomType != null) {
+                atom_types[idx] = iAtomType.getAtomTypeName();
+            } else {
+                String id = iAtom.getSymbol() + "." + Integer.toString(atomNr + 1);
+                throw new Exception("Failed to determine Sybyl atom type for atom: " + id);
+            }
+        }
+
+        logger.debug("Calculating descriptors for: " + mol_name);
+
+        // original CDK descriptors used in FAME
+        List<IAtomicDescriptor> calculators = new ArrayList<>();
+        calculators.add(new AtomDegreeDescriptor());
+        calculators.add(new AtomHybridizationDescriptor());
+        calculators.add(new AtomHybridizationVSEPRDescriptor());
+        calculators.add(new AtomValenceDescriptor());
+        calculators.add(new EffectiveAtomPolarizabilityDescriptor());
+        calculators.add(new IPAtomicHOSEDescriptor());
+        calculators.add(new PartialSigmaChargeDescriptorPatched());
+        calculators.add(new PartialTChargeMMFF94Descriptor());
+        calculators.add(new PiElectronegativityDescriptorPatched());
+        calculators.add(new ProtonAffinityHOSEDescriptor());
+        calculators.add(new SigmaElectronegativityDescriptorPatched());
+        calculators.add(new StabilizationPlusChargeDescriptor());
+
+        double[][] base = new double[atom_indices.length][desc_names.length];
+        boolean[] base_integer = new boolean[desc_names.length];
+        for (int idx = 0; idx < atom_indices.length; idx++) {
+            int atomNr = atom_indices[idx];
+            IAtom iAtom = molecule.getAtom(atomNr);
+
+            iAtom.setProperty("Atom", iAtom.getSymbol() + "." + (atomNr + 1));
+            iAtom.setProperty("Molecule", mol_name);
+
+            int desc_idx = 0;
+            for (IAtomicDescriptor calc : calculators) {
+                IDescriptorResult result = calc.calculate(molecule.getAtom(atomNr), molecule).getValue();
+                if (result instanceof DoubleResult) {
+                    base[idx][desc_idx] = ((DoubleResult) result).doubleValue();
+                } else if (result instanceof IntegerResult) {
+                    base[idx][desc_idx] = ((IntegerResult) result).intValue();
+                    base_integer[desc_idx] = true;
+                } else {
+                    base[idx][desc_idx] = Double.parseDouble(result.toString());
+                }
+                desc_idx++;
+            }
+
+            //calculate SPAN descriptor
+            double highestMaxTopDistInMatrixRow = span.getMaxDistance(idx);
+
+            base[idx][desc_idx] = highestMaxTopDistInMatrixRow / longestMaxTopDistInMolecule;
+            desc_idx++;
+            base[idx][desc_idx] = longestMaxTopDistInMolecule - highestMaxTopDistInMatrixRow;
+            desc_idx++;
+            base[idx][desc_idx] = highestMaxTopDistInMatrixRow;
+            desc_idx++;
+            base[idx][desc_idx] = longestMaxTopDistInMolecule;
+        }
+
+        return new AtomDescriptors(molecule, atom_indices, atom_types, base, base_integer);
+    }
+
+    /**
+     * Calculates the circular descriptors (CDK) from the base descriptors.
+     */
+    public void calculateCircularDescriptors(AtomDescriptors descriptors, int circ_depth) throws Exception {
+        List<String> circ_descs = Arrays.asList(desc_names);
+        CircularCollector circ_collector = new CircularCollector(circ_descs, new CircularCollector.MeanAggregator(), new DescriptorValues(descriptors, circ_descs), descriptors.getAtomCount());
+        circ_collector.collect(getShells(descriptors, circ_depth), circ_depth);
+        descriptors.setCircular(circ_collector.getData(), circ_collector.getSignatures());
+    }
+
+    /**
+     * Calculates the atom type circular fingerprints.
+     */
+    public void calculateFingerprints(AtomDescriptors descriptors, int fing_depth) throws Exception {
+        List<String> fg_descs = Collections.singletonList("AtomType");
+        CircularCollector fg_collector = new CircularCollector(fg_descs, new CircularCollector.CountJoiner(), new DescriptorValues(descriptors, fg_descs), descriptors.getAtomCount());
+        fg_collector.collect(getShells(descriptors, fing_depth), fing_depth);
+        descriptors.setFingerprints(fg_collector.getData(), fg_collector.getSignatures());
+    }
+
+    /**
+     * @return the neighborhoods of the heavy atoms, calculated once for the largest depth requested
+     */
+    private NeighborhoodShells getShells(AtomDescriptors descriptors, int depth) {
+        if (shells == null || shells.getDepth() < depth) {
+            IAtom[] atoms = descriptors.getAtoms();
+            Map<IAtom, Integer> atom_map = new IdentityHashMap<>();
+            for (int idx = 0; idx < atoms.length; idx++) {
+                atom_map.put(atoms[idx], idx);
+            }
+            List<List<Integer>> neighbors = new ArrayList<>();
+            for (int idx = 0; idx < atoms.length; idx++) {
+                neighbors.add(new ArrayList<>());
+            }
+            for (IBond bond : molecule.bonds()) {
+                Integer first = atom_map.get(bond.getAtom(0));
+                Integer second = atom_map.get(bond.getAtom(1));
+                if (first != null && second != null) {
+                    neighbors.get(first).add(second);
+                    neighbors.get(second).add(first);
+                }
+            }
+            int[][] adjacency = new int[atoms.length][];
+            for (int idx = 0; idx < atoms.length; idx++) {
+                List<Integer> atom_neighbors = neighbors.get(idx);
+                adjacency[idx] = new int[atom_neighbors.size()];
+                for (int i = 0; i < adjacency[idx].length; i++) {
+                    adjacency[idx][i] = atom_neighbors.get(i);
+                }
+            }
+            shells = NeighborhoodShells.compute(adjacency, depth);
+        }
+        return shells;
+    }
+
+    /**
+     * Looks up the atom types and base descriptors of the atoms for the circular collectors.
+     */
+    private static class DescriptorValues implements CircularCollector.AtomValues {
+
+        private static final Map<String, Integer> desc_indices = new HashMap<>();
+        static {
+            for (int desc_idx = 0; desc_idx < desc_names.length; desc_idx++) {
+                desc_indices.put(desc_names[desc_idx], desc_idx);
+            }
+        }
+
+        private AtomDescriptors descriptors;
+        private int[] base_columns;
+
+        DescriptorValues(AtomDescriptors descriptors, List<String> collected) {
+            this.descriptors = descriptors;
+            this.base_columns = new int[collected.size()];
+            for (int i = 0; i < base_columns.length; i++) {
+                Integer desc_idx = desc_indices.get(collected.get(i));
+                base_columns[i] = desc_idx == null ? -1 : desc_idx;
+            }
+        }
+
+        @Override
+        public String getAtomType(int atom) {
+            return descriptors.getAtomType(atom);
+        }
+
+        @Override
+        public double getValue(int atom, int desc_ordinal) {
+            int desc_idx = base_columns[desc_ordinal];
+            return desc_idx < 0 ? Double.NaN : descriptors.getBaseValue(atom, desc_idx);
+        }
+    }
+}
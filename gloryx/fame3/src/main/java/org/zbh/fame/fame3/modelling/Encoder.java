@@ -57,16 +57,18 @@ public class Encoder {
             if (atom.getSymbol().equalsIgnoreCase("H")) {
                 continue;
             }
-            String current_val = atom.getProperty(descriptor).toString();
-            
-            if (current_val.equals("O.co2")) {
-            	// FIXME: look into this and fix properly
-            		current_val = "O.2";
-            }
+            atom.setProperty(descriptor, encode(atom.getProperty(descriptor).toString()));
+        }
+    }
 
-            	Integer encoded_val = encoder_map.get(current_val);
-            	if (encoded_val == null) throw new Exception("Unknown atom type code:" + current_val);
-            	atom.setProperty(descriptor, encoded_val);
+    public int encode(String current_val) throws Exception {
+        if (current_val.equals("O.co2")) {
+            // FIXME: look into this and fix properly
+            current_val = "O.2";
         }
+
+        Integer encoded_val = encoder_map.get(current_val);
+        if (encoded_val == null) throw new Exception("Unknown atom type code:" + current_val);
+        return encoded_val;
     }
 }
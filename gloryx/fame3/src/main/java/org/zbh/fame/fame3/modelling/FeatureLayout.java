@@ -0,0 +1,158 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import org.zbh.fame.fame3.globals.Globals;
+import org.zbh.fame.fame3.modelling.descriptors.circular.CircularData;
+import org.zbh.fame.fame3.modelling.descriptors.circular.SignatureIndex;
+
+import java.util.*;
+
+/**
+ * Maps the input fields of a model to the descriptors in {@link AtomDescriptors}.
+ *
+ * The layout is resolved once per model. {@link #createMatrix(AtomDescriptors)} then fills a
+ * {@link FeatureMatrix} column by column and applies the model specific steps of the original
+ * property based pipeline: circular descriptors deeper than the model depth are dropped, missing
+ * values are imputed, atom types are encoded and missing fingerprint counts are set to zero.
+ * Values that would have been null in the atom properties are marked as missing.
+ */
+public class FeatureLayout {
+
+    private static final byte kind_base = 0;
+    private static final byte kind_atom_type = 1;
+    private static final byte kind_circular = 2;
+    private static final byte kind_fingerprint = 3;
+    private static final byte kind_unknown = 4;
+
+    private static final String atom_type_fld = "AtomType";
+    private static final String fingerprint_prefix = atom_type_fld + "_";
+
+    private Globals globals;
+    private String[] columns;
+    private byte[] kinds;
+    private int[] base_indices;
+    private int[] keys;
+    private int[] depths;
+    private boolean[] integer_columns;
+
+    public FeatureLayout(String[] columns, Globals globals) {
+        this.globals = globals;
+        this.columns = columns;
+        this.kinds = new byte[columns.length];
+        this.base_indices = new int[columns.length];
+        this.keys = new int[columns.length];
+        this.depths = new int[columns.length];
+        this.integer_columns = new boolean[columns.length];
+
+        Map<String, Integer> desc_indices = new HashMap<>();
+        for (int desc_idx = 0; desc_idx < DescriptorCalculator.desc_names.length; desc_idx++) {
+            desc_indices.put(DescriptorCalculator.desc_names[desc_idx], desc_idx);
+        }
+        SignatureIndex circ_index = SignatureIndex.forDescriptors(Arrays.asList(DescriptorCalculator.desc_names));
+        SignatureIndex fg_index = SignatureIndex.forDescriptors(Collections.singletonList(atom_type_fld));
+        for (int col = 0; col < columns.length; col++) {
+            String name = columns[col];
+            base_indices[col] = -1;
+            keys[col] = -1;
+            depths[col] = -1;
+            if (desc_indices.containsKey(name)) {
+                kinds[col] = kind_base;
+                base_indices[col] = desc_indices.get(name);
+            } else if (name.equals(atom_type_fld)) {
+                kinds[col] = kind_atom_type;
+                integer_columns[col] = true;
+            } else if (name.startsWith(fingerprint_prefix)) {
+                kinds[col] = kind_fingerprint;
+                keys[col] = fg_index.getKey(name);
+                integer_columns[col] = true;
+            } else {
+                keys[col] = circ_index.getKey(name);
+                if (keys[col] < 0) {
+                    kinds[col] = kind_unknown;
+                } else {
+                    kinds[col] = kind_circular;
+                    depths[col] = circ_index.getDepth(keys[col]);
+                }
+            }
+        }
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * @throws Exception if an atom type is not known to the model
+     */
+    public FeatureMatrix createMatrix(AtomDescriptors descriptors) throws Exception {
+        int atom_count = descriptors.getAtomCount();
+        FeatureMatrix matrix = new FeatureMatrix(descriptors.getAtomIndices(), columns, integer_columns);
+        boolean impute = globals.desc_groups.contains("ccdk");
+
+        for (int col = 0; col < columns.length; col++) {
+            switch (kinds[col]) {
+                case kind_base:
+                    for (int row = 0; row < atom_count; row++) {
+                        matrix.set(row, col, descriptors.getBaseValue(row, base_indices[col]));
+                    }
+                    continue;
+                case kind_atom_type:
+                    for (int row = 0; row < atom_count; row++) {
+                        matrix.set(row, col, globals.at_encoder.encode(descriptors.getAtomType(row)));
+                    }
+                    continue;
+                default:
+                    break;
+            }
+
+            CircularData data = null;
+            if (kinds[col] == kind_fingerprint) {
+                data = descriptors.getFingerprints();
+            } else if (kinds[col] == kind_circular && depths[col] <= globals.circ_depth) {
+                data = descriptors.getCircular();
+            }
+            double[] values = data != null && keys[col] >= 0 ? data.getValues(keys[col]) : null;
+            BitSet present = data != null && keys[col] >= 0 ? data.getPresent(keys[col]) : null;
+
+            // the fingerprints were always calculated after the imputation in FAME 3, so they are never imputed
+            Double fill;
+            if (kinds[col] == kind_fingerprint) {
+                fill = 0.0;
+            } else {
+                fill = impute ? globals.circ_imputer.getValue(columns[col]) : null;
+            }
+            for (int row = 0; row < atom_count; row++) {
+                if (present != null && present.get(row)) {
+                    matrix.set(row, col, values[row]);
+                } else if (fill != null) {
+                    matrix.set(row, col, fill);
+                } else {
+                    matrix.setMissing(row, col);
+                }
+            }
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,96 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import java.util.BitSet;
+
+/**
+ * Input of a model for the heavy atoms of one molecule: a dense matrix with one row per heavy atom
+ * and one column per input field of the model (see {@link FeatureLayout}).
+ */
+public class FeatureMatrix {
+
+    private int[] atom_indices;
+    private String[] columns;
+    private boolean[] integer_columns;
+    private double[][] values;
+    private BitSet missing;
+
+    FeatureMatrix(int[] atom_indices, String[] columns, boolean[] integer_columns) {
+        this.atom_indices = atom_indices;
+        this.columns = columns;
+        this.integer_columns = integer_columns;
+        this.values = new double[atom_indices.length][columns.length];
+        this.missing = new BitSet();
+    }
+
+    public int getAtomCount() {
+        return atom_indices.length;
+    }
+
+    /**
+     * @return index of the atom of the given row in the molecule
+     */
+    public int getAtomIndex(int row) {
+        return atom_indices[row];
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumn(int col) {
+        return columns[col];
+    }
+
+    public double get(int row, int col) {
+        return values[row][col];
+    }
+
+    public boolean isMissing(int row, int col) {
+        return missing.get(row * columns.length + col);
+    }
+
+    void set(int row, int col, double value) {
+        values[row][col] = value;
+    }
+
+    void setMissing(int row, int col) {
+        missing.set(row * columns.length + col);
+    }
+
+    /**
+     * @return the value as it would have been stored in the atom properties (null if missing)
+     */
+    public Object getRawValue(int row, int col) {
+        if (isMissing(row, col)) {
+            return null;
+        }
+        double value = values[row][col];
+        if (integer_columns[col] && value == Math.rint(value)) {
+            return (int) value;
+        }
+        return value;
+    }
+}
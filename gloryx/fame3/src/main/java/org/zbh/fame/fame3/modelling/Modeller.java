@@ -58,6 +58,9 @@ import java.util.*;
 public class Modeller {
 
     private Evaluator evaluator;
+    private CompiledTreeEnsemble compiled_model;
+    private int[] compiled_columns;
+    private FeatureLayout feature_layout;
     private NearestNeighbourSearch nns;
     private List<String> nns_attributes;
     public static final int bits_per_layer = 32;
@@ -76,6 +79,28 @@ public class Modeller {
         ModelEvaluatorFactory modelEvaluatorFactory = ModelEvaluatorFactory.newInstance();
         ModelEvaluator<?> modelEvaluator = modelEvaluatorFactory.newModelEvaluator(pmml);
         evaluator = modelEvaluator;
+        compiled_model = CompiledTreeEnsemble.compile(pmml);
+
+        List<InputField> inputFields = evaluator.getInputFields();
+        String[] columns = new String[inputFields.size()];
+        Map<String, Integer> column_indices = new HashMap<>();
+        for (int col = 0; col < columns.length; col++) {
+            columns[col] = inputFields.get(col).getName().getValue();
+            column_indices.put(columns[col], col);
+        }
+        feature_layout = new FeatureLayout(columns, globals);
+        if (compiled_model != null) {
+            compiled_columns = new int[compiled_model.getFeatureCount()];
+            for (int i = 0; i < compiled_columns.length; i++) {
+                Integer col = column_indices.get(compiled_model.getFeatureName(i));
+                if (col == null) {
+                    logger.info("Compiled model does not match the input fields, the generic PMML evaluator will be used.");
+                    compiled_model = null;
+                    break;
+                }
+                compiled_columns[i] = col;
+            }
+        }
 
         if (globals.use_AD) {
             setADModel(globals.AD_model_path, globals.AD_model_attrs_path);
@@ -198,8 +223,21 @@ public class Modeller {
         }
     }
 
+    public FeatureLayout getFeatureLayout() {
+        return feature_layout;
+    }
+
+    /**
+     * Predicts the heavy atoms of the molecule from a feature matrix created with {@link #getFeatureLayout()}.
+     * Only the results are written to the atom properties. If the applicability domain score is requested,
+     * the descriptors have to be present in the atom properties as well (with the atom types encoded).
+     *
+     * @param molecule the molecule, its atoms have to be in the same order as when the descriptors were calculated
+     * @param features the input of the model
+     */
     public void predict(
             IAtomContainer molecule
+            , FeatureMatrix features
             , double decision_threshold
             , boolean calc_AD_score
             , Predictions predictions
@@ -212,73 +250,103 @@ public class Modeller {
             }
         }
 
-        for (IAtom atom : molecule.atoms()) {
-            if (atom.getSymbol().equals("H")) {
-                continue;
-            }
+        double[] row = createCompiledRow();
+        double[] proba = new double[2];
+        for (int atom_row = 0; atom_row < features.getAtomCount(); atom_row++) {
+            IAtom atom = molecule.getAtom(features.getAtomIndex(atom_row));
 
-            Map<FieldName, FieldValue> arguments = new LinkedHashMap<>();
-            for(InputField inputField : evaluator.getInputFields()){
-                FieldName inputFieldName = inputField.getName();
-//                System.out.println(inputFieldName.getValue());
+            Double proba_yes;
+            Double proba_no;
+            if (scoreCompiled(features, atom_row, row, proba)) {
+                proba_yes = proba[0];
+                proba_no = proba[1];
+            } else {
+                Map<String, Double> outfields = evaluate(features, atom_row);
+                proba_yes = outfields.get(proba_yes_fld);
+                proba_no = outfields.get(proba_no_fld);
+            }
 
-                // The raw (ie. user-supplied) value could be any Java primitive value
-                Object rawValue = atom.getProperty(inputFieldName.toString());
-                if (rawValue == null && inputFieldName.toString().startsWith("AtomType_")) {
-                    rawValue = 0;
-                }
+            if (calc_AD_score) {
+                getADScore(atom, mol_attrs);
+            }
+            saveResult(atom, proba_yes, proba_no, decision_threshold, calc_AD_score, predictions);
+        }
+    }
 
-                // The raw value is passed through: 1) outlier treatment, 2) missing value treatment, 3) invalid value treatment and 4) type conversion
-                FieldValue inputFieldValue = inputField.prepare(rawValue);
+    /**
+     * @return a buffer for {@link #scoreCompiled(FeatureMatrix, int, double[], double[])}, or null if there is no compiled model
+     */
+    double[] createCompiledRow() {
+        return compiled_model != null ? new double[compiled_model.getFeatureCount()] : null;
+    }
 
-//                System.out.println(inputFieldValue.asString());
-                arguments.put(inputFieldName, inputFieldValue);
-            }
+    /**
+     * Scores one atom with the compiled model (see {@link CompiledTreeEnsemble}).
+     *
+     * @param row buffer created with {@link #createCompiledRow()}
+     * @param proba receives the probability of the yes class at index 0 and of the no class at index 1
+     * @return false if there is no compiled model or it cannot score the atom, the jpmml evaluator has to be used then
+     */
+    boolean scoreCompiled(FeatureMatrix features, int atom_row, double[] row, double[] proba) {
+        if (compiled_model == null) {
+            return false;
+        }
+        for (int i = 0; i < row.length; i++) {
+            int col = compiled_columns[i];
+            row[i] = features.isMissing(atom_row, col) ? compiled_model.prepare(null, i) : compiled_model.prepare(features.get(atom_row, col), i);
+        }
+        return compiled_model.score(row, proba);
+    }
 
-            Map<FieldName, ?> result = evaluator.evaluate(arguments);
-            List<TargetField> targetFields = evaluator.getTargetFields();
-            Map<String, ProbabilityDistribution> targetfields = new HashMap<>();
-            for(TargetField targetField : targetFields){
-                FieldName targetFieldName = targetField.getName();
-                targetfields.put(targetFieldName.getValue(), (ProbabilityDistribution) result.get(targetFieldName));
-            }
-            List<OutputField> outputFields = evaluator.getOutputFields();
-            Map<String, Double> outfields = new HashMap<>();
-            for(OutputField outputField : outputFields){
-                FieldName outputFieldName = outputField.getName();
+    private void saveResult(IAtom atom, Double proba_yes, Double proba_no, double decision_threshold, boolean calc_AD_score, Predictions predictions) {
+        Result res = new Result();
+        res.probability_yes = proba_yes;
+        res.probability_no = proba_no;
+        if (res.probability_yes >= decision_threshold) {
+            res.is_som = true;
+        } else {
+            res.is_som = false;
+        }
+        res.atom_id = atom.getProperty("Atom").toString();
+        if (calc_AD_score) {
+            res.AD_score = (double) atom.getProperty("AD_score");
+        }
+        atom.setProperty(is_som_fld, res.is_som);
+        atom.setProperty(proba_yes_fld, res.probability_yes);
+        atom.setProperty(proba_no_fld, res.probability_no);
+
+        if (predictions != null) {
+            predictions.addResult(
+                    res
+            );
+        }
+    }
 
-                outfields.put(outputFieldName.getValue(), (Double) result.get(outputFieldName));
-            }
+    /**
+     * Scores one atom with the generic jpmml evaluator.
+     *
+     * @return the output fields of the model, including {@link #proba_yes_fld} and {@link #proba_no_fld}
+     */
+    Map<String, Double> evaluate(FeatureMatrix features, int atom_row) {
+        Map<FieldName, FieldValue> arguments = new LinkedHashMap<>();
+        List<InputField> inputFields = evaluator.getInputFields();
+        for (int col = 0; col < inputFields.size(); col++) {
+            InputField inputField = inputFields.get(col);
+            arguments.put(inputField.getName(), inputField.prepare(features.getRawValue(atom_row, col)));
+        }
+        return evaluate(arguments);
+    }
 
-            if (calc_AD_score) {
-                getADScore(atom, mol_attrs);
-            }
+    private Map<String, Double> evaluate(Map<FieldName, FieldValue> arguments) {
+        Map<FieldName, ?> result = evaluator.evaluate(arguments);
+        List<OutputField> outputFields = evaluator.getOutputFields();
+        Map<String, Double> outfields = new HashMap<>();
+        for(OutputField outputField : outputFields){
+            FieldName outputFieldName = outputField.getName();
 
-//            System.out.println(outfields.get("probability_1"));
-//            System.out.println(outfields.get("probability_0"));
-//            System.out.println(targetfields.get(Globals.target_var).getResult());
-            Result res = new Result();
-            res.probability_yes = outfields.get(proba_yes_fld);
-            res.probability_no = outfields.get(proba_no_fld);
-            if (res.probability_yes >= decision_threshold) {
-                res.is_som = true;
-            } else {
-                res.is_som = false;
-            }
-            res.atom_id = atom.getProperty("Atom").toString();
-            if (calc_AD_score) {
-                res.AD_score = (double) atom.getProperty("AD_score");
-            }
-            atom.setProperty(is_som_fld, res.is_som);
-            atom.setProperty(proba_yes_fld, res.probability_yes);
-            atom.setProperty(proba_no_fld, res.probability_no);
-
-            if (predictions != null) {
-                predictions.addResult(
-                        res
-                );
-            }
+            outfields.put(outputFieldName.getValue(), (Double) result.get(outputFieldName));
         }
+        return outfields;
     }
 
     @SuppressWarnings("unused")
@@ -0,0 +1,180 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zbh.fame.fame3.globals.Globals;
+
+import java.util.*;
+
+/**
+ * Evaluates several FAME 3 models for the same molecule.
+ *
+ * The descriptors are calculated only once per molecule (see {@link DescriptorCalculator}), using the largest
+ * circular depth and fingerprint depth of all models. Each model then builds its own {@link FeatureMatrix}
+ * from them (see {@link FeatureLayout}) and writes its predictions to its own copy of the molecule.
+ */
+public class MultiModelPredictor {
+
+    private Map<String, Globals> models;
+    private Set<String> desc_groups;
+    private int circ_depth;
+    private int fing_depth;
+    private boolean use_AD;
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiModelPredictor.class.getName());
+
+    /**
+     * @param models the models to evaluate, mapped by the name that is used for the results
+     * @param use_AD whether to calculate the applicability domain scores
+     */
+    public MultiModelPredictor(Map<String, Globals> models, boolean use_AD) {
+        this.models = new LinkedHashMap<>();
+        this.desc_groups = new HashSet<>();
+        this.circ_depth = 0;
+        this.fing_depth = 0;
+        this.use_AD = use_AD;
+
+        for (Map.Entry<String, Globals> model : models.entrySet()) {
+            Globals globals = model.getValue();
+            if (!globals.isValid()) {
+                logger.error(globals.toString());
+                throw new IllegalArgumentException("Global parameters are invalid. Aborting...");
+            }
+            this.models.put(model.getKey(), globals);
+            this.desc_groups.addAll(globals.desc_groups);
+            this.circ_depth = Math.max(this.circ_depth, globals.circ_depth);
+            this.fing_depth = Math.max(this.fing_depth, globals.fing_depth);
+        }
+    }
+
+    public Map<String, Globals> getModels() {
+        return models;
+    }
+
+    /**
+     * Calculates the descriptors of the molecule and evaluates all models.
+     *
+     * If a model cannot be evaluated for the molecule, the heavy atoms of the molecule returned
+     * for this model have no {@link Modeller#is_som_fld} property.
+     *
+     * @param molecule the molecule, which is modified during the descriptor calculation
+     * @return a molecule annotated with the predictions of each model, mapped by the model name
+     */
+    public Map<String, IAtomContainer> predict(IAtomContainer molecule) {
+        String mol_name = molecule.getProperty(Globals.ID_PROP).toString();
+        Map<String, IAtomContainer> results = new LinkedHashMap<>();
+
+        AtomDescriptors descriptors;
+        try {
+            long startTime = System.nanoTime();
+            descriptors = calculateDescriptors(molecule);
+            long stopTime = System.nanoTime();
+            logger.debug("Descriptor calculation finished for " + mol_name + ". Elapsed time: " + Double.toString((stopTime - startTime) / 1e6) + " ms.");
+        } catch (Exception e) {
+            logger.error("Error: Exception while calculating descriptors: {}", mol_name, e);
+            for (String model_name : models.keySet()) {
+                results.put(model_name, molecule);
+            }
+            return results;
+        }
+
+        for (Map.Entry<String, Globals> model : models.entrySet()) {
+            IAtomContainer projected;
+            try {
+                projected = molecule.clone();
+            } catch (CloneNotSupportedException e) {
+                logger.error("Error: could not copy molecule for model {}: {}", model.getKey(), mol_name, e);
+                results.put(model.getKey(), molecule);
+                continue;
+            }
+            try {
+                predict(projected, descriptors, model.getValue());
+            } catch (Exception e) {
+                logger.error("Error: Exception while predicting with model {}: {}", model.getKey(), mol_name, e);
+            }
+            results.put(model.getKey(), projected);
+        }
+        return results;
+    }
+
+    /**
+     * Calculates the descriptors of the molecule for all models.
+     */
+    AtomDescriptors calculateDescriptors(IAtomContainer molecule) throws Exception {
+        AtomDescriptors descriptors = new DescriptorCalculator(molecule).calculate(desc_groups, circ_depth, fing_depth);
+        if (use_AD) {
+            // the applicability domain model works with the atom properties
+            descriptors.writeProperties();
+        }
+        return descriptors;
+    }
+
+    private void predict(IAtomContainer molecule, AtomDescriptors descriptors, Globals globals) throws Exception {
+        FeatureMatrix features = globals.modeller.getFeatureLayout().createMatrix(descriptors);
+
+        if (use_AD) {
+            if (globals.desc_groups.contains("ccdk")) {
+                if (globals.circ_depth < circ_depth) {
+                    removeDeeperSignatures(molecule, descriptors.getCircularSignatures(), globals.circ_depth);
+                }
+
+                // impute missing values for circular descriptors
+                globals.circ_imputer.impute(molecule, descriptors.getCircularSignatures());
+            }
+
+            // encode atom types
+            globals.at_encoder.encode(molecule);
+        }
+
+        double threshold = Double.parseDouble(globals.model_hyperparams.get("decision_threshold"));
+        if (!globals.decision_threshold.equals("model")) {
+            threshold = Double.parseDouble(globals.decision_threshold);
+        }
+        globals.modeller.predict(
+                molecule
+                , features
+                , threshold
+                , use_AD
+                , null
+        );
+    }
+    private static void removeDeeperSignatures(IAtomContainer molecule, Set<String> ccdk_signatures, int depth) {
+        List<String> deeper = new ArrayList<>();
+        for (String signature : ccdk_signatures) {
+            int signature_depth = Integer.parseInt(signature.substring(signature.lastIndexOf('_') + 1));
+            if (signature_depth > depth) {
+                deeper.add(signature);
+            }
+        }
+        for (IAtom atm : molecule.atoms()) {
+            for (String signature : deeper) {
+                atm.removeProperty(signature);
+            }
+        }
+    }
+}
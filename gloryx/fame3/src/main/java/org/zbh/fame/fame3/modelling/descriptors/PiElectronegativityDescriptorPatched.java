@@ -0,0 +1,82 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling.descriptors;
+
+import org.openscience.cdk.charges.PiElectronegativity;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.qsar.DescriptorValue;
+import org.openscience.cdk.qsar.descriptors.atomic.PiElectronegativityDescriptor;
+import org.openscience.cdk.qsar.result.DoubleResult;
+import org.openscience.cdk.tools.LonePairElectronChecker;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+
+/**
+ * Same as {@link PiElectronegativityDescriptor}, but the Gasteiger PEPE charge model is only calculated once per molecule.
+ *
+ * The original descriptor clones the molecule for every atom, so {@link PiElectronegativity}
+ * never recognizes the molecule it has already calculated the charges for and runs the iterations again for each atom.
+ * Here, the prepared clone is created when a new molecule is seen and the electronegativity of every atom
+ * is calculated on it and cached.
+ */
+public class PiElectronegativityDescriptorPatched extends PiElectronegativityDescriptor {
+
+    private PiElectronegativity electronegativity = new PiElectronegativity();
+
+    @Override
+    public DescriptorValue calculate(IAtom atom, IAtomContainer ac) {
+        if (!isCachedAtomContainer(ac)) {
+            Object[] params = getParameters();
+            int maxIterations = (Integer) params[0];
+            boolean lpeChecker = (Boolean) params[1];
+            int maxResonStruc = (Integer) params[2];
+
+            IAtomContainer clone;
+            try {
+                clone = ac.clone();
+                AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(clone);
+                if (lpeChecker) {
+                    // the original descriptor also saturates the given molecule and not the clone
+                    LonePairElectronChecker lpcheck = new LonePairElectronChecker();
+                    lpcheck.saturate(ac);
+                }
+            } catch (CloneNotSupportedException | CDKException e) {
+                return new DescriptorValue(getSpecification(), getParameterNames(), getParameters(), new DoubleResult(
+                        Double.NaN), getDescriptorNames(), null);
+            }
+
+            if (maxIterations != -1 && maxIterations != 0) electronegativity.setMaxIterations(maxIterations);
+            if (maxResonStruc != -1 && maxResonStruc != 0) electronegativity.setMaxResonStruc(maxResonStruc);
+
+            for (int i = 0; i < ac.getAtomCount(); i++) {
+                // the charges are only calculated for the first atom, the following calls reuse them
+                double result = electronegativity.calculatePiElectronegativity(clone, clone.getAtom(i));
+                cacheDescriptorValue(ac.getAtom(i), ac, new DoubleResult(result));
+            }
+        }
+        return new DescriptorValue(getSpecification(), getParameterNames(), getParameters(), getCachedDescriptorValue(atom),
+                getDescriptorNames());
+    }
+}
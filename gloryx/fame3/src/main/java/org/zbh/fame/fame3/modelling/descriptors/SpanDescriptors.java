@@ -0,0 +1,205 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling.descriptors;
+
+import org.openscience.cdk.graph.PathTools;
+import org.openscience.cdk.graph.matrix.AdjacencyMatrix;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+import java.util.*;
+
+/**
+ * Topological distances needed for the SPAN descriptors (taken from SmartCyp): the largest
+ * topological distance from each heavy atom to any atom of the molecule and the largest
+ * topological distance in the whole molecule, both including the hydrogen atoms.
+ *
+ * Instead of running Floyd-Warshall over the full (explicit hydrogen) adjacency matrix, a breadth-first
+ * search is started from every heavy atom over the heavy atom graph only. A hydrogen bonded to exactly one
+ * heavy atom is always one bond further away than that atom, so it is accounted for by adding one to the
+ * distance of heavy atoms that carry hydrogens. For structures where this does not hold
+ * (hydrogens bonded to hydrogens or to more than one atom, disconnected graphs) the Floyd-Warshall
+ * calculation is used, so the values are always the same as before.
+ */
+public class SpanDescriptors {
+
+    private int[] max_distances;
+    private int longest_distance;
+
+    private SpanDescriptors(int[] max_distances, int longest_distance) {
+        this.max_distances = max_distances;
+        this.longest_distance = longest_distance;
+    }
+
+    /**
+     * @return the largest topological distance from the heavy atom (by its position in the given indices) to any atom
+     */
+    public int getMaxDistance(int heavy_atom) {
+        return max_distances[heavy_atom];
+    }
+
+    /**
+     * @return the largest topological distance between any two atoms of the molecule
+     */
+    public int getLongestDistance() {
+        return longest_distance;
+    }
+
+    /**
+     * @param molecule the molecule with explicit hydrogens
+     * @param heavy_atoms indices of the heavy atoms in the molecule
+     */
+    public static SpanDescriptors calculate(IAtomContainer molecule, int[] heavy_atoms) {
+        int atom_count = heavy_atoms.length;
+        if (atom_count == 0) {
+            return calculateFloyd(molecule, heavy_atoms);
+        }
+
+        Map<IAtom, Integer> atom_map = new IdentityHashMap<>();
+        for (int idx = 0; idx < atom_count; idx++) {
+            atom_map.put(molecule.getAtom(heavy_atoms[idx]), idx);
+        }
+
+        // heavy atom graph and the number of hydrogens on each heavy atom
+        int[] hydrogens = new int[atom_count];
+        int[] degrees = new int[atom_count];
+        Map<IAtom, Integer> hydrogen_degrees = new IdentityHashMap<>();
+        for (IBond bond : molecule.bonds()) {
+            if (bond.getAtomCount() != 2) {
+                return calculateFloyd(molecule, heavy_atoms);
+            }
+            Integer first = atom_map.get(bond.getAtom(0));
+            Integer second = atom_map.get(bond.getAtom(1));
+            if (first != null && second != null) {
+                degrees[first]++;
+                degrees[second]++;
+            } else if (first != null || second != null) {
+                IAtom hydrogen = first == null ? bond.getAtom(0) : bond.getAtom(1);
+                hydrogen_degrees.merge(hydrogen, 1, Integer::sum);
+                hydrogens[first != null ? first : second]++;
+            } else {
+                // bond between two hydrogens
+                return calculateFloyd(molecule, heavy_atoms);
+            }
+        }
+        if (atom_map.size() + hydrogen_degrees.size() != molecule.getAtomCount()) {
+            // isolated hydrogens
+            return calculateFloyd(molecule, heavy_atoms);
+        }
+        for (int degree : hydrogen_degrees.values()) {
+            if (degree != 1) {
+                return calculateFloyd(molecule, heavy_atoms);
+            }
+        }
+
+        int[][] adjacency = new int[atom_count][];
+        for (int idx = 0; idx < atom_count; idx++) {
+            adjacency[idx] = new int[degrees[idx]];
+            degrees[idx] = 0;
+        }
+        for (IBond bond : molecule.bonds()) {
+            Integer first = atom_map.get(bond.getAtom(0));
+            Integer second = atom_map.get(bond.getAtom(1));
+            if (first != null && second != null) {
+                adjacency[first][degrees[first]++] = second;
+                adjacency[second][degrees[second]++] = first;
+            }
+        }
+
+        int[] max_distances = new int[atom_count];
+        int longest_distance = 0;
+        int[] distances = new int[atom_count];
+        int[] queue = new int[atom_count];
+        for (int source = 0; source < atom_count; source++) {
+            Arrays.fill(distances, -1);
+            distances[source] = 0;
+            queue[0] = source;
+            int head = 0;
+            int tail = 1;
+            while (head < tail) {
+                int current = queue[head++];
+                for (int nb : adjacency[current]) {
+                    if (distances[nb] < 0) {
+                        distances[nb] = distances[current] + 1;
+                        queue[tail++] = nb;
+                    }
+                }
+            }
+            if (tail != atom_count) {
+                // disconnected
+                return calculateFloyd(molecule, heavy_atoms);
+            }
+
+            int source_h = hydrogens[source] > 0 ? 1 : 0;
+            // the atom itself and its own hydrogens (two hydrogens on the same atom are two bonds apart)
+            int max_distance = source_h;
+            longest_distance = Math.max(longest_distance, hydrogens[source] > 1 ? 2 : source_h);
+            for (int target = 0; target < atom_count; target++) {
+                if (target == source) {
+                    continue;
+                }
+                int target_h = hydrogens[target] > 0 ? 1 : 0;
+                max_distance = Math.max(max_distance, distances[target] + target_h);
+                longest_distance = Math.max(longest_distance, distances[target] + target_h + source_h);
+            }
+            max_distances[source] = max_distance;
+        }
+
+        return new SpanDescriptors(max_distances, longest_distance);
+    }
+
+    /**
+     * Calculates the distances from the full topological distance matrix (Floyd-Warshall),
+     * which is how the descriptors were calculated originally.
+     *
+     * @param molecule the molecule with explicit hydrogens
+     * @param heavy_atoms indices of the heavy atoms in the molecule
+     */
+    public static SpanDescriptors calculateFloyd(IAtomContainer molecule, int[] heavy_atoms) {
+        // takes an adjacency matrix and outputs and MaxTopDist matrix of the same size
+        int[][] minTopDistMatrix = PathTools.computeFloydAPSP(AdjacencyMatrix.getMatrix(molecule));
+
+        // find the longest Path of all, "longestMaxTopDistInMolecule"
+        int longest_distance = 0;
+        for (int atomNr = 0; atomNr < molecule.getAtomCount(); atomNr++) {
+            for (int i = 0; i < molecule.getAtomCount(); i++) {
+                if (minTopDistMatrix[atomNr][i] > longest_distance) {
+                    longest_distance = minTopDistMatrix[atomNr][i];
+                }
+            }
+        }
+
+        int[] max_distances = new int[heavy_atoms.length];
+        for (int idx = 0; idx < heavy_atoms.length; idx++) {
+            for (int compAtomNr = 0; compAtomNr < molecule.getAtomCount(); compAtomNr++) {
+                if (max_distances[idx] < minTopDistMatrix[heavy_atoms[idx]][compAtomNr]) {
+                    max_distances[idx] = minTopDistMatrix[heavy_atoms[idx]][compAtomNr];
+                }
+            }
+        }
+
+        return new SpanDescriptors(max_distances, longest_distance);
+    }
+}
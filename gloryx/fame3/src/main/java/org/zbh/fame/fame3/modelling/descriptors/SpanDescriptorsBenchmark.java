@@ -0,0 +1,112 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+   Copyright (C) 2013  Johannes Kirchmair <johannes.kirchmair@univie.ac.at>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling.descriptors;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the breadth-first SPAN calculation ({@link SpanDescriptors#calculate(IAtomContainer, int[])})
+ * with the original Floyd-Warshall one ({@link SpanDescriptors#calculateFloyd(IAtomContainer, int[])})
+ * on peptide chains of increasing length. Both results are checked for equality and the average
+ * time per molecule is printed for each size.
+ *
+ * Usage: SpanDescriptorsBenchmark [max_residues] [repeats]
+ */
+public class SpanDescriptorsBenchmark {
+
+    // residues cycled through when building the test peptides (includes rings and branching)
+    private static final String[] residues = new String[] {
+            "NC(C)C(=O)", "NC(Cc1ccccc1)C(=O)", "NC(CO)C(=O)", "NC(CC(=O)O)C(=O)",
+            "NC(Cc1c[nH]c2ccccc12)C(=O)", "NC(CCCCN)C(=O)", "N1CCCC1C(=O)", "NC(CS)C(=O)"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int max_residues = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        SmilesParser parser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+        System.out.println("residues\tatoms\tfloyd_ms\tbfs_ms\tspeedup");
+        for (int size = 1; size <= max_residues; size *= 2) {
+            StringBuilder smiles = new StringBuilder();
+            for (int residue = 0; residue < size; residue++) {
+                smiles.append(residues[residue % residues.length]);
+            }
+            smiles.append("O");
+            IAtomContainer molecule = parser.parseSmiles(smiles.toString());
+            AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
+            AtomContainerManipulator.convertImplicitToExplicitHydrogens(molecule);
+
+            List<Integer> heavy_atoms = new ArrayList<>();
+            for (int atomNr = 0; atomNr < molecule.getAtomCount(); atomNr++) {
+                if (!molecule.getAtom(atomNr).getSymbol().equals("H")) {
+                    heavy_atoms.add(atomNr);
+                }
+            }
+            int[] atom_indices = new int[heavy_atoms.size()];
+            for (int idx = 0; idx < atom_indices.length; idx++) {
+                atom_indices[idx] = heavy_atoms.get(idx);
+            }
+
+            SpanDescriptors floyd = SpanDescriptors.calculateFloyd(molecule, atom_indices);
+            SpanDescriptors bfs = SpanDescriptors.calculate(molecule, atom_indices);
+            if (floyd.getLongestDistance() != bfs.getLongestDistance()) {
+                throw new IllegalStateException(String.format("Longest distance differs for %d residues: %d != %d"
+                        , size, floyd.getLongestDistance(), bfs.getLongestDistance()));
+            }
+            for (int idx = 0; idx < atom_indices.length; idx++) {
+                if (floyd.getMaxDistance(idx) != bfs.getMaxDistance(idx)) {
+                    throw new IllegalStateException(String.format("Maximum distance of atom %d differs for %d residues: %d != %d"
+                            , atom_indices[idx] + 1, size, floyd.getMaxDistance(idx), bfs.getMaxDistance(idx)));
+                }
+            }
+
+            double floyd_ms = time(molecule, atom_indices, repeats, true);
+            double bfs_ms = time(molecule, atom_indices, repeats, false);
+            System.out.println(String.format("%d\t%d\t%.3f\t%.3f\t%.1f"
+                    , size, molecule.getAtomCount(), floyd_ms, bfs_ms, floyd_ms / bfs_ms));
+        }
+    }
+
+    private static double time(IAtomContainer molecule, int[] atom_indices, int repeats, boolean floyd) {
+        // warm up
+        for (int rep = 0; rep < repeats; rep++) {
+            run(molecule, atom_indices, floyd);
+        }
+        long start = System.nanoTime();
+        for (int rep = 0; rep < repeats; rep++) {
+            run(molecule, atom_indices, floyd);
+        }
+        return (System.nanoTime() - start) / 1e6 / repeats;
+    }
+
+    private static SpanDescriptors run(IAtomContainer molecule, int[] atom_indices, boolean floyd) {
+        return floyd ? SpanDescriptors.calculateFloyd(molecule, atom_indices) : SpanDescriptors.calculate(molecule, atom_indices);
+    }
+}
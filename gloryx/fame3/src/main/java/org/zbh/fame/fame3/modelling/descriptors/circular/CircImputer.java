@@ -49,6 +49,13 @@ public class CircImputer {
         }
     }
 
+    /**
+     * @return the imputed value of the descriptor or null if it has none
+     */
+    public Double getValue(String desc_name) {
+        return desc_map.get(desc_name);
+    }
+
     public void impute(IAtomContainer mol, Set<String> sigs) {
         for (IAtom atm : mol.atoms()) {
             for (String desc_name : desc_map.keySet()) {
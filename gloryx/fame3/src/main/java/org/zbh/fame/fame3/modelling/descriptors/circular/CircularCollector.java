@@ -22,159 +22,171 @@
 
 package org.zbh.fame.fame3.modelling.descriptors.circular;
 
-import org.openscience.cdk.atomtype.SybylAtomTypeMatcher;
-import org.openscience.cdk.config.AtomTypeFactory;
-import org.openscience.cdk.interfaces.IAtom;
-import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.interfaces.IAtomType;
-import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.silent.SilentChemObjectBuilder;
-
-import java.io.InputStream;
 import java.util.*;
 
-public class CircularCollector implements NeighborhoodCollector {
+/**
+ * Aggregates descriptor values of the neighbors of each atom by descriptor, Sybyl atom type of the neighbor
+ * and depth (circular descriptors). The values are summed up in primitive accumulators indexed by the
+ * signature keys of a {@link SignatureIndex} and only the signatures that occur are written
+ * to the resulting {@link CircularData}. The neighborhoods of all atoms are given at once as {@link NeighborhoodShells}.
+ */
+public class CircularCollector {
 
     public interface Aggregator {
 
-        Object combine(List<Object> to_combine);
+        double combine(double sum, int count);
     }
 
     public static class SumAggregator implements Aggregator {
 
         @Override
-        public Object combine(List<Object> to_combine) {
-            double result = 0;
-            for (Object val : to_combine) {
-                result += Double.parseDouble(val.toString());
-            }
-            return result;
+        public double combine(double sum, int count) {
+            return sum;
         }
     }
 
     public static class MeanAggregator implements Aggregator {
 
         @Override
-        public Object combine(List<Object> to_combine) {
-            double result = 0;
-            for (Object val : to_combine) {
-                result += Double.parseDouble(val.toString());
-            }
-            return result / to_combine.size();
+        public double combine(double sum, int count) {
+            return sum / count;
         }
     }
 
     public static class CountJoiner implements Aggregator {
 
         @Override
-        public Object combine(List<Object> to_combine) {
-            return to_combine.size();
+        public double combine(double sum, int count) {
+            return count;
         }
     }
 
-    private static final InputStream stream = SybylAtomTypeMatcher.getInstance(SilentChemObjectBuilder.getInstance()).getClass().getClassLoader().getResourceAsStream("org/openscience/cdk/dict/data/sybyl-atom-types.owl");
-    private static final AtomTypeFactory factory = AtomTypeFactory.getInstance(stream, "owl", SilentChemObjectBuilder.getInstance());
-    private static final IAtomType[] types = factory.getAllAtomTypes();
+    /**
+     * Provides the atom types and descriptor values of the atoms.
+     */
+    public interface AtomValues {
+
+        String getAtomType(int atom);
+
+        /**
+         * @param desc_ordinal position of the descriptor in the list given to the collector
+         */
+        double getValue(int atom, int desc_ordinal);
+    }
 
-    private Map<IAtom, Set<NeighborData>> molecule_map;
-    private List<String> descriptors;
-    private Aggregator default_joiner = new SumAggregator();
-    private Map<String, Aggregator> joiners;
+    private SignatureIndex index;
+    private Aggregator default_joiner;
+    private AtomValues values;
+    private CircularData data;
     private int depth_reached = -1;
     private boolean ignore_zero_depth = true;
 
-    CircularCollector(List<String> descriptors) {
-        this.descriptors = new ArrayList<>(descriptors);
-        this.molecule_map = new HashMap<>();
-        this.joiners = new TreeMap<>();
-    }
+    private int[] type_ordinals;
+    private String invalid_type = null;
 
-    public CircularCollector(List<String> descriptors, Aggregator default_joiner) {
-        this(descriptors);
-        this.default_joiner = default_joiner;
-    }
+    // accumulators of the atom currently being collected
+    private int current_atom = -1;
+    private double[] sums;
+    private int[] counts;
+    private int[] touched;
+    private int touched_count = 0;
 
-    CircularCollector(List<String> descriptors, Aggregator default_joiner, boolean ignore_zero_depth) {
-        this(descriptors);
-        this.ignore_zero_depth = ignore_zero_depth;
+    public CircularCollector(List<String> descriptors, Aggregator default_joiner, AtomValues values, int atom_count) {
+        this.index = SignatureIndex.forDescriptors(descriptors);
         this.default_joiner = default_joiner;
+        this.values = values;
+        this.data = new CircularData(index, atom_count);
+
+        this.type_ordinals = new int[atom_count];
+        for (int atom = 0; atom < atom_count; atom++) {
+            type_ordinals[atom] = index.getTypeOrdinal(values.getAtomType(atom));
+        }
+
+        this.sums = new double[index.getKeyCount()];
+        this.counts = new int[index.getKeyCount()];
+        this.touched = new int[index.getKeyCount()];
     }
 
-    CircularCollector(List<String> descriptors, Map<String, Aggregator> joiners, boolean ignore_zero_depth) {
-        this(descriptors);
-        this.joiners = joiners;
+    public CircularCollector(List<String> descriptors, Aggregator default_joiner, AtomValues values, int atom_count, boolean ignore_zero_depth) {
+        this(descriptors, default_joiner, values, atom_count);
         this.ignore_zero_depth = ignore_zero_depth;
     }
 
-    @Override
-    public void collect(IAtom atm, Set<IAtom> neighbors, int current_depth) {
-        if (ignore_zero_depth && current_depth == 0) {
-            return;
+    /**
+     * Collects the precomputed neighborhoods of all atoms. The atoms of the shells
+     * are the rows of the atoms in the {@link AtomValues}.
+     *
+     * @param shells the neighborhoods
+     * @param depth the maximum depth to collect, at most the depth of the shells
+     */
+    public void collect(NeighborhoodShells shells, int depth) {
+        if (depth > shells.getDepth()) {
+            throw new IllegalArgumentException("Neighborhoods were only calculated up to depth " + shells.getDepth());
         }
 
-        if (current_depth > depth_reached) {
-            depth_reached = current_depth;
+        int[] members = shells.getMembers();
+        int starting_depth = ignore_zero_depth ? 1 : 0;
+        for (int atom = 0; atom < shells.getAtomCount(); atom++) {
+            flush();
+            current_atom = atom;
+            for (int shell = starting_depth; shell <= depth; shell++) {
+                int end = shells.getShellEnd(atom, shell);
+                for (int i = shells.getShellStart(atom, shell); i < end; i++) {
+                    add(members[i], shell);
+                }
+            }
         }
+        if (shells.getAtomCount() > 0 && depth > depth_reached) {
+            depth_reached = depth;
+        }
+    }
 
-        if (!molecule_map.containsKey(atm)) {
-            molecule_map.put(atm, new HashSet<>());
+    private void add(int nb_idx, int current_depth) {
+        int type = type_ordinals[nb_idx];
+        if (type < 0) {
+            invalid_type = values.getAtomType(nb_idx);
+            return;
         }
-        for (IAtom nb : neighbors) {
-            for (String desc : descriptors) {
-                molecule_map.get(atm).add(new NeighborData(
-                        nb
-                        , nb.getProperty("AtomType").toString()
-                        , desc
-                        , current_depth
-                        , nb.getProperty(desc)
-                ));
+        int desc_count = index.getDescriptorCount();
+        for (int desc = 0; desc < desc_count; desc++) {
+            int key = index.getKey(desc, type, current_depth);
+            if (counts[key] == 0) {
+                touched[touched_count++] = key;
             }
+            sums[key] += values.getValue(nb_idx, desc);
+            counts[key]++;
         }
     }
 
-    public Set<String> getSignatures() {
-        return joiners.keySet();
-    }
-
-    public void writeData(IAtomContainer mol) throws Exception {
-        int starting_depth = 0;
-        if (ignore_zero_depth) {
-            starting_depth = 1;
-        }
-
-        if (joiners.isEmpty()) {
-            for (String desc : this.descriptors) {
-                for (IAtomType tp : types) {
-                    for (int depth = starting_depth; depth <= depth_reached; depth++) {
-                        joiners.put(String.format("%s_%s_%d", desc, tp.getAtomTypeName(), depth), default_joiner.getClass().newInstance());
-                    }
-                }
-            }
+    private void flush() {
+        for (int i = 0; i < touched_count; i++) {
+            int key = touched[i];
+            data.set(key, current_atom, default_joiner.combine(sums[key], counts[key]));
+            sums[key] = 0;
+            counts[key] = 0;
         }
+        touched_count = 0;
+    }
 
-        for (IAtom atm : mol.atoms()) {
-            if (ignore_zero_depth && atm.getSymbol().equals("H")) {
-                continue;
-            }
-            for (String signature : joiners.keySet()) {
-                atm.setProperty(signature, null);
-            }
-            Map<String, List<Object>> sig_val_map = new HashMap<>();
-            for (NeighborData data : molecule_map.get(atm)) {
-                String signature = data.getSignature();
-                if (joiners.containsKey(signature)) {
-                    if (!sig_val_map.containsKey(signature)) {
-                        sig_val_map.put(signature, new ArrayList<>());
-                    }
-                    sig_val_map.get(signature).add(data.getValue());
-                } else {
-                    throw new Exception("invalid signature");
-                }
-            }
+    /**
+     * @return all possible signatures for the depths that were collected
+     */
+    public Set<String> getSignatures() {
+        return index.getSignatures(ignore_zero_depth ? 1 : 0, depth_reached);
+    }
 
-            for (String signature : sig_val_map.keySet()) {
-                atm.setProperty(signature, joiners.get(signature).combine(sig_val_map.get(signature)));
-            }
+    /**
+     * Finishes the collection.
+     *
+     * @return the aggregated values
+     * @throws Exception if an atom has a type that is not a Sybyl atom type
+     */
+    public CircularData getData() throws Exception {
+        flush();
+        current_atom = -1;
+        if (invalid_type != null) {
+            throw new Exception("invalid signature: unknown atom type " + invalid_type);
         }
+        return data;
     }
 }
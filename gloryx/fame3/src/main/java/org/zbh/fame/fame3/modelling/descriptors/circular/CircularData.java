@@ -0,0 +1,86 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling.descriptors.circular;
+
+import java.util.*;
+
+/**
+ * Values of circular descriptors (or fingerprints) for the heavy atoms of a molecule.
+ *
+ * Values are stored per signature (identified by its key in the {@link SignatureIndex}) as a column
+ * over the atoms, only signatures that have a value for at least one atom are present.
+ */
+public class CircularData {
+
+    private final SignatureIndex index;
+    private final int atom_count;
+    private final Map<Integer, double[]> values;
+    private final Map<Integer, BitSet> present;
+
+    public CircularData(SignatureIndex index, int atom_count) {
+        this.index = index;
+        this.atom_count = atom_count;
+        this.values = new HashMap<>();
+        this.present = new HashMap<>();
+    }
+
+    public SignatureIndex getIndex() {
+        return index;
+    }
+
+    public int getAtomCount() {
+        return atom_count;
+    }
+
+    public void set(int key, int atom, double value) {
+        double[] column = values.get(key);
+        if (column == null) {
+            column = new double[atom_count];
+            values.put(key, column);
+            present.put(key, new BitSet(atom_count));
+        }
+        column[atom] = value;
+        present.get(key).set(atom);
+    }
+
+    /**
+     * @return the values of the signature for all atoms or null if no atom has a value
+     */
+    public double[] getValues(int key) {
+        return values.get(key);
+    }
+
+    /**
+     * @return the atoms that have a value for the signature or null if there are none
+     */
+    public BitSet getPresent(int key) {
+        return present.get(key);
+    }
+
+    /**
+     * @return the keys of the signatures that have a value for at least one atom
+     */
+    public Set<Integer> getKeys() {
+        return values.keySet();
+    }
+}
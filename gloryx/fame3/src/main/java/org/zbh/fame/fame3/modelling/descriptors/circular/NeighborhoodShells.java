@@ -0,0 +1,140 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling.descriptors.circular;
+
+/**
+ * Precomputed neighborhoods ("shells") of all heavy atoms of a molecule up to a given depth, stored as int arrays.
+ *
+ * Hydrogens are ignored. Shell 0 is the atom itself, shell 1 its neighbors and shell k + 1 the neighbors of the
+ * atoms in shell k without the atoms in shell k - 1. Note that this is not the same as grouping atoms by their topological distance, in
+ * odd-membered rings some atoms appear in more than one shell. The shells are calculated once per molecule
+ * and can be shared by all collectors that do not need a larger depth.
+ */
+public class NeighborhoodShells {
+
+    private final int atom_count;
+    private final int depth;
+    private final int[] shell_starts; // offsets into members, indexed by atom * (depth + 1) + shell
+    private final int[] members;
+
+    private NeighborhoodShells(int atom_count, int depth, int[] shell_starts, int[] members) {
+        this.atom_count = atom_count;
+        this.depth = depth;
+        this.shell_starts = shell_starts;
+        this.members = members;
+    }
+
+    /**
+     * @param adjacency the neighbors of each heavy atom (indices of heavy atoms)
+     * @param depth the maximum depth
+     */
+    public static NeighborhoodShells compute(int[][] adjacency, int depth) {
+        int atom_count = adjacency.length;
+        int[] shell_starts = new int[atom_count * (depth + 1) + 1];
+        int[] members = new int[Math.max(16, atom_count * (depth + 1))];
+        int size = 0;
+
+        int[] previous = new int[atom_count];
+        int[] current = new int[atom_count];
+        int[] next = new int[atom_count];
+        int[] in_previous = new int[atom_count];
+        int[] in_next = new int[atom_count];
+        int stamp = 0;
+
+        for (int atom = 0; atom < atom_count; atom++) {
+            int previous_size = 0;
+            int current_size = 1;
+            current[0] = atom;
+
+            for (int shell = 0; shell <= depth; shell++) {
+                // store the current shell
+                shell_starts[atom * (depth + 1) + shell] = size;
+                if (size + current_size > members.length) {
+                    int[] grown = new int[Math.max(members.length * 2, size + current_size)];
+                    System.arraycopy(members, 0, grown, 0, size);
+                    members = grown;
+                }
+                System.arraycopy(current, 0, members, size, current_size);
+                size += current_size;
+
+                if (shell == depth) {
+                    break;
+                }
+
+                // neighbors of the current shell that are not in the previous shell
+                stamp++;
+                for (int i = 0; i < previous_size; i++) {
+                    in_previous[previous[i]] = stamp;
+                }
+                int next_size = 0;
+                for (int i = 0; i < current_size; i++) {
+                    for (int nb : adjacency[current[i]]) {
+                        if (in_previous[nb] != stamp && in_next[nb] != stamp) {
+                            in_next[nb] = stamp;
+                            next[next_size++] = nb;
+                        }
+                    }
+                }
+
+                int[] swap = previous;
+                previous = current;
+                previous_size = current_size;
+                current = next;
+                current_size = next_size;
+                next = swap;
+            }
+        }
+        shell_starts[atom_count * (depth + 1)] = size;
+
+        return new NeighborhoodShells(atom_count, depth, shell_starts, members);
+    }
+
+    public int getAtomCount() {
+        return atom_count;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the array holding the members of all shells, see {@link #getShellStart(int, int)}
+     */
+    public int[] getMembers() {
+        return members;
+    }
+
+    /**
+     * @return the position of the first member of the shell in {@link #getMembers()}
+     */
+    public int getShellStart(int atom, int shell) {
+        return shell_starts[atom * (depth + 1) + shell];
+    }
+
+    /**
+     * @return the position after the last member of the shell in {@link #getMembers()}
+     */
+    public int getShellEnd(int atom, int shell) {
+        return shell_starts[atom * (depth + 1) + shell + 1];
+    }
+}
@@ -0,0 +1,167 @@
+/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package org.zbh.fame.fame3.modelling.descriptors.circular;
+
+import org.openscience.cdk.atomtype.SybylAtomTypeMatcher;
+import org.openscience.cdk.config.AtomTypeFactory;
+import org.openscience.cdk.interfaces.IAtomType;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers the signatures of circular descriptors. A signature ("descriptor_atomtype_depth")
+ * is identified by an integer key computed from the position of the descriptor, the position
+ * of the Sybyl atom type and the depth, so that circular descriptors can be accumulated and
+ * looked up without building the signature strings.
+ *
+ * There is one shared instance per list of descriptors (see {@link #forDescriptors(List)}).
+ */
+public class SignatureIndex {
+
+    public static final int max_depth = 31;
+    private static final int depth_slots = max_depth + 1;
+
+    private static final InputStream stream = SybylAtomTypeMatcher.getInstance(SilentChemObjectBuilder.getInstance()).getClass().getClassLoader().getResourceAsStream("org/openscience/cdk/dict/data/sybyl-atom-types.owl");
+    private static final AtomTypeFactory factory = AtomTypeFactory.getInstance(stream, "owl", SilentChemObjectBuilder.getInstance());
+    private static final String[] types;
+    private static final Map<String, Integer> type_ordinals = new HashMap<>();
+    static {
+        Set<String> names = new LinkedHashSet<>();
+        for (IAtomType tp : factory.getAllAtomTypes()) {
+            names.add(tp.getAtomTypeName());
+        }
+        types = names.toArray(new String[0]);
+        for (int i = 0; i < types.length; i++) {
+            type_ordinals.put(types[i], i);
+        }
+    }
+
+    private static final Map<List<String>, SignatureIndex> instances = new ConcurrentHashMap<>();
+
+    private final String[] descriptors;
+    private final Map<String, Integer> desc_ordinals;
+    private final String[] signatures;
+    private final Map<String, SortedSet<String>> signature_sets;
+
+    private SignatureIndex(List<String> descriptors) {
+        this.descriptors = descriptors.toArray(new String[0]);
+        this.desc_ordinals = new HashMap<>();
+        for (int i = 0; i < this.descriptors.length; i++) {
+            desc_ordinals.put(this.descriptors[i], i);
+        }
+        this.signatures = new String[getKeyCount()];
+        this.signature_sets = new ConcurrentHashMap<>();
+    }
+
+    public static SignatureIndex forDescriptors(List<String> descriptors) {
+        return instances.computeIfAbsent(new ArrayList<>(descriptors), SignatureIndex::new);
+    }
+
+    public int getDescriptorCount() {
+        return descriptors.length;
+    }
+
+    /**
+     * @return the number of possible keys, all keys are smaller than this
+     */
+    public int getKeyCount() {
+        return descriptors.length * types.length * depth_slots;
+    }
+
+    /**
+     * @return position of the Sybyl atom type or -1 if the type is not known
+     */
+    public int getTypeOrdinal(String atom_type) {
+        Integer ordinal = type_ordinals.get(atom_type);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public int getKey(int desc_ordinal, int type_ordinal, int depth) {
+        if (depth < 0 || depth > max_depth) {
+            throw new IllegalArgumentException("Unsupported depth: " + depth);
+        }
+        return (desc_ordinal * types.length + type_ordinal) * depth_slots + depth;
+    }
+
+    /**
+     * @return the key of the signature or -1 if it does not belong to this index
+     */
+    public int getKey(String signature) {
+        int last = signature.lastIndexOf('_');
+        int first = signature.indexOf('_');
+        if (first < 0 || last <= first) {
+            return -1;
+        }
+        Integer desc = desc_ordinals.get(signature.substring(0, first));
+        Integer type = type_ordinals.get(signature.substring(first + 1, last));
+        if (desc == null || type == null) {
+            return -1;
+        }
+        int depth;
+        try {
+            depth = Integer.parseInt(signature.substring(last + 1));
+        } catch (NumberFormatException exp) {
+            return -1;
+        }
+        if (depth < 0 || depth > max_depth) {
+            return -1;
+        }
+        return getKey(desc, type, depth);
+    }
+
+    public int getDepth(int key) {
+        return key % depth_slots;
+    }
+
+    public String getSignature(int key) {
+        String signature = signatures[key];
+        if (signature == null) {
+            int depth = key % depth_slots;
+            int type = (key / depth_slots) % types.length;
+            int desc = key / depth_slots / types.length;
+            signature = String.format("%s_%s_%d", descriptors[desc], types[type], depth);
+            signatures[key] = signature;
+        }
+        return signature;
+    }
+
+    /**
+     * @return all signatures for the given range of depths (sorted)
+     */
+    public SortedSet<String> getSignatures(int starting_depth, int depth) {
+        return signature_sets.computeIfAbsent(starting_depth + ":" + depth, k -> {
+            SortedSet<String> result = new TreeSet<>();
+            for (int desc = 0; desc < descriptors.length; desc++) {
+                for (int type = 0; type < types.length; type++) {
+                    for (int current_depth = starting_depth; current_depth <= depth; current_depth++) {
+                        result.add(getSignature(getKey(desc, type, current_depth)));
+                    }
+                }
+            }
+            return Collections.unmodifiableSortedSet(result);
+        });
+    }
+}
@@ -25,16 +25,14 @@ package main.java.data;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.openscience.cdk.CDKConstants;
-import org.openscience.cdk.DefaultChemObjectBuilder;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IAtomContainerSet;
-import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +58,7 @@ public class DatasetLoader {
 
 	private static final Logger logger = LoggerFactory.getLogger(DatasetLoader.class.getName());
 
-	private static final String ERROR_READING_SDF_FILE = "Error reading SD file. Filename: {}. Exiting.";
+	private static final String ERROR_READING_INPUT_FILE = "Error reading input file. Filename: {}. Exiting.";
 	
 	private static final String NUMBER_OF_PARENT_COMPOUNDS = "Number of parent compounds used for test: {}";
 	
@@ -81,10 +79,10 @@ public class DatasetLoader {
 				inputSmiles.add(smiles);
 			}
 
-		} else if (testParameters.inputIsSdf()){ 
+		} else if (testParameters.inputIsSdf() || testParameters.inputIsSmilesFile()){ 
 
-			// read in sdf and add all molecules to inputSmiles
-			readInFromSDF(inputSmiles, moleculeNames, filenames);					
+			// read in sdf or SMILES file and add all molecules to inputSmiles
+			readInFromFile(inputSmiles, moleculeNames, testParameters, filenames);					
 
 		} else {  // using database for comparison
 
@@ -216,44 +214,85 @@ public class DatasetLoader {
 
 
 	/**
-	 * Reads in molecules from user-specified SDF file.
-	 * Does not continue reading the sdf file if a null or broken SDF entry occurs, because that would mess up the numbering of the input molecules.
-	 * See comments within this method's source code for more details.
+	 * Opens the user-specified SD or SMILES file, so that the input molecules can be read while the predictions are made.
+	 * Exits with an error if the file cannot be read or contains no input molecules.
 	 * 
-	 * @param inputSmiles
-	 * @param moleculeNames
+	 * @param testParameters
 	 * @param filenames
+	 * @return reader of the input molecules, to be closed by the caller
 	 */
-	private void readInFromSDF(List<String> inputSmiles, List<String> moleculeNames, Filenames filenames) {
+	public InputMoleculeReader openInputFile(TestParameters testParameters, Filenames filenames) {
 		
-
-		try (IteratingSDFReader reader = new IteratingSDFReader(new FileInputStream(new File(
-				filenames.getUserInputFilename())), DefaultChemObjectBuilder.getInstance(), 
-				false)) { // this boolean indicates whether or not to continue reading the file if a 
-						  // null or broken SD entry occurs - however, if set to true, any broken molecules 
-						  // just disappear (hasNext not true for them) so the numbering of the input 
-						  // molecules would be all messed up. Therefore this value is set to false for now. //TODO
-
+		InputMoleculeReader reader = null;
+		try {
+			InputStream input = new FileInputStream(new File(filenames.getUserInputFilename()));
+			reader = testParameters.inputIsSmilesFile() ? InputMoleculeReader.fromSmilesFile(input) : InputMoleculeReader.fromSdf(input);
 			
-			while (reader.hasNext()) {
-				IAtomContainer molecule = reader.next();
-				inputSmiles.add(MoleculeManipulator.generateSmiles(molecule));
-
-				String moleculeTitle = molecule.getProperty(CDKConstants.TITLE);
-				moleculeNames.add(moleculeTitle);
-				
-			}
 		} catch (IOException e) { // includes FileNotFoundException
-			logger.error(ERROR_READING_SDF_FILE, filenames.getUserInputFilename());
+			logger.error(ERROR_READING_INPUT_FILE, filenames.getUserInputFilename());
 			
 			Errors.createErrorHtmlAndExit(filenames, Errors.INPUT_FILE_COULD_NOT_BE_READ);
 		} 
 		// If the SD file is corrupted or broken in some way, no exception is thrown. Therefore, check whether any input molecules were found.
 		// Note that as long as the first entry in the SD file can be read properly, there will be no indication of whether or not the whole file could be read.
-		if (inputSmiles.isEmpty()) {
-			logger.error("Input SD file is broken. No input molecules could be read. Exiting.");
+		if (!reader.hasNext()) {
+			if (testParameters.inputIsSmilesFile()) {
+				logger.error("Input SMILES file contains no input molecules. Exiting.");
+				
+				Errors.createErrorHtmlAndExit(filenames, Errors.NO_VALID_INPUT);
+			} else {
+				logger.error("Input SD file is broken. No input molecules could be read. Exiting.");
+				
+				Errors.createErrorHtmlAndExit(filenames, Errors.INPUT_SD_FILE_BROKEN);
+			}
+		}
+		return reader;
+	}
+	
+	
+	/**
+	 * Reads in all molecules from the user-specified SD or SMILES file, see {@link #openInputFile(TestParameters, Filenames)}.
+	 * 
+	 * @param inputSmiles
+	 * @param moleculeNames
+	 * @param testParameters
+	 * @param filenames
+	 */
+	private void readInFromFile(List<String> inputSmiles, List<String> moleculeNames, TestParameters testParameters, Filenames filenames) {
+		
+		try (InputMoleculeReader reader = openInputFile(testParameters, filenames)) {
+			
+			addAll(reader, inputSmiles, moleculeNames);
+			
+		} catch (IOException e) {
+			logger.error("Error closing input file {}.", filenames.getUserInputFilename(), e);
+		}
+	}
+	
+	/**
+	 * Reads in molecules in SDF format, adding the SMILES and the title of each molecule to the lists.
+	 * Does not continue reading if a null or broken SDF entry occurs, because that would mess up the numbering of the input molecules.
+	 * If the input is broken, no exception is thrown, so the caller has to check whether any molecules were read.
+	 * 
+	 * @param input
+	 * @param inputSmiles
+	 * @param moleculeNames
+	 * @throws IOException if the input could not be read
+	 */
+	public void readInFromSDF(InputStream input, List<String> inputSmiles, List<String> moleculeNames) throws IOException {
+
+		try (InputMoleculeReader reader = InputMoleculeReader.fromSdf(input)) {
 			
-			Errors.createErrorHtmlAndExit(filenames, Errors.INPUT_SD_FILE_BROKEN);
+			addAll(reader, inputSmiles, moleculeNames);
+		}
+	}
+	
+	
+	private static void addAll(InputMoleculeReader reader, List<String> inputSmiles, List<String> moleculeNames) {
+		while (reader.hasNext()) {
+			InputMolecule inputMolecule = reader.next();
+			inputSmiles.add(inputMolecule.getSmiles());
+			moleculeNames.add(inputMolecule.getName());
 		}
 	}
 
@@ -1,4 +1,4 @@
-/* Copyright (C) 2017, 2019  Martin Šícho <martin.sicho@vscht.cz>
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
  
     This file is part of GLORYx.
 
@@ -20,13 +20,47 @@
     along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
 */
 
-package org.zbh.fame.fame3.modelling.descriptors.circular;
 
-import org.openscience.cdk.interfaces.IAtom;
+package main.java.data;
 
-import java.util.Set;
+import org.openscience.cdk.interfaces.IAtomContainer;
 
-public interface NeighborhoodCollector {
+/**
+ * One input molecule as read from the input, see {@link InputMoleculeReader}.
+ * 
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class InputMolecule {
+	
+	private final int number; // position in the input, starting at 1
+	private final String smiles;
+	private final String name;
+	private final IAtomContainer molecule; // null if the input was read as SMILES and has not been parsed
+	
+	
+	public InputMolecule(int number, String smiles, String name, IAtomContainer molecule) {
+		this.number = number;
+		this.smiles = smiles;
+		this.name = name;
+		this.molecule = molecule;
+	}
+	
+	
+	public int getNumber() {
+		return number;
+	}
+	
+	public String getSmiles() {
+		return smiles;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public IAtomContainer getMolecule() {
+		return molecule;
+	}
 
-    void collect(IAtom atm, Set<IAtom> neighbors, int current_depth);
 }
@@ -0,0 +1,177 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package main.java.data;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import main.java.utils.molecule.MoleculeManipulator;
+
+/**
+ * Reads the input molecules one at a time, so that the predictions can start before the whole input is read 
+ * and the input does not have to be kept in memory. The input molecules are numbered in the order in which 
+ * they are read, starting at 1, including molecules that cannot be processed.
+ * <p>
+ * Molecules read from an SD file are passed on as parsed by the SDF reader, so they do not have to be parsed 
+ * again from SMILES. Molecules read as SMILES are not parsed here, so that the parsing is done by the prediction workers. 
+ * 
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class InputMoleculeReader implements Iterator<InputMolecule>, Closeable {
+	
+	private static final String ERROR_READING_INPUT = "Error reading input molecule {}. The remaining input is skipped.";
+	
+	private static final Logger logger = LoggerFactory.getLogger(InputMoleculeReader.class.getName());
+	
+	private final IteratingSDFReader sdfReader; // SD file
+	private final BufferedReader smilesReader; // SMILES file, one molecule per line, optionally followed by whitespace and the name
+	private final List<String> inputSmiles; // SMILES already in memory
+	private final List<String> inputNames;
+	
+	private int counter = 0; // number of the last input molecule read
+	private InputMolecule next;
+	
+	
+	private InputMoleculeReader(IteratingSDFReader sdfReader, BufferedReader smilesReader, List<String> inputSmiles, List<String> inputNames) {
+		this.sdfReader = sdfReader;
+		this.smilesReader = smilesReader;
+		this.inputSmiles = inputSmiles;
+		this.inputNames = inputNames;
+	}
+	
+	
+	/**
+	 * Reads molecules in SDF format. Does not continue reading if a null or broken SDF entry occurs, 
+	 * because that would mess up the numbering of the input molecules.
+	 */
+	public static InputMoleculeReader fromSdf(InputStream input) {
+		return new InputMoleculeReader(new IteratingSDFReader(input, DefaultChemObjectBuilder.getInstance(), 
+				false), // this boolean indicates whether or not to continue reading the file if a 
+						// null or broken SD entry occurs - however, if set to true, any broken molecules 
+						// just disappear (hasNext not true for them) so the numbering of the input 
+						// molecules would be all messed up. Therefore this value is set to false for now. //TODO
+				null, null, null);
+	}
+	
+	/**
+	 * Reads a SMILES file with one molecule per line. The SMILES can be followed by whitespace and the name of the molecule. 
+	 * Empty lines are skipped and do not count as input molecules.
+	 */
+	public static InputMoleculeReader fromSmilesFile(InputStream input) {
+		return new InputMoleculeReader(null, new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)), null, null);
+	}
+	
+	/**
+	 * @param inputNames the name of each input molecule, or empty if there are no names
+	 */
+	public static InputMoleculeReader fromSmiles(List<String> inputSmiles, List<String> inputNames) {
+		return new InputMoleculeReader(null, null, inputSmiles, inputNames);
+	}
+	
+	
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			next = readNext();
+		}
+		return next != null;
+	}
+
+	@Override
+	public InputMolecule next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		InputMolecule inputMolecule = next;
+		next = null;
+		return inputMolecule;
+	}
+	
+	
+	@Override
+	public void close() throws IOException {
+		if (sdfReader != null) {
+			sdfReader.close();
+		}
+		if (smilesReader != null) {
+			smilesReader.close();
+		}
+	}
+	
+	
+	private InputMolecule readNext() {
+		
+		if (sdfReader != null) {
+			
+			if (!sdfReader.hasNext()) {
+				return null;
+			}
+			IAtomContainer molecule = sdfReader.next();
+			counter ++;
+			return new InputMolecule(counter, MoleculeManipulator.generateSmiles(molecule), molecule.getProperty(CDKConstants.TITLE), molecule);
+			
+		} else if (smilesReader != null) {
+			
+			try {
+				String line;
+				while ((line = smilesReader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty()) {
+						continue;
+					}
+					counter ++;
+					String[] smilesAndName = line.split("\\s+", 2);
+					return new InputMolecule(counter, smilesAndName[0], smilesAndName.length > 1 ? smilesAndName[1] : "", null);
+				}
+			} catch (IOException e) {
+				logger.error(ERROR_READING_INPUT, counter + 1, e);
+			}
+			return null;
+			
+		} else {
+			
+			if (counter >= inputSmiles.size()) {
+				return null;
+			}
+			counter ++;
+			return new InputMolecule(counter, inputSmiles.get(counter - 1), inputNames.isEmpty() ? "" : inputNames.get(counter - 1), null);
+		}
+	}
+
+}
@@ -27,10 +27,12 @@ package main.java.metaboliteprediction;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Properties;
@@ -67,13 +69,18 @@ public class MetabPredictLauncher {
 	private static final String OUTPUT_DIR_ARG = "outputdirectory";
 	private static final String INPUT_SMILES_ARG = "inputsmiles";
 	private static final String INPUT_FILE_ARG = "inputfile";
+	private static final String SERVER_ARG = "server";
+	private static final String SERVER_FLAG = "--server";
+	private static final String TOP_K_ARG = "top_k";
+	private static final String MIN_SCORE_ARG = "min_score";
 	
 	private static final String SDF_FILEENDING = ".sdf";
+	private static final String SMILES_FILEENDING = ".smi";
 	private static final String MAXEFFICIENCY_MODE = "MaxEfficiency";
 	private static final String MAXCOVERAGE_MODE = "MaxCoverage";
 
 	private static final String ERROR_CONFIGURING_LOG4J_PROPERTIES_FILE_PATH_RESOURCE = "Error configuring log4j properties file path as resource.";
-	private static final String SDFILE_ENDING_ERRORMESSAGE = "The provided file appears not to be an SDF file. The file ending should be '.sdf'.";
+	private static final String SDFILE_ENDING_ERRORMESSAGE = "The provided file appears not to be an SDF or SMILES file. The file ending should be '.sdf' or '.smi'.";
 	private static final String MODE_INFOMESSAGE = "Running metabolite predictor with the following specifications: \n\tUse SoMs as cutoff: {}\n\t"
 			+ "Cutoff if using SoMs as cutoff (ignore if not using): {}\n\tUse combined phase 2 FAME 3 model P2: {}";
 	private static final String RUN_WITH_HELP_ERRORMESSAGE = "Run the program with the '-h' or '--help' option to see detailed usage description.";
@@ -95,6 +102,14 @@ public class MetabPredictLauncher {
 		TestParameters.Version usageMode = TestParameters.Version.USER; 
 		TestParameters.UserVersion userVersionType = TestParameters.UserVersion.OFFLINE;
 		
+		// In server mode, stdout is reserved for the responses, so everything else that would be printed to stdout 
+		// (including the log output of the user version) goes to stderr. This has to be done before configuring log4j.
+		PrintStream protocolOut = System.out;
+		boolean serverMode = Arrays.asList(args).contains(SERVER_FLAG);
+		if (serverMode) {
+			System.setOut(System.err);
+		}
+		
 		// configure log4j so that it also works when running from command line. Use ERROR only configuration for user version
 		if (usageMode == TestParameters.Version.USER) {
 			
@@ -108,6 +123,12 @@ public class MetabPredictLauncher {
 				
 		ArgumentParser parser = createArgumentParser();
 		Namespace parsedArgs = checkArguments(args, parser);
+		
+		if (serverMode) {
+			PredictionServer server = new PredictionServer(parsedArgs.getInt(NTHREADS_ARG), System.in, protocolOut);
+			server.run();
+			return;
+		}
 
 		// fetch inputs
 		String inputFilename = parsedArgs.getString(INPUT_FILE_ARG);
@@ -135,6 +156,8 @@ public class MetabPredictLauncher {
 
 		Double defaultSoMCutoff = 0.2; 
 		TestParameters testParameters = setUpTestParameters(inputFilename, usageMode, userVersionType, mode, defaultSoMCutoff, numThreads, filenames, phase);
+		testParameters.setTopK(parsedArgs.getInt(TOP_K_ARG));
+		testParameters.setMinPriorityScore(parsedArgs.getDouble(MIN_SCORE_ARG));
 
 		// set up necessary FAME 3 parameters
 //		String fameOutputDirectory = setUpFameOutputDir(testParameters, filenames, prefix); // not needed for GLORYx because we don't write FAME 3 output to html files anymore
@@ -272,6 +295,9 @@ public class MetabPredictLauncher {
 		} else if (inputFilename.endsWith(SDF_FILEENDING)) {  // have to get rid of brackets[]
 			inputFormat = TestParameters.InputFormat.SDFILE;
 			logger.debug("input SD filename: {}", inputFilename);
+		} else if (inputFilename.endsWith(SMILES_FILEENDING)) {
+			inputFormat = TestParameters.InputFormat.SMILES_FILE;
+			logger.debug("input SMILES filename: {}", inputFilename);
 		} else {
 			logger.error(SDFILE_ENDING_ERRORMESSAGE);
 			logger.debug("input filename: {}", inputFilename);
@@ -287,7 +313,7 @@ public class MetabPredictLauncher {
 			parsedArgs = parser.parseArgs(args);
 			
 			// check inputs
-			if (parsedArgs.getString(INPUT_FILE_ARG) == null && parsedArgs.<String>getList(INPUT_SMILES_ARG) == null ) {
+			if (parsedArgs.getString(INPUT_FILE_ARG) == null && parsedArgs.<String>getList(INPUT_SMILES_ARG) == null && !parsedArgs.getBoolean(SERVER_ARG)) {
 				throw new ArgumentParserException(NO_INPUT_SPECIFIED_ERRORMESSAGE, parser);
 			}
 
@@ -326,13 +352,14 @@ public class MetabPredictLauncher {
 		.help("Choose 'P1' for phase I, 'P2' for phase II, or 'P1+P2' for phases I and II.") // TODO or CYP? //  Or UGT, GST, SULT, NAT, or MT.
 		;
 		parser.addArgument("-f", "--inputfile").nargs(1)
-		.help("One SDF file containing molecules whose metabolites will be predicted."
+		.help("One SDF file (ending '.sdf') or SMILES file (ending '.smi', one SMILES per line, optionally followed by a name) "
+				+ "containing molecules whose metabolites will be predicted."
 				+ "\nEach SDF entry should be a single-component molecule. No predictions will be made for multi-component molecules. "
 				+ "\nAll molecules should be neutral and already have explicit hydrogens added. "
 				+ "If there are still missing hydrogens, the software will try to add them automatically. "
 				+ "Pre-calculating spatial coordinates of atoms is not necessary. "
-				+ "\nPlease provide either an SDF file or SMILES strings, not both. If you provide both, "
-				+ "predictions will only be made for molecules in the SDF file.")
+				+ "\nPlease provide either an input file or SMILES strings, not both. If you provide both, "
+				+ "predictions will only be made for molecules in the input file.")
 		;
 		parser.addArgument("-s", "--inputsmiles").nargs("*")
 		.help("One or more SMILES strings (surrounded by quotation marks) of molecules whose metabolites will be predicted."
@@ -356,6 +383,28 @@ public class MetabPredictLauncher {
 				+ "If no number is specified, the metabolite predictor will use the same number "
 				+ "of threads as the number of processors available to the JVM.")
 		;
+		parser.addArgument("--top-k")
+		.setDefault(0)
+		.type(Integer.class)
+		.help("Only output the metabolites ranked within the top k for each input molecule (more than k if there are ties). "
+				+ "Predictions that cannot be ranked within the top k are skipped, so this is faster than predicting all metabolites. "
+				+ "The default of 0 outputs all predicted metabolites.")
+		;
+		parser.addArgument("--min-score")
+		.setDefault(0.0)
+		.type(Double.class)
+		.help("Minimum priority score of a predicted metabolite. "
+				+ "Metabolites with a lower priority score are discarded before they are generated, which saves time. "
+				+ "The number of discarded metabolites is written to the log. The default of 0 keeps all predicted metabolites.")
+		;
+		parser.addArgument(SERVER_FLAG)
+		.action(Arguments.storeTrue())
+		.help("Run as a server that loads the FAME 3 models only once and then keeps them in memory. "
+				+ "Each line read from standard input is a prediction request in JSON format, "
+				+ "and the response to each request is written as a single line of JSON to standard output. "
+				+ "Requests are processed concurrently, so the responses are not necessarily in the same order as the requests. "
+				+ "No input file or SMILES need to be specified in this mode.")
+		;
 
 		return parser;
 	}
@@ -0,0 +1,281 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package main.java.metaboliteprediction;
+
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import main.java.utils.molecule.PredictedMolecule;
+
+/**
+ * Collects the predicted metabolites of one parent molecule without duplicates, using the structure key as key 
+ * if it is set (see Transformer), and the InChI otherwise (see {@link #getKey(PredictedMolecule)}).
+ * Replaces scanning the whole set of predicted metabolites for each new one, which is quadratic in the number of products.
+ * Can be shared between threads.
+ * <p>
+ * WARNING: InChI of the predicted metabolites used as is. No change to whether or not stereochemistry information is contained.
+ * Predicted metabolites without key are never considered duplicates, as with the set of PredictedMolecules.
+ * <p>
+ * The accumulator remembers in which order the metabolites that it keeps were added (see {@link #toList()}), 
+ * so that they can be merged again later (e.g., by InChI) in the same way as if they had been merged while they were added.
+ * <p>
+ * If only the top k metabolites are needed, the accumulator also keeps track of a lower bound of the k-th highest 
+ * priority score (see {@link #getLowestTopKScore()}), so that predictions that cannot make it into the top k can be skipped.
+ *
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class MetaboliteAccumulator {
+
+	private static final String NOT_ADDING_PRODUCT_TO_SET_BECAUSE_NO_INCHI_COULD_BE_GENERATED = "Not adding product {} from transformation {} to set because no InChI could be generated.";
+	private static final String PRODUCT_ALREADY_IN_SET_WITH_LOWER_SCORE = "Product already in set but with lower score. Replacing.";
+	private static final String PRODUCT_ALREADY_IN_SET_WITH_HIGHER_SCORE = "Not adding product to set because it's already in the set but with a higher priority score";
+
+	private static final Logger logger = LoggerFactory.getLogger(MetaboliteAccumulator.class.getName());
+
+	private final ConcurrentMap<String, Entry> metabolitesByKey = new ConcurrentHashMap<>();
+	private final AtomicLong nextSequenceNumber = new AtomicLong();
+	private final Queue<PredictedMolecule> metabolitesWithoutKey = new ConcurrentLinkedQueue<>();
+	
+	private final int topK; // 0 if all metabolites are needed
+	private final PriorityQueue<Double> topScores; // min-heap of the first priority score added for each of the top k metabolites
+
+
+	public MetaboliteAccumulator() {
+		this(0);
+	}
+
+	/**
+	 * @param topK number of metabolites for which the lowest priority score is tracked, or 0
+	 */
+	public MetaboliteAccumulator(int topK) {
+		this.topK = topK;
+		this.topScores = topK > 0 ? new PriorityQueue<>(topK + 1) : null;
+	}
+
+	/**
+	 * Starts with the given predicted metabolites, keeping the one with the highest priority score for each key.
+	 *
+	 * @param metabolites
+	 */
+	public MetaboliteAccumulator(Collection<PredictedMolecule> metabolites) {
+		this(0);
+		for (PredictedMolecule metabolite : metabolites) {
+			addIfNotPresentOrHasHigherScore(metabolite);
+		}
+	}
+
+
+	/**
+	 * Adds a predicted metabolite if it is not already present or if it has a higher priority score than the version already present.
+	 * If the priority scores are the same, the version already present is kept.
+	 *
+	 * @param metabolite
+	 * @return true if the predicted metabolite was added
+	 */
+	public boolean addIfNotPresentOrHasHigherScore(final PredictedMolecule metabolite) {
+
+		final String key = getKey(metabolite);
+		if (key == null) {
+			logger.info(NOT_ADDING_PRODUCT_TO_SET_BECAUSE_NO_INCHI_COULD_BE_GENERATED, metabolite.getParentID(), metabolite.getTransformationName());
+			metabolitesWithoutKey.add(metabolite);
+			trackScore(metabolite);
+			return true;
+		}
+
+		boolean[] isNew = {true};
+		Entry kept = metabolitesByKey.merge(key, new Entry(metabolite, nextSequenceNumber.getAndIncrement()), (present, candidate) -> {
+
+			isNew[0] = false;
+			if ((Double) present.metabolite.getPriorityScore() >= (Double) candidate.metabolite.getPriorityScore()) {
+				logger.debug(PRODUCT_ALREADY_IN_SET_WITH_HIGHER_SCORE);
+				return present;
+			}
+			logger.debug(PRODUCT_ALREADY_IN_SET_WITH_LOWER_SCORE);
+			return candidate;
+		});
+		if (isNew[0]) {
+			trackScore(metabolite);
+		}
+		return kept.metabolite == metabolite;
+	}
+
+
+	/**
+	 * Adds a predicted metabolite if it is not already present, regardless of the priority score.
+	 *
+	 * @param metabolite
+	 * @return true if the predicted metabolite was added
+	 */
+	public boolean addIfNotPresent(final PredictedMolecule metabolite) {
+
+		final String key = getKey(metabolite);
+		if (key == null) {
+			logger.info(NOT_ADDING_PRODUCT_TO_SET_BECAUSE_NO_INCHI_COULD_BE_GENERATED, metabolite.getParentID(), metabolite.getTransformationName());
+			metabolitesWithoutKey.add(metabolite);
+			trackScore(metabolite);
+			return true;
+		}
+
+		if (metabolitesByKey.putIfAbsent(key, new Entry(metabolite, nextSequenceNumber.getAndIncrement())) == null) {
+			trackScore(metabolite);
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Returns a lower bound of the k-th highest priority score of the metabolites added so far. 
+	 * A prediction with a lower priority score cannot be ranked within the top k, no matter what is added later.
+	 * The bound uses the first priority score added for each metabolite, which can only be replaced by a higher score.
+	 *
+	 * @return the lower bound, or negative infinity if fewer than k metabolites have been added or all metabolites are needed
+	 */
+	public double getLowestTopKScore() {
+		if (topScores == null) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		synchronized (topScores) {
+			return topScores.size() < topK ? Double.NEGATIVE_INFINITY : topScores.peek();
+		}
+	}
+
+
+	private void trackScore(PredictedMolecule metabolite) {
+		if (topScores == null) {
+			return;
+		}
+		synchronized (topScores) {
+			topScores.add(metabolite.getPriorityScore());
+			if (topScores.size() > topK) {
+				topScores.poll();
+			}
+		}
+	}
+
+
+	/**
+	 * Adds all metabolites of another accumulator whose metabolites were predicted after the ones in this accumulator 
+	 * (e.g., with later reaction rules). The result is the same as if they had been added to this accumulator one by one. 
+	 *
+	 * @param later
+	 * @param keepPresent if true, the metabolites are added as with {@link #addIfNotPresent(PredictedMolecule)}, 
+	 * otherwise as with {@link #addIfNotPresentOrHasHigherScore(PredictedMolecule)}
+	 */
+	public void addAll(MetaboliteAccumulator later, boolean keepPresent) {
+
+		for (PredictedMolecule metabolite : later.metabolitesInOrder()) {
+			if (keepPresent) {
+				addIfNotPresent(metabolite);
+			} else {
+				addIfNotPresentOrHasHigherScore(metabolite);
+			}
+		}
+		for (PredictedMolecule metabolite : later.metabolitesWithoutKey) {
+			metabolitesWithoutKey.add(metabolite);
+			trackScore(metabolite);
+		}
+	}
+
+
+	/**
+	 * @param metabolite
+	 * @return the structure key of the predicted metabolite if it is set, otherwise the InChI
+	 */
+	public static String getKey(final PredictedMolecule metabolite) {
+		return metabolite.getStructureKey() != null ? metabolite.getStructureKey() : metabolite.getInchi();
+	}
+
+
+	public int size() {
+		return metabolitesByKey.size() + metabolitesWithoutKey.size();
+	}
+
+
+	/**
+	 * @return a new set containing the predicted metabolites
+	 */
+	public Set<PredictedMolecule> toSet() {
+		Set<PredictedMolecule> metabolites = new HashSet<>();
+		for (Entry entry : metabolitesByKey.values()) {
+			metabolites.add(entry.metabolite);
+		}
+		metabolites.addAll(metabolitesWithoutKey);
+		return metabolites;
+	}
+
+
+	/**
+	 * Unlike {@link #toSet()}, does not depend on the InChI, which may not be set yet.
+	 * The metabolites with key are in the order in which the version that is kept was added, 
+	 * followed by the metabolites without key.
+	 * 
+	 * @return a new list containing the predicted metabolites
+	 */
+	public List<PredictedMolecule> toList() {
+		List<PredictedMolecule> metabolites = metabolitesInOrder();
+		metabolites.addAll(metabolitesWithoutKey);
+		return metabolites;
+	}
+
+
+	private List<PredictedMolecule> metabolitesInOrder() {
+		List<Entry> entries = new ArrayList<>(metabolitesByKey.values());
+		entries.sort(Comparator.comparingLong(entry -> entry.sequenceNumber));
+		List<PredictedMolecule> metabolites = new ArrayList<>(size());
+		for (Entry entry : entries) {
+			metabolites.add(entry.metabolite);
+		}
+		return metabolites;
+	}
+
+
+	/**
+	 * A kept metabolite and the number of metabolites that had been added to the accumulator before it.
+	 */
+	private static class Entry {
+		
+		private final PredictedMolecule metabolite;
+		private final long sequenceNumber;
+		
+		private Entry(PredictedMolecule metabolite, long sequenceNumber) {
+			this.metabolite = metabolite;
+			this.sequenceNumber = sequenceNumber;
+		}
+	}
+
+}
@@ -24,21 +24,22 @@ package main.java.metaboliteprediction;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,20 +47,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 import org.zbh.fame.fame3.globals.Globals;
+import org.zbh.fame.fame3.modelling.MultiModelPredictor;
 
 import main.java.depiction.CreateResultsHTML;
 import main.java.datasets.newtestdata.TestDatasetLoader;
 import main.java.sompredictor.SoMPredictor;
 import main.java.utils.Calculations;
 import main.java.utils.Errors;
+import main.java.utils.ExecutionSpec;
 import main.java.utils.Filenames;
 import main.java.utils.molecule.BasicMolecule;
-import main.java.utils.molecule.MoleculeManipulator;
 import main.java.utils.Phase;
 import main.java.utils.Prediction;
 import main.java.utils.molecule.PredictedMolecule;
 import main.java.utils.analysis.DatasetWriter;
 import main.java.utils.analysis.JsonFileWriter;
+import main.java.utils.analysis.OrderedSdfWriter;
 import main.java.metaboliteprediction.PredictionHandler;
 import main.java.utils.analysis.RankingRocResult;
 import main.java.utils.analysis.Result;
@@ -67,10 +70,12 @@ import main.java.utils.analysis.ResultsWriter;
 import main.java.utils.TestParameters;
 import main.java.utils.TestParameters.Reference;
 import main.java.data.DatasetLoader;
+import main.java.data.InputMolecule;
+import main.java.data.InputMoleculeReader;
 
 /**
  * Sets up the metabolite prediction.
- * Sets up multithreading for the prediction of metabolites as well as for evaluation (if in evaluation mode).
+ * Sets up multithreading for the prediction of metabolites, which in evaluation mode includes the evaluation of each prediction.
  * 
  * @author Christina de Bruyn Kops
  *
@@ -79,8 +84,13 @@ public class MetabolitePredictor {
 	
 	private static final String GLOBAL_PARAMETERS_SHOULD_NOT_BE_NULL = "Global parameters should not be null";
 	private static final String ERROR_SHUTTING_DOWN_EXECUTOR = "Error shutting down executor.";
+	private static final String ERROR_IN_PREDICTION_WORKER = "Error predicting metabolites for an input molecule.";
+	private static final String NUMBER_OF_SCREENED_OUT_RULES = "Number of times a reaction rule was skipped because it cannot match the input molecule: {}";
+	private static final String NUMBER_OF_DISCARDED_PRODUCTS = "Number of products discarded because the priority score is below the minimum of {}: {}";
+	private static final String NUMBER_OF_SMILES_PARSES = "Number of SMILES parsed while predicting: {} ({} per input molecule)";
 	private static final String AVERAGE_NUMBER_OF_METABOLITES_IN_DATASET = "Average number of metabolites in dataset: {}";
 	private static final String ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES = "Error writing SD file of predicted metabolites.";
+	private static final String ERROR_RANKING_PREDICTIONS = "Error ranking the predicted metabolites for input molecule {}, so nothing is written for this molecule.";
 	
 	private static final String FILE_ALL_RESULTS = "results.txt";
 	private static final String FILE_ALL_RESULTS_CSV = "results.csv";
@@ -96,10 +106,17 @@ public class MetabolitePredictor {
 	
 	private static final Logger logger = LoggerFactory.getLogger(MetabolitePredictor.class.getName());
 	
+	private static final int MAX_QUEUED_MOLECULES_PER_THREAD = 4; // input molecules read ahead of the predictions
+	private static final int REORDER_BUFFER_SIZE_PER_THREAD = 4; // predictions held for the ordered output while an earlier input molecule is not done
+	
+	private static final AtomicInteger pendingParents = new AtomicInteger(); // submitted parent molecules that are not yet done
+	
 	private Map<BasicMolecule, Set<BasicMolecule>> combinedDataset;
 	private Map<BasicMolecule, Set<BasicMolecule>> drugbankData;
 	private Map<BasicMolecule, Set<BasicMolecule>> testMetabolismData;
 	
+	private final Map<String, Globals> loadedFameModels = new HashMap<>(); // FAME 3 model name -> loaded model, loaded only once
+	
 	private Boolean writeDatasetParentsToFileOnly = false; // hard-coded evaluation option
 	private Boolean writeDatasetAsSdf = false;
 	private Boolean writeDatasetAsJson = true;
@@ -179,199 +196,266 @@ public class MetabolitePredictor {
 			
 		logger.info("Making predictions for {}", testParameters.getPhase().getPhaseName());
 		
-		List<String> fameModels = selectRelevantFameModels(testParameters);
 		
 		// get input smiles and the metabolism information from whichever database is in use (see testParameters)
 		DatasetLoader dl = new DatasetLoader();
-		dl.getInputSmilesAndReferenceMetabolismData(testParameters, filenames, drugbankData, combinedDataset, 
-				testMetabolismData, inputSmiles, inputNames);	
+		InputMoleculeReader input;
+		if (testParameters.isUserVersion() && (testParameters.inputIsSdf() || testParameters.inputIsSmilesFile())) {
+			// the input file is read while the predictions are made
+			input = dl.openInputFile(testParameters, filenames);
+		} else {
+			dl.getInputSmilesAndReferenceMetabolismData(testParameters, filenames, drugbankData, combinedDataset, 
+					testMetabolismData, inputSmiles, inputNames);
+			input = InputMoleculeReader.fromSmiles(inputSmiles, inputNames);
+		}
 				
 		//transform and compare predictions to known metabolites for each parent compound
 		Map<Integer, Prediction> allPredictedMolecules = Collections.synchronizedMap(new HashMap<>()); // map ID (input number) to predictions, where predictions includes info on parent
 		List<Long> runTimes = Collections.synchronizedList(new ArrayList<>());
 		
-		for (String fameModelName : fameModels) {
-			
-			if ( (testParameters.predictAllMetabolism() && !testParameters.useCombinedP1P2()) || 
-					(!testParameters.predictAllMetabolism() && !testParameters.predictPhase1() && !TestParameters.useCombinedPhase2() ) ) {
-				
-				setAppropriatePhase(testParameters, fameModelName);
-			}
-	
-			if (writeDatasetParentsToFileOnly && writeDatasetAsJson) {
-				JsonFileWriter.writeDatasetToJSONFile(combinedDataset, filenames);
-			}
+		if (writeDatasetParentsToFileOnly && writeDatasetAsJson) {
+			JsonFileWriter.writeDatasetToJSONFile(combinedDataset, filenames);
+		}
+		
+		// write dataset to file and exit
+		if (writeDatasetParentsToFileOnly && writeDatasetAsSdf) {
+			// write all dataset parent compounds to SD file
+			DatasetWriter.writeDatasetParentCompoundsToSdfAndExit(inputSmiles);
+		} else if (writeDatasetParentsToFileOnly) {
+			// write smiles
+			DatasetWriter.writeDatasetSmilesToFileAndExit(inputSmiles);
+		}
 
-			logger.info("Using FAME 3 model: {}", fameModelName);
-						
-			// Set globals and load FAME 3 model. Want to do this only once due to memory concerns.
-			Globals fameParameters = SoMPredictor.createGlobals(fameModelName);
-			Assert.notNull(fameParameters, GLOBAL_PARAMETERS_SHOULD_NOT_BE_NULL);
-			
-			// write dataset to file and exit
-			if (writeDatasetParentsToFileOnly && writeDatasetAsSdf) {
-				// write all dataset parent compounds to SD file
-				DatasetWriter.writeDatasetParentCompoundsToSdfAndExit(inputSmiles);
-			} else if (writeDatasetParentsToFileOnly) {
-				// write smiles
-				DatasetWriter.writeDatasetSmilesToFileAndExit(inputSmiles);
+		if (!input.hasNext()) {
+			logger.error("No input SMILES.");
+			Errors.createErrorHtmlAndExit(filenames, Errors.NO_VALID_INPUT);
+		}
+		
+		// Each prediction is handled by the task that made it as soon as it is complete: 
+		// in the user version it is ranked and written to the output SD file, in evaluation mode it is evaluated.
+		List<Result> results = Collections.synchronizedList(new ArrayList<>());
+		List<RankingRocResult> rankingRocResults = Collections.synchronizedList(new ArrayList<>());
+		Consumer<Entry<Integer, Prediction>> predictionDone = null;
+		OrderedSdfWriter sdfWriter = null;
+		if (!testParameters.isUserVersion()) {
+			predictionDone = entry -> {
+				Runnable worker = entry.getValue() == null ? null : createEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults);
+				if (worker != null) {
+					worker.run();
+				}
+			};
+		} else {
+			sdfWriter = openOrderedSdfWriter(testParameters, filenames);
+			if (sdfWriter != null) {
+				predictionDone = rankAndWritePrediction(testParameters, sdfWriter, allPredictedMolecules);
 			}
-			
-
-			if (inputSmiles.isEmpty()) {
-				logger.error("No input SMILES.");
-				Errors.createErrorHtmlAndExit(filenames, Errors.NO_VALID_INPUT);
+		}
+		
+		int numberOfInputMolecules = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(testParameters.getNumThreads());
+		try (InputMoleculeReader inputReader = input) {
+			numberOfInputMolecules = predictMetabolites(testParameters, inputReader, allPredictedMolecules, runTimes, executor, predictionDone);
+		} catch (InterruptedException e) {
+			logger.error(ERROR_SHUTTING_DOWN_EXECUTOR);
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			logger.error("Error closing input file {}.", filenames.getUserInputFilename(), e);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		for (Entry<Integer, Prediction> x : allPredictedMolecules.entrySet()) {
+			if (logger.isDebugEnabled()) {
+				if (x.getKey() != null && x.getValue() != null && x.getValue().getPredictedMetabolites() != null) {
+					logger.debug("Number of predicted metabolites for molecule {}: {}", x.getKey(), x.getValue().getPredictedMetabolites().size());
+				}
 			}
-			
-			
-			ExecutorService executor = Executors.newFixedThreadPool(testParameters.getNumThreads());
-			int counter = 1;
-			logger.info("number of input smiles to start with: {}", inputSmiles.size());
-			
-
-
-			// make the predictions
-			for (String singleInputSmiles : inputSmiles) {
-				
-				String singleInputName = getSingleInputName(inputNames, counter); 
+		}
 
-//					if (counter > 2) {
-//						break;
-//					}
 		
-				logger.info("Predicting for {}\t{}", singleInputName, singleInputSmiles);
-				
-				// comment this block out if just writing dataset parent compounds to file as SMILES
-				makePredictions(testParameters, fameParameters, allPredictedMolecules, runTimes, executor, counter, singleInputSmiles, singleInputName, false);
+		// evaluation
+		evaluate(testParameters, filenames, prefix, timeStamp, numberOfInputMolecules, allPredictedMolecules, runTimes, results, rankingRocResults, sdfWriter);
+			
+//		} // end permutation loop
+	}
 
-				counter ++;
-			}
 
-			executor.shutdown();
-			try {
-				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES);
-			} catch (InterruptedException e) {
-				logger.error(ERROR_SHUTTING_DOWN_EXECUTOR);
-				executor.shutdownNow();
-				Thread.currentThread().interrupt();
+	/**
+	 * Predicts the metabolites of the input molecules on the given executor and waits until all predictions are done, 
+	 * including the reruns with the generalized phase 2 model.
+	 * The FAME 3 models are loaded only once per MetabolitePredictor, so a predictor can be reused for many inputs (see {@link PredictionServer}).
+	 * 
+	 * @param allPredictedMolecules filled with the predictions, mapping the input number (starting at 1) to the prediction
+	 * @throws InterruptedException if interrupted while waiting for the predictions
+	 */
+	public void predictMetabolites(TestParameters testParameters, List<String> inputSmiles, List<String> inputNames, 
+			Map<Integer, Prediction> allPredictedMolecules, List<Long> runTimes, ExecutorService executor) throws InterruptedException {
+		predictMetabolites(testParameters, InputMoleculeReader.fromSmiles(inputSmiles, inputNames), allPredictedMolecules, runTimes, executor, null);
+	}
+	
+	
+	/**
+	 * Predicts the metabolites of the input molecules on the given executor and waits until all predictions are done.
+	 * <p>
+	 * Each input molecule is one task on the executor that runs all steps for this molecule one after the other: 
+	 * SoM prediction with all FAME 3 models, transformation with the reaction rules of each model, 
+	 * the rerun with the generalized phase 2 model if an individual phase 2 model failed, and finally whatever 
+	 * is done with the finished prediction. So no molecule waits for the other molecules between these steps.
+	 * <p>
+	 * The input molecules are read while the predictions are made. Only a limited number of input molecules 
+	 * are queued on the executor at a time; reading the input pauses until a queued molecule is done.
+	 * The tasks are submitted in input order.
+	 * 
+	 * @param input the input molecules; not closed by this method
+	 * @param allPredictedMolecules filled with the predictions, mapping the input number (starting at 1) to the prediction; 
+	 * predictionDone may remove a prediction once it is handled, the counts of the predictions are logged anyway
+	 * @param predictionDone called by the task of the input molecule once its prediction is complete, with a null prediction 
+	 * if nothing was predicted; may be null
+	 * @return number of input molecules
+	 * @throws InterruptedException if interrupted while waiting for the predictions
+	 */
+	public int predictMetabolites(TestParameters testParameters, InputMoleculeReader input, 
+			Map<Integer, Prediction> allPredictedMolecules, List<Long> runTimes, ExecutorService executor, 
+			Consumer<Entry<Integer, Prediction>> predictionDone) throws InterruptedException {
+		
+		// Set globals and get all FAME 3 models up front. The descriptors of each input molecule are then calculated only once 
+		// and all models are evaluated on them, instead of doing a separate pass over the input for each model.
+		List<String> fameModels = selectRelevantFameModels(testParameters);
+		Map<String, Globals> fameModelParameters = new LinkedHashMap<>();
+		List<ExecutionSpec> executionSpecs = new ArrayList<>();
+		for (String fameModelName : fameModels) {
+			
+			Phase phase = testParameters.getPhase();
+			if ( (testParameters.predictAllMetabolism() && !testParameters.useCombinedP1P2()) || 
+					(!testParameters.predictAllMetabolism() && !testParameters.predictPhase1() && !TestParameters.useCombinedPhase2() ) ) {
+				
+				phase = getAppropriatePhase(testParameters, fameModelName);
 			}
+			executionSpecs.add(new ExecutionSpec(fameModelName, phase, false));
 
-		} // for loop for different FAME models
+			logger.info("Using FAME 3 model: {}", fameModelName);
+						
+			fameModelParameters.put(fameModelName, getFameModel(fameModelName));
+		} 
+		MultiModelPredictor somModels = new MultiModelPredictor(fameModelParameters, false);
 		
 		// rerun predictions with P2 model if any of the individual phase 2 models failed
+		MultiModelPredictor fallbackSomModels = null;
+		ExecutionSpec fallbackSpec = null;
 		if ( ( testParameters.predictAllMetabolism() && !testParameters.useCombinedP1P2() 
 				&& testParameters.getPhase() != Phase.PHASE_1 && !TestParameters.useCombinedPhase2() ) // predicting P1+P2 and using separate models 
 				|| ( !testParameters.predictAllMetabolism() && testParameters.getPhase() != Phase.PHASE_1 && !TestParameters.useCombinedPhase2() )  // predicting P2 and using separate models
 				) {
 			
-			logger.info("Redoing predictions for molecules for which one or more individual phase 2 models failed");
-			
-			ExecutorService executor = Executors.newFixedThreadPool(testParameters.getNumThreads());
-			
-			String fameModelName = "P2";
-			testParameters.setPhase(Phase.PHASE_2); 
-			
-			// Set globals and load FAME 3 model. Want to do this only once due to memory concerns.
-			Globals fameParameters = SoMPredictor.createGlobals(fameModelName);
-			Assert.notNull(fameParameters, GLOBAL_PARAMETERS_SHOULD_NOT_BE_NULL);
-			
-			int failedCounter = 0;
-			for (Entry<Integer, Prediction> entry : allPredictedMolecules.entrySet()) {
-				Prediction p = entry.getValue();
-				
+			// Set globals and load FAME 3 model. Want to do this only once due to memory concerns, so reuse the model if it is already loaded.
+			fallbackSomModels = new MultiModelPredictor(Collections.singletonMap(FAME3_PHASEII_MODEL, getFameModel(FAME3_PHASEII_MODEL)), false);
+			// the phase travels with the execution spec, so the shared test parameters are not changed
+			fallbackSpec = new ExecutionSpec(FAME3_PHASEII_MODEL, Phase.PHASE_2, true);
+		}
+		
+		// the counts are summed up as soon as each prediction is done, because the prediction may not be kept until the end
+		AtomicInteger failedCounter = new AtomicInteger();
+		AtomicLong numberOfScreenedOutRules = new AtomicLong();
+		AtomicLong numberOfDiscardedProducts = new AtomicLong();
+		AtomicLong numberOfSmilesParses = new AtomicLong();
+		Consumer<Entry<Integer, Prediction>> countAndHandlePrediction = entry -> {
+			Prediction p = entry.getValue();
+			if (p != null) {
 				if (p.fameModelFailed()) {
-					failedCounter ++;
-					
-					int molNumber = entry.getKey();
-
-					if (logger.isInfoEnabled()) {
-						logger.info("Rerunning molecule {} using FAME 3 model {} and phase {}", molNumber, fameModelName, testParameters.getPhase().name());
-					}
-					
-					String singleInputName = getSingleInputName(inputNames, molNumber); 
-					String singleInputSmiles = inputSmiles.get(molNumber - 1);
-					String inchi = MoleculeManipulator.generateInchiWithoutStereoFromSmiles(singleInputSmiles);
-					
-					logger.debug("smiles in set: {}", p.getParentMolecule().getSmiles());
-					logger.debug("new input smiles: {}", singleInputSmiles);
-					
-					Assert.isTrue(inchi.equals(p.getParentMolecule().getInchi()), "Error - Did not find same input molecule when trying predictions with generalized P2 model!");
-					
-					makePredictions(testParameters, fameParameters, allPredictedMolecules, runTimes, executor, molNumber, singleInputSmiles, singleInputName, true);
+					failedCounter.incrementAndGet();
 				}
+				numberOfScreenedOutRules.addAndGet(p.getNumberOfScreenedOutRules());
+				numberOfDiscardedProducts.addAndGet(p.getNumberOfDiscardedProducts());
+				numberOfSmilesParses.addAndGet(p.getNumberOfSmilesParses());
 			}
-			logger.info("Number of molecules for which one or more individual phase 2 models failed and that had to be rerun: {}", failedCounter); // approx 64 in reference dataset
-			
-		executor.shutdown();
-			try {
-				if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES)) {
-					executor.shutdownNow();
-				}
-			} catch (InterruptedException e) {
-				logger.error(ERROR_SHUTTING_DOWN_EXECUTOR);
-				executor.shutdownNow();
-				Thread.currentThread().interrupt();
+			if (predictionDone != null) {
+				predictionDone.accept(entry);
 			}
-		}
+		};
 		
-		for (Entry<Integer, Prediction> x : allPredictedMolecules.entrySet()) {
-			if (logger.isDebugEnabled()) {
-				if (x.getKey() != null && x.getValue() != null && x.getValue().getPredictedMetabolites() != null) {
-					logger.debug("Number of predicted metabolites for molecule {}: {}", x.getKey(), x.getValue().getPredictedMetabolites().size());
-				}
+		int maxQueuedMolecules = MAX_QUEUED_MOLECULES_PER_THREAD * testParameters.getNumThreads();
+		Semaphore queuedMolecules = new Semaphore(maxQueuedMolecules);
+		int numberOfInputMolecules = 0;
+
+		// make the predictions
+		while (true) {
+			
+			queuedMolecules.acquire(); // released by the task once the molecule is done
+			if (!input.hasNext()) {
+				queuedMolecules.release();
+				break;
 			}
+			InputMolecule inputMolecule = input.next();
+			numberOfInputMolecules ++;
+	
+			logger.info("Predicting for {}\t{}", inputMolecule.getName(), inputMolecule.getSmiles());
+			
+			// comment this block out if just writing dataset parent compounds to file as SMILES
+			makePredictions(testParameters, somModels, executionSpecs, fallbackSomModels, fallbackSpec, allPredictedMolecules, 
+					runTimes, executor, inputMolecule, countAndHandlePrediction, queuedMolecules);
 		}
+		logger.info("number of input molecules: {}", numberOfInputMolecules);
 
+		// wait until all predictions are done
+		queuedMolecules.acquire(maxQueuedMolecules);
+		queuedMolecules.release(maxQueuedMolecules);
 		
-		// evaluation
-		evaluate(testParameters, filenames, prefix, timeStamp, inputSmiles, allPredictedMolecules, runTimes);
-			
-//		} // end permutation loop
+		if (fallbackSpec != null) {
+			logger.info("Number of molecules for which one or more individual phase 2 models failed and that had to be rerun: {}", failedCounter.get()); // approx 64 in reference dataset
+		}
+		
+		logger.info(NUMBER_OF_SCREENED_OUT_RULES, numberOfScreenedOutRules.get());
+		if (testParameters.getMinPriorityScore() > 0) {
+			logger.info(NUMBER_OF_DISCARDED_PRODUCTS, testParameters.getMinPriorityScore(), numberOfDiscardedProducts.get());
+		}
+		if (numberOfInputMolecules > 0) {
+			logger.info(NUMBER_OF_SMILES_PARSES, numberOfSmilesParses.get(), (double) numberOfSmilesParses.get() / numberOfInputMolecules);
+		}
+		return numberOfInputMolecules;
 	}
-
-
+	
+	
+	/**
+	 * Loads all FAME 3 models that can be used with the given test parameters, including the generalized phase 2 model 
+	 * that is used if an individual phase 2 model fails. Models that are already loaded are not loaded again.
+	 */
+	public void loadFameModels(TestParameters testParameters) {
+		for (String fameModelName : selectRelevantFameModels(testParameters)) {
+			getFameModel(fameModelName);
+		}
+		getFameModel(FAME3_PHASEII_MODEL);
+	}
+	
+	
+	private Globals getFameModel(String fameModelName) {
+		synchronized (loadedFameModels) {
+			Globals fameParameters = loadedFameModels.get(fameModelName);
+			if (fameParameters == null) {
+				fameParameters = SoMPredictor.createGlobals(fameModelName);
+				Assert.notNull(fameParameters, GLOBAL_PARAMETERS_SHOULD_NOT_BE_NULL);
+				loadedFameModels.put(fameModelName, fameParameters);
+			}
+			return fameParameters;
+		}
+	}
+	
+	
 	private void evaluate(TestParameters testParameters, Filenames filenames, String prefix, String timeStamp,
-			List<String> inputSmiles, Map<Integer, Prediction> allPredictedMolecules, List<Long> runTimes) {
-		
-		if (testParameters.isUserVersion()) { // process results, combining if necessary (e.g. if use multiple phase 2 individual models
-			
-			combineAndWritePredictionsToFiles(testParameters, filenames, timeStamp, inputSmiles, allPredictedMolecules);
+			int numberOfInputMolecules, Map<Integer, Prediction> allPredictedMolecules, List<Long> runTimes, 
+			List<Result> results, List<RankingRocResult> rankingRocResults, OrderedSdfWriter sdfWriter) {
 		
-		} else {  // do evaluation on dataset- ranking and duplicate removal happen in PredictionEvaluator
-
-			List<Result> results = Collections.synchronizedList(new ArrayList<>());
-			List<RankingRocResult> rankingRocResults = Collections.synchronizedList(new ArrayList<>());
+		if (testParameters.isUserVersion() && sdfWriter != null) { // predictions already ranked and written as they were completed
 			
+			finishWritingPredictionsToFiles(testParameters, filenames, timeStamp, numberOfInputMolecules, allPredictedMolecules, sdfWriter);
 			
-			ExecutorService executor = Executors.newFixedThreadPool(testParameters.getNumThreads());
+		} else if (testParameters.isUserVersion()) { // process results, combining if necessary (e.g. if use multiple phase 2 individual models
 			
+			combineAndWritePredictionsToFiles(testParameters, filenames, timeStamp, numberOfInputMolecules, allPredictedMolecules);
+		
+		} else {  // do evaluation on dataset- ranking and duplicate removal happen in PredictionEvaluator, already done for each prediction (see createEvaluatorWorker)
+
 			logger.debug("size of allPredictedMolecules: {}", allPredictedMolecules.size());
 			
-			for (Entry<Integer, Prediction> entry : allPredictedMolecules.entrySet()) {
-				
-				// start executor workers
-				if (testParameters.getReference() == TestParameters.Reference.DRUGBANK_PLUS_METXBIODB) {
-					Runnable worker = new PredictionEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults, combinedDataset);
-					executor.execute(worker);
-				} else if (testParameters.getReference() == TestParameters.Reference.DRUGBANK) {
-					Runnable worker = new PredictionEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults, drugbankData);
-					executor.execute(worker);
-				} else if (testParameters.getReference() == TestParameters.Reference.TEST_DATASET) {
-					Runnable worker = new PredictionEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults, testMetabolismData);
-					executor.execute(worker);
-				}
-			}
-			
-			executor.shutdown();
-			try {
-				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES);
-			} catch (InterruptedException e) {
-				logger.error(ERROR_SHUTTING_DOWN_EXECUTOR);
-				executor.shutdownNow();
-				Thread.currentThread().interrupt();
-			}
-			
-			
 			// write results from all parent molecules to a single file
 			ResultsWriter.writeResultsToTxtFile(prefix + evalResultsDir, FILE_ALL_RESULTS, results);
 			ResultsWriter.writeResultsToCsvFile(prefix + evalResultsDir, FILE_ALL_RESULTS_CSV, results);
@@ -412,6 +496,20 @@ public class MetabolitePredictor {
 	}
 
 
+	private Runnable createEvaluatorWorker(Entry<Integer, Prediction> entry, TestParameters testParameters, Filenames filenames, 
+			List<Result> results, List<RankingRocResult> rankingRocResults) {
+		
+		if (testParameters.getReference() == TestParameters.Reference.DRUGBANK_PLUS_METXBIODB) {
+			return new PredictionEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults, combinedDataset);
+		} else if (testParameters.getReference() == TestParameters.Reference.DRUGBANK) {
+			return new PredictionEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults, drugbankData);
+		} else if (testParameters.getReference() == TestParameters.Reference.TEST_DATASET) {
+			return new PredictionEvaluatorWorker(entry, testParameters, filenames, results, rankingRocResults, testMetabolismData);
+		}
+		return null;
+	}
+
+
 	private List<String> selectRelevantFameModels(TestParameters testParameters) {
 		List<String> fameModels = new ArrayList<>();
 
@@ -480,41 +578,14 @@ public class MetabolitePredictor {
 	}
 
 
-	private String getSingleInputName(List<String> inputNames, int counter) {
-		String singleInputName = "";
-		if (!inputNames.isEmpty()) { 
-			singleInputName = inputNames.get(counter - 1);
-		}
-		return singleInputName;
-	}
-
-
 	private void combineAndWritePredictionsToFiles(TestParameters testParameters, Filenames filenames, String timeStamp,
-			List<String> inputSmiles, Map<Integer, Prediction> allPredictedMolecules) {
+			int numberOfInputMolecules, Map<Integer, Prediction> allPredictedMolecules) {
 		
 		ResultsWriter rw = new ResultsWriter(testParameters, filenames);
 		
 		logger.debug("combining and preparing to write");
 		
-		Iterator<Entry<Integer, Prediction>> it = allPredictedMolecules.entrySet().iterator();
-		while (it.hasNext()) {
-			
-			Entry<Integer, Prediction> entry = it.next();
-			Prediction predictions = entry.getValue();
-			int molNum = entry.getKey();
-			
-			if ( predictions.getPredictedMetabolites() == null && !predictions.getErrors().isEmpty()) {
-				logger.info("No predictions made for molecule {} due to error.", predictions.getParentMolecule().getSmiles());
-				continue; // no need to write an empty sdf file
-			}
-			
-			combineAndRankPredictions(testParameters, predictions);
-			
-//			// write predictions for individual molecule to sdf
-//			String outputSdFilename = filenames.getUserOutputDir() + filenames.getIndividualResultsDir() + "mol_" + molNum + "/" + filenames.getIndividualOutputSDFilename();
-//			rw.writePredictedMetabolitesToSdf(outputSdFilename, predictions);
-
-		}
+		combineAndRankPredictions(testParameters, allPredictedMolecules);
 
 		// write all predictions to a single sdf, unless there are more than 1000 input molecules, in which write a separate output file for each batch of 1000 input molecules
 		int numWithPredictions = -1;
@@ -528,13 +599,115 @@ public class MetabolitePredictor {
 			}
 		}
 		
+		writeSummary(testParameters, filenames, timeStamp, numberOfInputMolecules, allPredictedMolecules, numWithPredictions);
+	}
+	
+	
+	/**
+	 * Opens the writer that writes the predictions to the output SD file(s) in input order while they are being made.
+	 * The metabolites of each prediction are released once written, unless they are still needed for the HTML output.
+	 * 
+	 * @return null if the output file could not be opened
+	 */
+	private OrderedSdfWriter openOrderedSdfWriter(TestParameters testParameters, Filenames filenames) {
+		try {
+			return new OrderedSdfWriter(testParameters, filenames, 
+					REORDER_BUFFER_SIZE_PER_THREAD * testParameters.getNumThreads(), !testParameters.isWebVersion());
+		} catch (IOException e) {
+			logger.error(ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES, e);
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Ranks each prediction and hands it over to the ordered output. Except in the web version, which needs all predictions 
+	 * for the HTML output, the prediction is then removed from allPredictedMolecules, so that only the predictions 
+	 * of the input molecules in flight are kept in memory.
+	 */
+	private Consumer<Entry<Integer, Prediction>> rankAndWritePrediction(TestParameters testParameters, OrderedSdfWriter sdfWriter, 
+			Map<Integer, Prediction> allPredictedMolecules) {
+		return entry -> {
+			Prediction rankedPrediction = null;
+			try {
+				if (entry.getValue() != null) {
+					combineAndRankPredictionsIfPresent(testParameters, entry.getValue());
+					rankedPrediction = entry.getValue();
+				}
+			} catch (RuntimeException e) {
+				logger.error(ERROR_RANKING_PREDICTIONS, entry.getKey(), e);
+			} finally {
+				// also called if ranking failed, so that the ordered output does not wait for this molecule
+				try {
+					sdfWriter.write(entry.getKey(), rankedPrediction);
+				} catch (InterruptedException e) {
+					logger.error(ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES, e);
+					Thread.currentThread().interrupt();
+				}
+				if (!testParameters.isWebVersion()) {
+					allPredictedMolecules.remove(entry.getKey()); // the ordered output keeps the prediction until it is written
+				}
+			}
+		};
+	}
+	
+	
+	private void finishWritingPredictionsToFiles(TestParameters testParameters, Filenames filenames, String timeStamp,
+			int numberOfInputMolecules, Map<Integer, Prediction> allPredictedMolecules, OrderedSdfWriter sdfWriter) {
+		
+		try {
+			sdfWriter.close();
+		} catch (IOException e) {
+			logger.error(ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES, e);
+		}
+		
+		writeSummary(testParameters, filenames, timeStamp, numberOfInputMolecules, allPredictedMolecules, sdfWriter.getNumberOfInputMoleculesWithPredictions());
+	}
+	
+	
+	private void writeSummary(TestParameters testParameters, Filenames filenames, String timeStamp,
+			int numberOfInputMolecules, Map<Integer, Prediction> allPredictedMolecules, int numWithPredictions) {
+		
 		logger.info("Number of input molecules for which metabolite(s) could be predicted: {}", numWithPredictions);
 		
 		if (testParameters.isWebVersion()) {
-			CreateResultsHTML htmlWriter = new CreateResultsHTML(allPredictedMolecules, numWithPredictions, inputSmiles.size(), filenames, timeStamp, testParameters);
+			CreateResultsHTML htmlWriter = new CreateResultsHTML(allPredictedMolecules, numWithPredictions, numberOfInputMolecules, filenames, timeStamp, testParameters);
 			htmlWriter.writeHTML();
 		}
+	}
+	
 
+	/**
+	 * Combines the predictions of the individual models and ranks the predicted metabolites of each input molecule, 
+	 * see {@link Prediction#getRankedPredictedMetabolites()}.
+	 */
+	public void combineAndRankPredictions(TestParameters testParameters, Map<Integer, Prediction> allPredictedMolecules) {
+		
+		Iterator<Entry<Integer, Prediction>> it = allPredictedMolecules.entrySet().iterator();
+		while (it.hasNext()) {
+			
+			Entry<Integer, Prediction> entry = it.next();
+			Prediction predictions = entry.getValue();
+			int molNum = entry.getKey();
+			
+			combineAndRankPredictionsIfPresent(testParameters, predictions);
+			
+//			// write predictions for individual molecule to sdf
+//			String outputSdFilename = filenames.getUserOutputDir() + filenames.getIndividualResultsDir() + "mol_" + molNum + "/" + filenames.getIndividualOutputSDFilename();
+//			rw.writePredictedMetabolitesToSdf(outputSdFilename, predictions);
+
+		}
+	}
+	
+
+	private void combineAndRankPredictionsIfPresent(TestParameters testParameters, Prediction predictions) {
+		
+		if ( predictions.getPredictedMetabolites() == null && !predictions.getErrors().isEmpty()) {
+			logger.info("No predictions made for molecule {} due to error.", predictions.getParentMolecule().getSmiles());
+			return; // no need to write an empty sdf file
+		}
+		
+		combineAndRankPredictions(testParameters, predictions);
 	}
 	
 
@@ -546,13 +719,8 @@ public class MetabolitePredictor {
 		if (!testParameters.useCombinedPhase2()) {
 			// combine predictions for each parent mol
 			
-			Set<PredictedMolecule> cleanPredictions = new HashSet<>();
-			
-			for (PredictedMolecule m : predictions.getPredictedMetabolites()) {
-				
-				ph.addPredictedMoleculeIfNotInSetOrHasHigherScore(cleanPredictions, m);	
-			}
-			rankedPredictions = ph.rankPredictedMetabolites(cleanPredictions); 
+			MetaboliteAccumulator cleanPredictions = new MetaboliteAccumulator(predictions.getPredictedMetabolites());
+			rankedPredictions = ph.rankPredictedMetabolites(cleanPredictions.toSet()); 
 			
 		} else {
 			rankedPredictions = ph.rankPredictedMetabolites(predictions.getPredictedMetabolites()); 
@@ -571,13 +739,8 @@ public class MetabolitePredictor {
 		if (!testParameters.useCombinedPhase2()) {
 			// combine predictions for each parent mol
 			
-			Set<PredictedMolecule> cleanPredictions = new HashSet<>();
-			
-			for (PredictedMolecule m : predictions.getPredictedMetabolites()) {
-				
-				ph.addPredictedMoleculeIfNotInSetOrHasHigherScore(cleanPredictions, m);	
-			}
-			rankedPredictions = ph.rankPredictedMetabolites(cleanPredictions); 
+			MetaboliteAccumulator cleanPredictions = new MetaboliteAccumulator(predictions.getPredictedMetabolites());
+			rankedPredictions = ph.rankPredictedMetabolites(cleanPredictions.toSet()); 
 			
 		} else {
 			rankedPredictions = ph.rankPredictedMetabolites(predictions.getPredictedMetabolites()); 
@@ -585,62 +748,104 @@ public class MetabolitePredictor {
 		
 		Assert.notNull(rankedPredictions, "Ranked predictions should not be null!");
 		
+		if (testParameters.keepTopKOnly()) {
+			rankedPredictions = keepTopK(rankedPredictions, testParameters.getTopK());
+		}
+		
 		predictions.setRankedPredictedMetabolites(rankedPredictions); 
 		
 		return;
 	}
+	
+	
+	/**
+	 * Keeps the predicted metabolites ranked within the top k. Since ties are allowed, more than k metabolites 
+	 * are kept if there are ties at rank k.
+	 * 
+	 * @param rankedPredictions sorted by rank
+	 */
+	private static List<PredictedMolecule> keepTopK(List<PredictedMolecule> rankedPredictions, int topK) {
+		
+		int end = 0;
+		while (end < rankedPredictions.size() && rankedPredictions.get(end).getRank() <= topK) {
+			end ++;
+		}
+		return new ArrayList<>(rankedPredictions.subList(0, end));
+	}
 
 
-	private void setAppropriatePhase(TestParameters testParameters, String fameModelName) {
+	private Phase getAppropriatePhase(TestParameters testParameters, String fameModelName) {
 		// make sure individual models are being used before calling this method
 		
 		switch (fameModelName) {
 		
 		case "UGT":
-			testParameters.setPhase(Phase.UGT);
-			break;
+			return Phase.UGT;
 		case "GST":
-			testParameters.setPhase(Phase.GST);
-			break;
+			return Phase.GST;
 		case "SULT":
-			testParameters.setPhase(Phase.SULT);
-			break;
+			return Phase.SULT;
 		case "MT":
-			testParameters.setPhase(Phase.MT);
-			break;
+			return Phase.MT;
 		case "NAT":
-			testParameters.setPhase(Phase.NAT);
-			break;
+			return Phase.NAT;
 		case "P2": 
-			testParameters.setPhase(Phase.OTHER_PHASE2);
-			break;
+			return Phase.OTHER_PHASE2;
 		case "P1": 
-			testParameters.setPhase(Phase.PHASE_1);
-			break;
+			return Phase.PHASE_1;
 		default :
 			logger.error("error setting phase based on FAME 3 model name");
-			break;
+			return testParameters.getPhase();
 		}
 	}
 
 
-	private void makePredictions(TestParameters testParameters, Globals fameParameters, Map<Integer, Prediction> allPredictedMolecules,
-			List<Long> runTimes, ExecutorService executor, int counter, String singleInputSmiles, String singleInputName, Boolean rerunning) {
+	private void makePredictions(TestParameters testParameters, MultiModelPredictor somModels, List<ExecutionSpec> executionSpecs, 
+			MultiModelPredictor fallbackSomModels, ExecutionSpec fallbackSpec, Map<Integer, Prediction> allPredictedMolecules, 
+			List<Long> runTimes, ExecutorService executor, InputMolecule inputMolecule, 
+			Consumer<Entry<Integer, Prediction>> predictionDone, Semaphore queuedMolecules) {
 		
+		Runnable worker;
 		if (testParameters.isUserVersion()) {
 			
-			Runnable worker = new MetabolitePredictorWorker(singleInputSmiles, allPredictedMolecules, testParameters, fameParameters, 
-					counter, singleInputName, runTimes, rerunning);
-			
-			executor.execute(worker);
-
+			worker = new MetabolitePredictorWorker(inputMolecule, allPredictedMolecules, testParameters, somModels, executionSpecs, 
+					fallbackSomModels, fallbackSpec, runTimes);
 			
 		} else {
 			
-			Runnable worker = new MetabolitePredictorWorker(singleInputSmiles, allPredictedMolecules, 
-					testParameters, fameParameters, counter, singleInputName, rerunning);
-			executor.execute(worker);
+			worker = new MetabolitePredictorWorker(inputMolecule, allPredictedMolecules, 
+					testParameters, somModels, executionSpecs, fallbackSomModels, fallbackSpec);
 		}
+		
+		int counter = inputMolecule.getNumber();
+		pendingParents.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				worker.run();
+			} catch (RuntimeException e) {
+				logger.error(ERROR_IN_PREDICTION_WORKER, e);
+			} finally {
+				pendingParents.decrementAndGet();
+				// also called if the worker failed, so that e.g. the ordered output does not wait for this molecule
+				try {
+					if (predictionDone != null) {
+						predictionDone.accept(new SimpleImmutableEntry<>(counter, allPredictedMolecules.get(counter)));
+					}
+				} finally {
+					queuedMolecules.release();
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Returns the number of parent molecules that have been submitted for prediction but are not yet done, 
+	 * over all MetabolitePredictors (e.g., all concurrent requests to the {@link PredictionServer}). 
+	 * Used to decide whether the reaction rules of one parent molecule should be applied in parallel (see Transformer).
+	 */
+	public static int getNumberOfPendingParents() {
+		return pendingParents.get();
 	}
 
 
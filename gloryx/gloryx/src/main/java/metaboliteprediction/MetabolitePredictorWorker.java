@@ -31,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.graph.ConnectivityChecker;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
@@ -44,16 +45,19 @@ import org.springframework.util.Assert;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import org.zbh.fame.fame3.globals.Globals;
 import org.zbh.fame.fame3.modelling.Modeller;
+import org.zbh.fame.fame3.modelling.MultiModelPredictor;
 
 import main.java.sompredictor.SoMPredictor;
 import main.java.transformation.Transformer;
+import main.java.data.InputMolecule;
 import main.java.utils.Calculations;
 import main.java.utils.Errors;
+import main.java.utils.ExecutionSpec;
 import main.java.utils.Prediction;
 import main.java.utils.molecule.MoleculeManipulator;
 import main.java.utils.molecule.ParentMolecule;
 import main.java.utils.molecule.PredictedMolecule;
-import main.java.metaboliteprediction.PredictionHandler;
+import main.java.metaboliteprediction.MetaboliteAccumulator;
 import main.java.utils.TestParameters;
 
 
@@ -70,8 +74,11 @@ public class MetabolitePredictorWorker implements Runnable {
 	private static final String ERROR_ONLY_ONE_MOLECULE_SHOULD_BE_CREATED = "Error! Only one molecule should be created!";
 	private static final String NUMBER_OF_PREDICTED_PRODUCTS_UNEDITED = "Number of predicted products for molecule {}, unedited: {}";
 	private static final String PERFORMING_TRANSFORMATION_FOR_MOLECULE = "Performing transformation for molecule {} {}";
+	private static final String NUMBER_OF_SMILES_PARSES = "Number of SMILES parsed for molecule {}: {}";
 	private static final String TOTAL_NUMBER_OF_PRODUCTS = "Total number of products: {}";
 	private static final String PARENT_SMILES = "Parent SMILES: {}";
+	private static final String RERUNNING_WITH_FALLBACK_MODEL = "Rerunning molecule {} using FAME 3 model {} and phase {}";
+	private static final String ERROR_PREPARING_PARENT_MOLECULE = "Error preparing parent molecule {}";
 	private static final String ERROR_IN_FAME3_PREDICTION = "Error in FAME 3 prediction for molecule {} with SMILES {}. No metabolite predictions can be made for this molecule.";
 
 	
@@ -82,17 +89,22 @@ public class MetabolitePredictorWorker implements Runnable {
 	private IAtomContainer molecule;
 	private String inputSmiles;
 	private final String originalInputSmiles;
+	private IAtomContainer inputMolecule; // parsed while reading the input file, or parsed from the input SMILES when the input molecule is checked
 	private TestParameters testParameters;
-	private Globals fameParameters;
+	private MultiModelPredictor somModels;
+	private List<ExecutionSpec> executionSpecs; // one per FAME 3 model, with the phase that determines the reaction rules used with that model
+	private MultiModelPredictor fallbackSomModels; // generalized phase 2 model, used if any FAME 3 model fails for this molecule; null if there is no fallback
+	private ExecutionSpec fallbackSpec;
 	private int moleculeCounter;
 	private final String inputName;
-	private final Boolean rerunning;
 
 	// determine
 	private Boolean somPredicted; 
 	private double maxSomProbability;
 	private double medianSomProbability;
 	private double avgOfTop3SomProbabilities;
+	private ParentMolecule parent; // created once and used for the predictions of all models
+	private long numberOfSmilesParsesBefore; // SMILES parsed in this thread before the prediction started (see MoleculeManipulator.getNumberOfSmilesParsesInThread)
 
 	// fill
 	private Map<Integer, Prediction> predictions;
@@ -101,38 +113,43 @@ public class MetabolitePredictorWorker implements Runnable {
 	
 	
 	// constructor for using DrugBank dataset or combined reference dataset or new manually curated test dataset
-	public MetabolitePredictorWorker(String singleInputSmiles, Map<Integer, Prediction> predictions,
-			TestParameters testParameters, Globals fameParameters, final int moleculeCounter, String inputName, Boolean rerunning) {
+	public MetabolitePredictorWorker(InputMolecule input, Map<Integer, Prediction> predictions,
+			TestParameters testParameters, MultiModelPredictor somModels, List<ExecutionSpec> executionSpecs, 
+			MultiModelPredictor fallbackSomModels, ExecutionSpec fallbackSpec) {
 		
-		this.inputSmiles = singleInputSmiles;
-		this.originalInputSmiles = singleInputSmiles;
+		this.inputSmiles = input.getSmiles();
+		this.originalInputSmiles = input.getSmiles();
+		this.inputMolecule = input.getMolecule();
 		this.testParameters = testParameters;
-		this.fameParameters = fameParameters; 
-		this.moleculeCounter = moleculeCounter;
-		this.inputName = inputName;		
+		this.somModels = somModels; 
+		this.executionSpecs = executionSpecs;
+		this.fallbackSomModels = fallbackSomModels;
+		this.fallbackSpec = fallbackSpec;
+		this.moleculeCounter = input.getNumber();
+		this.inputName = input.getName();		
 		this.predictions = predictions;
 		
-		this.rerunning = rerunning;
-		
 		this.somPredicted = false;
 	}
 	
 	// constructor for user version
-	public MetabolitePredictorWorker(String singleInputSmiles, Map<Integer, Prediction> predictions, 
-			TestParameters testParameters, Globals fameParameters, final int moleculeCounter, String inputName, 
-			List<Long> runTimes, Boolean rerunning) {
+	public MetabolitePredictorWorker(InputMolecule input, Map<Integer, Prediction> predictions, 
+			TestParameters testParameters, MultiModelPredictor somModels, List<ExecutionSpec> executionSpecs, 
+			MultiModelPredictor fallbackSomModels, ExecutionSpec fallbackSpec, List<Long> runTimes) {
 		
-		this.inputSmiles = singleInputSmiles;
-		this.originalInputSmiles = singleInputSmiles;
+		this.inputSmiles = input.getSmiles();
+		this.originalInputSmiles = input.getSmiles();
+		this.inputMolecule = input.getMolecule();
 		this.testParameters = testParameters;
-		this.fameParameters = fameParameters;
-		this.moleculeCounter = moleculeCounter;
-		this.inputName = inputName;
+		this.somModels = somModels;
+		this.executionSpecs = executionSpecs;
+		this.fallbackSomModels = fallbackSomModels;
+		this.fallbackSpec = fallbackSpec;
+		this.moleculeCounter = input.getNumber();
+		this.inputName = input.getName();
 		this.predictions = predictions;
 		this.runTimes = runTimes;
 		
-		this.rerunning = rerunning;
-		
 		this.somPredicted = false;
 	}
 	
@@ -143,29 +160,66 @@ public class MetabolitePredictorWorker implements Runnable {
 	public void run() {
 		
 		Instant start = Instant.now();  // for measuring run time per compound
+		numberOfSmilesParsesBefore = MoleculeManipulator.getNumberOfSmilesParsesInThread();
 		
 		logger.debug("input smiles: {}", inputSmiles);
 		
 		// check that input molecule contains at least TestParameters.METABOLITE_HEAVY_ATOM_CUTOFF (i.e. 3) heavy atoms and that it can be processed by FAME 3
 		Boolean cantMakePrediction = checkInputMol();
 		if (cantMakePrediction) {
+			addSmilesParsesToPrediction();
 			return; // no need to bother trying to make predictions 
 		}
 		
-		inputSmiles = MoleculeManipulator.kekulizeMoleculeSmiles(inputSmiles);
+		// kekulize the molecule that was just checked instead of parsing the input SMILES again
+		MoleculeManipulator.kekulizeMolecule(inputMolecule);
+		inputSmiles = MoleculeManipulator.generateSmiles(inputMolecule);
 			
 		logger.debug("input smiles after kekulization: {}", inputSmiles);
-
 		
-		// first, calculate SoMs
+		// FAME 3 prepares the molecule differently depending on the order of the atoms, so the molecule for FAME 3 is parsed 
+		// from the kekulized SMILES, like before. Apart from a rerun with the fallback model, this is the only time it is parsed.
+		IAtomContainer moleculeForFame = MoleculeManipulator.generateMoleculeFromSmiles(inputSmiles);
+		parent = createParentMolForMap(inputMolecule);
+		inputMolecule = null;
+
 		
-		List<String> inputSmilesList = new ArrayList<>();
-		inputSmilesList.add(inputSmiles);
+		// first, calculate SoMs with all models (the descriptors are only calculated once)
 
 		// Prediction with FAME 3
 		SoMPredictor predictor = new SoMPredictor(moleculeCounter);
 		logger.debug(RUNNING_FAME3, inputSmiles);
-		IAtomContainerSet molecules = predictor.predict(inputSmilesList, fameParameters);
+		Map<String, IAtomContainerSet> moleculesPerModel = predictor.predict(moleculeForFame, somModels);
+		
+		// then predict the metabolites for each model with the corresponding reaction rules
+		for (ExecutionSpec spec : executionSpecs) {
+			predictMetabolitesWithModel(moleculesPerModel.get(spec.getFameModelName()), somModels.getModels().get(spec.getFameModelName()), spec);
+		}
+		
+		// if a FAME 3 model failed, rerun right away with the generalized phase 2 model instead of waiting for all other molecules
+		if (fallbackSpec != null && predictions.containsKey(moleculeCounter) && predictions.get(moleculeCounter).fameModelFailed()) {
+			
+			String fallbackModelName = fallbackSpec.getFameModelName();
+			logger.info(RERUNNING_WITH_FALLBACK_MODEL, moleculeCounter, fallbackModelName, fallbackSpec.getPhase().name());
+			
+			// the molecule is parsed again because it was changed by the first FAME 3 prediction
+			IAtomContainer moleculeForFallback = MoleculeManipulator.generateMoleculeFromSmiles(inputSmiles);
+			Map<String, IAtomContainerSet> moleculesForFallback = new SoMPredictor(moleculeCounter).predict(moleculeForFallback, fallbackSomModels);
+			predictMetabolitesWithModel(moleculesForFallback.get(fallbackModelName), fallbackSomModels.getModels().get(fallbackModelName), fallbackSpec);
+		}
+		
+		addSmilesParsesToPrediction();
+		
+		// for measuring run time per compound
+		if (testParameters.getReference() == TestParameters.Reference.TEST_DATASET && testParameters.isUserVersion()) {
+			Instant finish = Instant.now();
+			long timeElapsed = Duration.between(start, finish).toMillis();
+			logger.info("time elapsed in ms: {}", timeElapsed);
+			runTimes.add(timeElapsed);
+		}
+	}
+
+	private void predictMetabolitesWithModel(IAtomContainerSet molecules, Globals fameParameters, ExecutionSpec spec) {
 		
 		if ( molecules == null || molecules.getAtomContainerCount() > 1) {
 			logger.error(ERROR_ONLY_ONE_MOLECULE_SHOULD_BE_CREATED);
@@ -205,7 +259,7 @@ public class MetabolitePredictorWorker implements Runnable {
 			logger.info(PERFORMING_TRANSFORMATION_FOR_MOLECULE, (String) molecule.getProperty(Globals.ID_PROP), MoleculeManipulator.generateSmiles(molecule));
 		}
 		
-		Transformer transformer = new Transformer(testParameters, fameParameters.model_name, rerunning);
+		Transformer transformer = new Transformer(testParameters, fameParameters.model_name, spec.getPhase(), spec.isRerun());
 		Set<PredictedMolecule> predictedMetabolites = transformer.transform(molecule);
 		
 		logger.info(NUMBER_OF_PREDICTED_PRODUCTS_UNEDITED, (String) molecule.getProperty(Globals.ID_PROP), predictedMetabolites.size());
@@ -216,8 +270,6 @@ public class MetabolitePredictorWorker implements Runnable {
 		}
 		
 		setParentForAllPredictedMetabolites(predictedMetabolites); // only the ID is set since the other information is contained in the ParentMolecule 
-		ParentMolecule parent = new ParentMolecule();
-		createParentMolForMap(parent);
 		
 		
 		if (!predictions.containsKey(moleculeCounter)) {
@@ -225,6 +277,8 @@ public class MetabolitePredictorWorker implements Runnable {
 			if (somPredicted) {
 				prediction.setSomPredicted(somPredicted);
 			}
+			prediction.addScreenedOutRules(transformer.getNumberOfScreenedOutRules());
+			prediction.addDiscardedProducts(transformer.getNumberOfDiscardedProducts());
 			predictions.put(moleculeCounter, prediction);
 
 		} else {
@@ -234,6 +288,8 @@ public class MetabolitePredictorWorker implements Runnable {
 			if (somPredicted) {
 				p.setSomPredicted(somPredicted);
 			}
+			p.addScreenedOutRules(transformer.getNumberOfScreenedOutRules());
+			p.addDiscardedProducts(transformer.getNumberOfDiscardedProducts());
 			
 			Set<PredictedMolecule> alreadyPredicted = p.getPredictedMetabolites(); 
 			
@@ -241,21 +297,13 @@ public class MetabolitePredictorWorker implements Runnable {
 				p.setPredictedMetabolites(predictedMetabolites);
 				
 			} else {
+				MetaboliteAccumulator combined = new MetaboliteAccumulator(alreadyPredicted);
 				for (PredictedMolecule predictedMol : predictedMetabolites) {
-					
-					PredictionHandler ph = new PredictionHandler();
-					ph.addPredictedMoleculeIfNotInSetOrHasHigherScore(alreadyPredicted, predictedMol);
+					combined.addIfNotPresentOrHasHigherScore(predictedMol);
 				}
+				p.setPredictedMetabolites(combined.toSet());
 			}
 		}
-		
-		// for measuring run time per compound
-		if (testParameters.getReference() == TestParameters.Reference.TEST_DATASET && testParameters.isUserVersion()) {
-			Instant finish = Instant.now();
-			long timeElapsed = Duration.between(start, finish).toMillis();
-			logger.info("time elapsed in ms: {}", timeElapsed);
-			runTimes.add(timeElapsed);
-		}
 	}
 
 	private void somAnalysis() {
@@ -334,7 +382,9 @@ public class MetabolitePredictorWorker implements Runnable {
 	private Boolean checkInputMol() {
 		
 		Boolean cantMakePrediction = false;
-		IAtomContainer inputMolecule = MoleculeManipulator.generateMoleculeFromSmiles(inputSmiles);
+		if (inputMolecule == null || inputSmiles == null) {
+			inputMolecule = MoleculeManipulator.generateMoleculeFromSmiles(inputSmiles);
+		}
 		
 		if (inputMolecule == null) {
 			logger.error(INPUT_MOLECULE_COULD_NOT_BE_PROCESSED);
@@ -383,15 +433,19 @@ public class MetabolitePredictorWorker implements Runnable {
 		if (!predictions.containsKey(moleculeCounter)) {
 			// create parent, set error, set whether prediction failed
 			
-			ParentMolecule parent = new ParentMolecule();
+			ParentMolecule parentForMap;
 			
 			if (error == Errors.COULD_NOT_PROCESS_INPUT_MOL) {
-				parent.setSmiles(inputSmiles); 
+				parentForMap = new ParentMolecule();
+				parentForMap.setSmiles(inputSmiles); 
 			} else {
-				createParentMolForMap(parent);
+				if (parent == null) { // the input molecule was rejected before the parent was created
+					parent = createParentMolForMap(inputMolecule);
+				}
+				parentForMap = parent;
 			}
 
-			Prediction p = new Prediction(parent, null);
+			Prediction p = new Prediction(parentForMap, null);
 			p.addError(error);
 			if (error == Errors.OTHER_FAME_ERROR) {
 				p.setFameModelFailed(true);
@@ -409,8 +463,16 @@ public class MetabolitePredictorWorker implements Runnable {
 	}
 
 	
-	private void createParentMolForMap(ParentMolecule parent) {
+	/**
+	 * The parent molecule is created from the input molecule instead of parsing the input SMILES again.
+	 * Note that the input molecule is prepared the same way as in FAME 3 in the process, so it is changed.
+	 * 
+	 * @param molecule the input molecule
+	 * @return
+	 */
+	private ParentMolecule createParentMolForMap(IAtomContainer molecule) {
 		
+		ParentMolecule parent = new ParentMolecule();
 		parent.setId(Integer.toString(moleculeCounter));
 		
 		if (inputName == null || inputName.isEmpty()) {
@@ -420,20 +482,37 @@ public class MetabolitePredictorWorker implements Runnable {
 		}
 		
 		parent.setSmiles(inputSmiles);
-		parent.setInchi(MoleculeManipulator.generateInchiWithoutStereoFromSmiles(this.inputSmiles));
+		parent.setInchi(MoleculeManipulator.generateInchiWithoutStereo(molecule));
 		
-		if (testParameters.inputIsIndividualSmiles()) {
+		if (testParameters.inputIsIndividualSmiles() || testParameters.inputIsSmilesFile()) {
 			parent.setOriginalInputSmiles(originalInputSmiles);
 		}
 		
 
 		SoMPredictor sp = new SoMPredictor(moleculeCounter);
-		IAtomContainer parentMol = sp.prepareMolecule(inputSmiles);
+		try {
+			sp.prepareMolecule(molecule);
+		} catch (CDKException e) {
+			logger.error(ERROR_PREPARING_PARENT_MOLECULE, moleculeCounter);
+		}
 		
-		parent.setMolecularWeight(AtomContainerManipulator.getNaturalExactMass(parentMol));
-		parent.setHeavyAtomCount(MoleculeManipulator.getHeavyAtomCount(parentMol));
+		parent.setMolecularWeight(AtomContainerManipulator.getNaturalExactMass(molecule));
+		parent.setHeavyAtomCount(MoleculeManipulator.getHeavyAtomCount(molecule));
 		
-		return;
+		return parent;
+	}
+	
+	
+	/**
+	 * Measures the SMILES parses for this input molecule. All steps of the prediction run in this thread 
+	 * (the transformation with parallel reaction rule ranges does not parse SMILES).
+	 */
+	private void addSmilesParsesToPrediction() {
+		long numberOfSmilesParses = MoleculeManipulator.getNumberOfSmilesParsesInThread() - numberOfSmilesParsesBefore;
+		logger.debug(NUMBER_OF_SMILES_PARSES, moleculeCounter, numberOfSmilesParses);
+		if (predictions.containsKey(moleculeCounter)) {
+			predictions.get(moleculeCounter).addSmilesParses(numberOfSmilesParses);
+		}
 	}
 
 
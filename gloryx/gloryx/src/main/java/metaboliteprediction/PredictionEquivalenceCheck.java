@@ -0,0 +1,262 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package main.java.metaboliteprediction;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import main.java.data.DatasetLoader;
+import main.java.utils.Phase;
+import main.java.utils.Prediction;
+import main.java.utils.TestParameters;
+import main.java.utils.molecule.PredictedMolecule;
+
+/**
+ * Checks that a shortcut in the metabolite prediction does not change the predictions. The metabolites of all molecules 
+ * of an SD file (e.g., the reference dataset) are predicted for phases 1 and 2, once with the shortcut and once without it, 
+ * and the predicted metabolites of each parent molecule are compared by InChI, priority score, and reaction type.
+ * The shortcuts that can be checked are:
+ * <ul>
+ * <li>mappings: collapsing the mappings to one mapping per heavy-atom site (see TestParameters.useOneMappingPerHydrogenSite) 
+ * and collapsing the mappings that are exchanged by a symmetry of the parent molecule (see TestParameters.collapseSymmetricMappings), 
+ * compared to transforming all mappings</li>
+ * <li>structurekey: collecting the products by structure key (see TestParameters.useStructureKey), compared to collecting them by InChI</li>
+ * </ul>
+ * 
+ * Usage: PredictionEquivalenceCheck (mappings | structurekey) input.sdf [number of threads]
+ * The exit code is 1 if any of the predictions differ.
+ * 
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class PredictionEquivalenceCheck {
+	
+	private static final String USAGE = "Usage: PredictionEquivalenceCheck (mappings | structurekey) input.sdf [number of threads]";
+	private static final String ERROR_READING_INPUT = "Error reading input file {}";
+	private static final String ERROR_PREDICTING = "Error predicting metabolites";
+	private static final String RUN_TIME = "{}: run time {} ms";
+	private static final String MISSING_METABOLITE = "Molecule {} ({}): metabolite {} ({}) is only predicted {}";
+	private static final String CHANGED_METABOLITE = "Molecule {} ({}): metabolite {} is predicted as {} {}, but as {} {}";
+	private static final String MISSING_MOLECULE = "Molecule {} is only predicted {}";
+	private static final String RESULT = "Compared the predictions for {} molecules. Molecules with different predictions: {}";
+	
+	private static final Logger logger = LoggerFactory.getLogger(PredictionEquivalenceCheck.class.getName());
+	
+	private final String referenceDescription;
+	private final Consumer<TestParameters> reference;
+	private final String shortcutDescription;
+	private final Consumer<TestParameters> shortcut;
+	
+
+	/**
+	 * @param referenceDescription used in the log messages, e.g., "with all mappings"
+	 * @param reference sets up the test parameters for the predictions without the shortcut
+	 * @param shortcutDescription used in the log messages, e.g., "with collapsed mappings"
+	 * @param shortcut sets up the test parameters for the predictions with the shortcut
+	 */
+	public PredictionEquivalenceCheck(String referenceDescription, Consumer<TestParameters> reference, 
+			String shortcutDescription, Consumer<TestParameters> shortcut) {
+		this.referenceDescription = referenceDescription;
+		this.reference = reference;
+		this.shortcutDescription = shortcutDescription;
+		this.shortcut = shortcut;
+	}
+	
+
+	public static void main(String[] args) {
+		
+		if (args.length < 2) {
+			logger.error(USAGE);
+			System.exit(2);
+		}
+		
+		PredictionEquivalenceCheck check = null;
+		if (args[0].equals("mappings")) {
+			check = new PredictionEquivalenceCheck(
+					"with all mappings", testParameters -> {
+						testParameters.setOneMappingPerHydrogenSite(false);
+						testParameters.setCollapseSymmetricMappings(false);
+					}, 
+					"with collapsed mappings", testParameters -> {
+						testParameters.setOneMappingPerHydrogenSite(true);
+						testParameters.setCollapseSymmetricMappings(true);
+					});
+		} else if (args[0].equals("structurekey")) {
+			check = new PredictionEquivalenceCheck(
+					"with InChI", testParameters -> testParameters.setUseStructureKey(false), 
+					"with structure key", testParameters -> testParameters.setUseStructureKey(true));
+		} else {
+			logger.error(USAGE);
+			System.exit(2);
+		}
+		int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		
+		List<String> inputSmiles = new ArrayList<>();
+		List<String> inputNames = new ArrayList<>();
+		try (InputStream input = new FileInputStream(args[1])) {
+			new DatasetLoader().readInFromSDF(input, inputSmiles, inputNames);
+		} catch (IOException e) {
+			logger.error(ERROR_READING_INPUT, args[1], e);
+			System.exit(2);
+		}
+		
+		MetabolitePredictor predictor = new MetabolitePredictor(); // the FAME 3 models are only loaded once for both runs
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			int numberOfDifferences = check.run(predictor, inputSmiles, inputNames, executor);
+			logger.info(RESULT, inputSmiles.size(), numberOfDifferences);
+			
+			executor.shutdown();
+			System.exit(numberOfDifferences == 0 ? 0 : 1);
+			
+		} catch (InterruptedException e) {
+			logger.error(ERROR_PREDICTING, e);
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			System.exit(2);
+		}
+	}
+	
+	
+	/**
+	 * Predicts the metabolites with and without the shortcut and logs the differences.
+	 * 
+	 * @return the number of parent molecules with different predictions
+	 */
+	public int run(MetabolitePredictor predictor, List<String> inputSmiles, List<String> inputNames, 
+			ExecutorService executor) throws InterruptedException {
+		
+		Map<Integer, Prediction> withShortcut = predict(predictor, inputSmiles, inputNames, executor, shortcutDescription, shortcut);
+		Map<Integer, Prediction> withoutShortcut = predict(predictor, inputSmiles, inputNames, executor, referenceDescription, reference);
+		return compare(withShortcut, withoutShortcut);
+	}
+	
+	
+	private static Map<Integer, Prediction> predict(MetabolitePredictor predictor, List<String> inputSmiles, List<String> inputNames, 
+			ExecutorService executor, String description, Consumer<TestParameters> setup) throws InterruptedException {
+		
+		// new test parameters for each run, so that the setup of one run does not affect the other
+		TestParameters testParameters = new TestParameters(
+				TestParameters.UseSoMsAsHardFilter.NO,
+				0.2, // only used if using SoMs as hard filter
+				TestParameters.Version.USER,
+				TestParameters.UserVersion.OFFLINE,
+				TestParameters.Reference.NONE,
+				TestParameters.InputFormat.SDFILE,
+				Phase.PHASES_1_AND_2,
+				1); // the number of threads is determined by the executor
+		setup.accept(testParameters);
+		
+		Map<Integer, Prediction> predictions = Collections.synchronizedMap(new TreeMap<>());
+		List<Long> runTimes = Collections.synchronizedList(new ArrayList<>());
+		
+		long start = System.currentTimeMillis();
+		predictor.predictMetabolites(testParameters, inputSmiles, inputNames, predictions, runTimes, executor);
+		logger.info(RUN_TIME, description, System.currentTimeMillis() - start);
+		
+		return predictions;
+	}
+	
+	
+	private int compare(Map<Integer, Prediction> withShortcut, Map<Integer, Prediction> withoutShortcut) {
+		
+		TreeSet<Integer> molecules = new TreeSet<>(withoutShortcut.keySet());
+		molecules.addAll(withShortcut.keySet());
+		
+		int numberOfDifferences = 0;
+		for (Integer molecule : molecules) {
+			
+			Prediction expectedPrediction = withoutShortcut.get(molecule);
+			Prediction actualPrediction = withShortcut.get(molecule);
+			if (expectedPrediction == null || actualPrediction == null) {
+				numberOfDifferences ++;
+				logger.error(MISSING_MOLECULE, molecule, expectedPrediction == null ? shortcutDescription : referenceDescription);
+				continue;
+			}
+			
+			String name = expectedPrediction.getParentMolecule().getName();
+			Map<String, PredictedMolecule> expected = summarize(expectedPrediction);
+			Map<String, PredictedMolecule> actual = summarize(actualPrediction);
+			
+			boolean isDifferent = false;
+			for (Map.Entry<String, PredictedMolecule> entry : expected.entrySet()) {
+				PredictedMolecule expectedMetabolite = entry.getValue();
+				PredictedMolecule actualMetabolite = actual.get(entry.getKey());
+				if (actualMetabolite == null) {
+					isDifferent = true;
+					logger.error(MISSING_METABOLITE, molecule, name, entry.getKey(), describe(expectedMetabolite), referenceDescription);
+				} else if (!describe(actualMetabolite).equals(describe(expectedMetabolite))) {
+					isDifferent = true;
+					logger.error(CHANGED_METABOLITE, molecule, name, entry.getKey(), 
+							describe(actualMetabolite), shortcutDescription, describe(expectedMetabolite), referenceDescription);
+				}
+			}
+			for (Map.Entry<String, PredictedMolecule> entry : actual.entrySet()) {
+				if (!expected.containsKey(entry.getKey())) {
+					isDifferent = true;
+					logger.error(MISSING_METABOLITE, molecule, name, entry.getKey(), describe(entry.getValue()), shortcutDescription);
+				}
+			}
+			if (isDifferent) {
+				numberOfDifferences ++;
+			}
+		}
+		return numberOfDifferences;
+	}
+	
+	
+	/**
+	 * @return the predicted metabolites mapped by InChI, sorted by InChI (metabolites without InChI first)
+	 */
+	private static Map<String, PredictedMolecule> summarize(Prediction prediction) {
+		
+		Map<String, PredictedMolecule> summary = new TreeMap<>(Comparator.nullsFirst(Comparator.naturalOrder()));
+		if (prediction.getPredictedMetabolites() == null) {
+			return summary;
+		}
+		for (PredictedMolecule metabolite : prediction.getPredictedMetabolites()) {
+			summary.put(metabolite.getInchi(), metabolite);
+		}
+		return summary;
+	}
+	
+	
+	private static String describe(PredictedMolecule metabolite) {
+		return metabolite.getPriorityScore() + " " + metabolite.getTransformationName();
+	}
+
+}
@@ -27,7 +27,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -208,7 +207,7 @@ public class PredictionEvaluator {
 	private List<PredictedMolecule> getUniquePredictionsWithoutStereo() {
 		// this method is for filling in this.rankedUniquePredictions
 		
-		Set<PredictedMolecule> uniquePredictions = new HashSet<>();
+		MetaboliteAccumulator uniquePredictions = new MetaboliteAccumulator();
 		Set<String> inchis = new HashSet<>();
 		PredictionHandler ph = new PredictionHandler();
 		
@@ -225,17 +224,19 @@ public class PredictionEvaluator {
 				if (added) {
 					uniqueCounter += 1;
 					mol.setTransformationName(predicted.getTransformationName());
-					uniquePredictions.add(mol);
+					uniquePredictions.addIfNotPresent(mol);
 
 				} else if (mol.getPriorityScore() != (double) 0 && mol.getPriorityScore() != null) {
-					ensureHighestPriorityScoreInUniquePredictions(uniquePredictions, mol, predicted.getTransformationName());
+					// keep the highest priority score
+					mol.setTransformationName(predicted.getTransformationName());
+					uniquePredictions.addIfNotPresentOrHasHigherScore(mol);
 				}
 			}
 		}
 				
 		logger.info(NUMBER_OF_PREDICTED_METABOLITES_WITHOUT_DUPLICATES, uniqueCounter);		
 
-		return ph.rankPredictedMetabolites(uniquePredictions);  // allow/handle ties
+		return ph.rankPredictedMetabolites(uniquePredictions.toSet());  // allow/handle ties
 	}
 
 
@@ -458,27 +459,6 @@ public class PredictionEvaluator {
 	}
 
 	
-	private void ensureHighestPriorityScoreInUniquePredictions(Set<PredictedMolecule> uniquePredictions, final PredictedMolecule mol, final String transformationName) {
-		
-		Iterator<PredictedMolecule> uniquePredictionsIterator = uniquePredictions.iterator();
-		Boolean needToReplace = false;
-		while (uniquePredictionsIterator.hasNext()) {
-			PredictedMolecule nextMolecule = uniquePredictionsIterator.next();
-			
-			// if InChI is the same, check if the priority score is lower and, if so, replace with the current mol
-			if (nextMolecule.getInchi().equals(mol.getInchi()) && nextMolecule.getPriorityScore() < mol.getPriorityScore()) {
-				uniquePredictionsIterator.remove();
-				needToReplace = true;
-				break;
-			}
-		}
-		if (needToReplace) {
-			mol.setTransformationName(transformationName);
-			uniquePredictions.add(mol);
-		}
-	}
-
-	
 	private static Boolean addOriginalInchi(Set<String> inchis, final String inchi, final String smiles, final PredictedMolecule molecule) {
 		Boolean added = inchis.add(inchi);  
 		printProductMessage(added, smiles, molecule);
@@ -25,15 +25,14 @@ package main.java.metaboliteprediction;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.openscience.cdk.graph.ConnectivityChecker;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.Assert;
 
 import main.java.utils.TestParameters;
 import main.java.utils.molecule.MoleculeManipulator;
@@ -47,106 +46,15 @@ import main.java.utils.molecule.PredictedMolecule;
  */
 public class PredictionHandler {
 
-	private static final String EXISTING_PREDICTED_METABOLITES_SHOULD_NOT_BE_NULL = "Existing predicted metabolites should not be null.";
-	private static final String PRODUCT_ALREADY_IN_SET_WITH_LOWER_SCORE = "Product already in set but with lower score. Replacing.";
-	private static final String PREDICTED_MOLECULE_HAS_NO_INCHI = "Predicted molecule has no InChI.";
-	private static final String NOT_ADDING_PRODUCT_TO_SET_BECAUSE_NO_INCHI_COULD_BE_GENERATED = "Not adding product {} from transformation {} to set because no InChI could be generated.";
-	private static final String PRODUCT_ALREADY_IN_SET_WITH_HIGHER_SCORE = "Not adding product to set because it's already in the set but with a higher priority score";
 	private static final String PERIOD = "\\.";
+	private static final String EMPTY_STRING = "";
 	private static final String NULL_INCHI_FOR_PREDICTED_SMILES = "Null InChI for predicted smiles {}";
 
 	
-	private static final double THRESHOLD = .000001; // used when checking whether two numbers are equal
+	public static final double THRESHOLD = .000001; // used when checking whether two priority scores are equal (see rankPredictedMetabolites)
 	
 	private static final Logger logger = LoggerFactory.getLogger(PredictionHandler.class.getName());
-
-	
-	/**
-	 * Adds a predicted metabolite if it is not already in the set or if it has a higher priority score than the version already in the set.
-	 * <p>
-	 * WARNING: InChI from predictedComponent used as is. No change to whether or not stereochemistry information is contained.
-	 * 
-	 * @param products
-	 * @param predictedComponent
-	 */
-	public void addPredictedMoleculeIfNotInSetOrHasHigherScore(Set<PredictedMolecule> products, final PredictedMolecule predictedComponent) {
-		
-		Assert.notNull(products, EXISTING_PREDICTED_METABOLITES_SHOULD_NOT_BE_NULL);
-		
-		if (predictedComponent.getInchi() == null) {
-			logger.info(NOT_ADDING_PRODUCT_TO_SET_BECAUSE_NO_INCHI_COULD_BE_GENERATED, predictedComponent.getParentID(), predictedComponent.getTransformationName());
-		}
-		
-		Boolean toAdd = true;
-		
-		Iterator<PredictedMolecule> itr = products.iterator();
-		while (itr.hasNext()) {
-			PredictedMolecule mol = itr.next();
-			
-			if (mol.getInchi() == null) {
-				logger.warn(PREDICTED_MOLECULE_HAS_NO_INCHI);
-			} else {
-				if (mol.getInchi().equals(predictedComponent.getInchi())) {
-					
-					if ((Double) mol.getPriorityScore() >= (Double) predictedComponent.getPriorityScore()) {
-						toAdd = false;
-						logger.debug(PRODUCT_ALREADY_IN_SET_WITH_HIGHER_SCORE);
-						
-					} else if ((Double) mol.getPriorityScore() < (Double) predictedComponent.getPriorityScore()) {
-						logger.debug(PRODUCT_ALREADY_IN_SET_WITH_LOWER_SCORE);
-						itr.remove();  // remove from set since same product but lower priority score. Will add back in the one with the higher score later.
-					}
-					break; // because there are no duplicates in predicted set
-				}
-			}
-		}
-		if (toAdd) {  
-			products.add(predictedComponent);
-		} 
-		return;
-	}
-	
 	
-	/**
-	 * Adds a predicted metabolite if it is not already in the set.
-	 * <p>
-	 * WARNING: InChI from predictedComponent used as is. No change to whether or not stereochemistry information is contained.
-	 * 
-	 * @param products
-	 * @param predictedComponent
-	 */
-	public void addPredictedMoleculeIfNotInSet(Set<PredictedMolecule> products, final PredictedMolecule predictedComponent) {
-		
-		Assert.notNull(products, EXISTING_PREDICTED_METABOLITES_SHOULD_NOT_BE_NULL);
-		
-		if (predictedComponent.getInchi() == null) {
-			logger.info(NOT_ADDING_PRODUCT_TO_SET_BECAUSE_NO_INCHI_COULD_BE_GENERATED, predictedComponent.getParentID(), predictedComponent.getTransformationName());
-		}
-		
-		Boolean toAdd = true;
-		
-		Iterator<PredictedMolecule> itr = products.iterator();
-		while (itr.hasNext()) {
-			PredictedMolecule mol = itr.next();
-			
-			if (mol.getInchi() == null) {
-				logger.warn(PREDICTED_MOLECULE_HAS_NO_INCHI);
-			} else {
-				if (mol.getInchi().equals(predictedComponent.getInchi())) {
-					
-					// predicted metabolite is already in the set
-					toAdd = false;
-					break; // because there are no duplicates in predicted set
-				}
-			}
-		}
-		if (toAdd) {  
-			logger.debug("adding molecule to set");
-			products.add(predictedComponent);
-		} 
-		return;
-	}
-
 	
 	/**
 	 * Ranks the predicted metabolites based on their priority scores.
@@ -201,9 +109,10 @@ public class PredictionHandler {
 		final String[] smilesParts = wholeSmiles.split(PERIOD);
 
 		if (smilesParts.length > 1) {
-						
-			for (String componentSmiles : smilesParts) {
-				processAndAddMolecule(testParameters, molecules, priorityScore, transformationName, parentID, madeSoMCutoff, componentSmiles);
+			
+			// the components are taken from the molecule, so their SMILES do not have to be parsed again
+			for (IAtomContainer component : ConnectivityChecker.partitionIntoMolecules(iAtomContainer).atomContainers()) {
+				processAndAddMolecule(testParameters, molecules, priorityScore, transformationName, parentID, madeSoMCutoff, generateComponentSmiles(component), component);
 			}
 			
 		} else {
@@ -212,6 +121,7 @@ public class PredictionHandler {
 		return molecules;
 	}
 	
+	
 	 // TODO
 	public Set<PredictedMolecule> getComponentsOfMoleculeWithoutStereochemistry(final TestParameters testParameters, final PredictedMolecule molecule) {
 		// if molecule is actually made up of more than one molecule, process all component molecules
@@ -262,14 +172,26 @@ public class PredictionHandler {
 	private void processAndAddMolecule(final TestParameters testParameters, Set<PredictedMolecule> molecules, final Double priorityScore, final String transformationName, 
 			final String parentID, final Boolean madeSoMCutoff, final String smiles, IAtomContainer molecule) {
 		
-		if (!MoleculeManipulator.checkIfOnlyHydrogens(smiles) && 
-				( (testParameters.getMetaboliteNumberOfHeavyAtomsCutoff() > 0 && MoleculeManipulator.moleculeIsLargeEnough(smiles, testParameters.getMetaboliteNumberOfHeavyAtomsCutoff())) 
+		if (!MoleculeManipulator.checkIfOnlyHydrogens(molecule) && 
+				( (testParameters.getMetaboliteNumberOfHeavyAtomsCutoff() > 0 && MoleculeManipulator.moleculeIsLargeEnough(molecule, testParameters.getMetaboliteNumberOfHeavyAtomsCutoff())) 
 						|| (testParameters.getMetaboliteNumberOfHeavyAtomsCutoff() == 0) ) ) { // TODO don't need the second part of the OR
 				
-			String inchi = MoleculeManipulator.generateInchiWithoutStereo(molecule);
+			// the structure key is much faster to generate than the InChI, which is then only generated for the distinct metabolites (see Transformer)
+			String structureKey = null;
+			String inchi = EMPTY_STRING;
+			if (testParameters.useStructureKey()) {
+				structureKey = MoleculeManipulator.generateStructureKey(molecule);
+			}
+			if (structureKey == null) {
+				inchi = MoleculeManipulator.generateInchiWithoutStereo(molecule);
+			}
 			if (inchi != null) {
 				
 				PredictedMolecule mol = createComponent(priorityScore, transformationName, parentID, madeSoMCutoff, smiles, inchi);
+				if (structureKey != null) {
+					mol.setStructureKey(structureKey);
+					mol.setAtomContainer(molecule); // for the InChI (see Transformer)
+				}
 				molecules.add(mol);
 				
 			}  else {
@@ -280,6 +202,17 @@ public class PredictionHandler {
 	}
 
 
+	private String generateComponentSmiles(IAtomContainer component) {
+		// same as for the whole molecule, see MoleculeManipulator.convertIAtomContainerToPredictedMolecule
+		
+		String smiles = MoleculeManipulator.generateSmiles(component);
+		if (smiles == null || smiles.isEmpty()) {
+			smiles = MoleculeManipulator.generateSmilesWithoutStereo(component);
+		}
+		return smiles;
+	}
+
+
 	private PredictedMolecule createComponent(final Double priorityScore, final String transformationName, final String parentID, 
 			final Boolean madeSoMCutoff, final String smiles, final String inchi) {
 		
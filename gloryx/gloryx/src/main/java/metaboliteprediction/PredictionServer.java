@@ -0,0 +1,456 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package main.java.metaboliteprediction;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import main.java.data.DatasetLoader;
+import main.java.utils.Errors;
+import main.java.utils.Filenames;
+import main.java.utils.Phase;
+import main.java.utils.Prediction;
+import main.java.utils.TestParameters;
+import main.java.utils.analysis.ResultsWriter;
+import main.java.utils.molecule.ParentMolecule;
+import main.java.utils.molecule.PredictedMolecule;
+
+/**
+ * Runs GLORYx as a long-running server so that the FAME 3 models are loaded only once and the JIT-compiled code
+ * is reused across predictions, instead of paying for both on every invocation of the command line tool.
+ *
+ * The protocol is line-delimited JSON over stdin/stdout. Each line read from stdin is one request, e.g.
+ * <pre>
+ * {"id": "1", "smiles": ["CC(=O)Nc1ccc(O)cc1"], "names": ["paracetamol"], "phase": "P1+P2", "output": "sdf"}
+ * </pre>
+ * Instead of "smiles", the request can contain the contents of an SD file as "sdf". "names", "phase" (default P1+P2),
+ * "output", "topK" (only return the metabolites ranked within the top k), and "minScore" (discard metabolites 
+ * with a lower priority score; the number discarded is returned as "numDiscardedBelowMinScore") are optional. 
+ * Each response is written as a single line, with "status" either "ok" or "error".
+ * The predicted metabolites are returned with the same properties as in the output SD file (see {@link ResultsWriter}),
+ * and the SD file itself is included if "output" is "sdf".
+ * Requests are processed concurrently, so the responses can be matched to the requests using the "id".
+ * An invalid request results in an error response for that request only; the server keeps running until stdin is closed.
+ *
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class PredictionServer {
+
+	private static final String ERROR_READING_REQUESTS = "Error reading requests. Shutting down server.";
+	private static final String ERROR_PROCESSING_REQUEST = "Error processing request {}.";
+	private static final String ERROR_SHUTTING_DOWN_SERVER = "Error shutting down server.";
+	private static final String INVALID_JSON = "The request is not valid JSON.";
+	private static final String NO_INPUT_IN_REQUEST = "The request must contain either \"smiles\" or \"sdf\".";
+	private static final String INVALID_PHASE = "The phase must be one of P1, P2, or P1+P2.";
+	private static final String INVALID_NAMES = "The number of names must be the same as the number of SMILES.";
+	private static final String INVALID_SMILES = "\"smiles\" must be a string or a list of strings.";
+	private static final String INVALID_TOP_K = "\"topK\" must be a non-negative integer.";
+	private static final String INVALID_MIN_SCORE = "\"minScore\" must be a non-negative number.";
+
+	private static final String ID_KEY = "id";
+	private static final String SMILES_KEY = "smiles";
+	private static final String NAMES_KEY = "names";
+	private static final String SDF_KEY = "sdf";
+	private static final String PHASE_KEY = "phase";
+	private static final String OUTPUT_KEY = "output";
+	private static final String TOP_K_KEY = "topK";
+	private static final String MIN_SCORE_KEY = "minScore";
+	private static final String NUM_DISCARDED_KEY = "numDiscardedBelowMinScore";
+	private static final String STATUS_KEY = "status";
+	private static final String ERROR_KEY = "error";
+	private static final String ERRORS_KEY = "errors";
+	private static final String PREDICTIONS_KEY = "predictions";
+	private static final String METABOLITES_KEY = "metabolites";
+	private static final String NUM_WITH_PREDICTIONS_KEY = "numWithPredictions";
+	private static final String NAME_KEY = "Name";
+	private static final String INCHI_KEY = "InChI";
+	private static final String STATUS_OK = "ok";
+	private static final String STATUS_ERROR = "error";
+	private static final String SDF_OUTPUT = "sdf";
+	private static final String DEFAULT_PHASE = "P1+P2";
+
+	private static final String WARMUP_SMILES = "CC(=O)Nc1ccc(O)cc1"; // paracetamol, has both phase 1 and phase 2 metabolites
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static final Logger logger = LoggerFactory.getLogger(PredictionServer.class.getName());
+
+	private final MetabolitePredictor predictor = new MetabolitePredictor(); // keeps the loaded FAME 3 models
+	private final int numThreads;
+	private final InputStream in;
+	private final PrintStream out;
+
+
+	public PredictionServer(int numThreads, InputStream in, PrintStream out) {
+		this.numThreads = numThreads;
+		this.in = in;
+		this.out = out;
+	}
+
+
+	/**
+	 * Loads the models, warms up, and then processes requests until stdin is closed.
+	 * Waits for all pending requests to be answered before returning.
+	 */
+	public void run() {
+
+		loadModels();
+
+		// the workers of all requests share one thread pool, so concurrent requests don't use more than numThreads for predictions
+		ExecutorService predictionExecutor = Executors.newFixedThreadPool(numThreads);
+		ExecutorService requestExecutor = Executors.newFixedThreadPool(numThreads);
+		try {
+
+			warmUp(predictionExecutor);
+			logger.info("Server ready.");
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					String request = line;
+					requestExecutor.execute(() -> respond(handleRequest(request, predictionExecutor)));
+				}
+
+			} catch (IOException e) {
+				logger.error(ERROR_READING_REQUESTS, e);
+			}
+
+			requestExecutor.shutdown();
+			requestExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MINUTES);
+
+		} catch (InterruptedException e) {
+			logger.error(ERROR_SHUTTING_DOWN_SERVER);
+			Thread.currentThread().interrupt();
+		} finally {
+			requestExecutor.shutdownNow();
+			predictionExecutor.shutdownNow();
+		}
+	}
+
+
+	private void loadModels() {
+		for (Phase phase : new Phase[] {Phase.PHASE_1, Phase.PHASE_2, Phase.PHASES_1_AND_2}) {
+			predictor.loadFameModels(createTestParameters(phase, TestParameters.InputFormat.INDIVIDUAL_SMILES));
+		}
+	}
+
+
+	/**
+	 * Makes a few predictions so that the hot code paths are already compiled when the first request arrives.
+	 */
+	private void warmUp(ExecutorService predictionExecutor) throws InterruptedException {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			TestParameters testParameters = createTestParameters(Phase.PHASES_1_AND_2, TestParameters.InputFormat.INDIVIDUAL_SMILES);
+			predict(testParameters, Collections.singletonList(WARMUP_SMILES), Collections.singletonList(""), predictionExecutor);
+		}
+	}
+
+
+	private JSONObject handleRequest(String line, ExecutorService predictionExecutor) {
+
+		Object id = null;
+		try {
+
+			JSONObject request;
+			try {
+				request = (JSONObject) new JSONParser().parse(line);
+			} catch (ParseException | ClassCastException e) {
+				throw new IllegalArgumentException(INVALID_JSON);
+			}
+			id = request.get(ID_KEY);
+
+			return predictForRequest(request, predictionExecutor);
+
+		} catch (IllegalArgumentException e) {
+			return createErrorResponse(id, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return createErrorResponse(id, ERROR_SHUTTING_DOWN_SERVER);
+		} catch (Exception e) { // never let a single request take down the server
+			logger.error(ERROR_PROCESSING_REQUEST, id, e);
+			return createErrorResponse(id, Errors.COULD_NOT_PROCESS_INPUT_MOL.errorMessage());
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private JSONObject predictForRequest(JSONObject request, ExecutorService predictionExecutor) throws InterruptedException, IOException {
+
+		String phaseString = request.containsKey(PHASE_KEY) ? String.valueOf(request.get(PHASE_KEY)) : DEFAULT_PHASE;
+		if (!phaseString.equals("P1") && !phaseString.equals("P2") && !phaseString.equals("P1+P2")) {
+			throw new IllegalArgumentException(INVALID_PHASE);
+		}
+		Phase phase = Phase.getPhaseFromString(phaseString);
+
+		List<String> inputSmiles = new ArrayList<>();
+		List<String> inputNames = new ArrayList<>();
+		TestParameters testParameters;
+		String sdf = null;
+
+		if (request.get(SDF_KEY) != null) {
+
+			sdf = String.valueOf(request.get(SDF_KEY));
+			new DatasetLoader().readInFromSDF(new ByteArrayInputStream(sdf.getBytes(StandardCharsets.UTF_8)), inputSmiles, inputNames);
+			if (inputSmiles.isEmpty()) {
+				throw new IllegalArgumentException(Errors.INPUT_SD_FILE_BROKEN.errorMessage());
+			}
+			testParameters = createTestParameters(phase, TestParameters.InputFormat.SDFILE);
+
+		} else if (request.get(SMILES_KEY) != null) {
+
+			inputSmiles = readStrings(request.get(SMILES_KEY), INVALID_SMILES);
+			if (request.get(NAMES_KEY) != null) {
+				inputNames = readStrings(request.get(NAMES_KEY), INVALID_NAMES);
+				if (inputNames.size() != inputSmiles.size()) {
+					throw new IllegalArgumentException(INVALID_NAMES);
+				}
+			} else {
+				for (int i = 0; i < inputSmiles.size(); i++) {
+					inputNames.add("");
+				}
+			}
+			testParameters = createTestParameters(phase, TestParameters.InputFormat.INDIVIDUAL_SMILES);
+
+		} else {
+			throw new IllegalArgumentException(NO_INPUT_IN_REQUEST);
+		}
+
+		if (inputSmiles.isEmpty()) {
+			throw new IllegalArgumentException(Errors.NO_VALID_INPUT.errorMessage());
+		}
+		
+		if (request.get(TOP_K_KEY) != null) {
+			if (!(request.get(TOP_K_KEY) instanceof Long) || (Long) request.get(TOP_K_KEY) < 0) { // json-simple parses integers as Long
+				throw new IllegalArgumentException(INVALID_TOP_K);
+			}
+			testParameters.setTopK(((Long) request.get(TOP_K_KEY)).intValue());
+		}
+		if (request.get(MIN_SCORE_KEY) != null) {
+			if (!(request.get(MIN_SCORE_KEY) instanceof Number) || ((Number) request.get(MIN_SCORE_KEY)).doubleValue() < 0) {
+				throw new IllegalArgumentException(INVALID_MIN_SCORE);
+			}
+			testParameters.setMinPriorityScore(((Number) request.get(MIN_SCORE_KEY)).doubleValue());
+		}
+
+		Map<Integer, Prediction> allPredictedMolecules = predict(testParameters, inputSmiles, inputNames, predictionExecutor);
+
+		JSONObject response = new JSONObject();
+		response.put(ID_KEY, request.get(ID_KEY));
+		response.put(STATUS_KEY, STATUS_OK);
+
+		JSONArray predictions = new JSONArray();
+		int numWithPredictions = 0;
+		int numDiscarded = 0;
+		for (int molNum = 1; molNum <= inputSmiles.size(); molNum++) {
+
+			Prediction p = allPredictedMolecules.get(molNum);
+			JSONObject prediction = createPredictionJson(molNum, inputSmiles.get(molNum - 1), inputNames.get(molNum - 1), p);
+			if (!((JSONArray) prediction.get(METABOLITES_KEY)).isEmpty()) {
+				numWithPredictions ++;
+			}
+			if (p != null) {
+				numDiscarded += p.getNumberOfDiscardedProducts();
+			}
+			predictions.add(prediction);
+		}
+		response.put(NUM_WITH_PREDICTIONS_KEY, numWithPredictions);
+		response.put(NUM_DISCARDED_KEY, numDiscarded);
+		response.put(PREDICTIONS_KEY, predictions);
+
+		if (SDF_OUTPUT.equals(request.get(OUTPUT_KEY))) {
+			response.put(SDF_KEY, writeSdf(testParameters, sdf, allPredictedMolecules));
+		}
+
+		return response;
+	}
+
+
+	private Map<Integer, Prediction> predict(TestParameters testParameters, List<String> inputSmiles, List<String> inputNames,
+			ExecutorService predictionExecutor) throws InterruptedException {
+
+		Map<Integer, Prediction> allPredictedMolecules = Collections.synchronizedMap(new TreeMap<>()); // sorted by input number for writing
+		List<Long> runTimes = Collections.synchronizedList(new ArrayList<>());
+
+		predictor.predictMetabolites(testParameters, inputSmiles, inputNames, allPredictedMolecules, runTimes, predictionExecutor);
+		predictor.combineAndRankPredictions(testParameters, allPredictedMolecules);
+
+		return allPredictedMolecules;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createPredictionJson(int molNum, String inputSmiles, String inputName, Prediction p) {
+
+		JSONObject prediction = new JSONObject();
+		JSONArray errors = new JSONArray();
+		JSONArray metabolites = new JSONArray();
+
+		if (p == null || p.getParentMolecule() == null) { // the worker failed before it could record anything
+
+			prediction.put(ResultsWriter.PROPERTY_PARENT_ID, Integer.toString(molNum));
+			prediction.put(NAME_KEY, inputName);
+			prediction.put(ResultsWriter.PROPERTY_PARENT_SMILES, inputSmiles);
+			errors.add(Errors.COULD_NOT_PROCESS_INPUT_MOL.errorMessage());
+
+		} else {
+
+			ParentMolecule parent = p.getParentMolecule();
+			prediction.put(ResultsWriter.PROPERTY_PARENT_ID, parent.getId());
+			prediction.put(NAME_KEY, parent.getName());
+			prediction.put(ResultsWriter.PROPERTY_PARENT_SMILES,
+					parent.getOriginalInputSmiles() != null ? parent.getOriginalInputSmiles() : parent.getSmiles());
+			prediction.put(ResultsWriter.PROPERTY_PARENT_INCHI, parent.getInchi());
+
+			for (Errors error : p.getErrors()) {
+				errors.add(error.errorMessage());
+			}
+
+			List<PredictedMolecule> rankedMetabolites = p.getRankedPredictedMetabolites();
+			if (rankedMetabolites != null) {
+				for (PredictedMolecule metabolite : rankedMetabolites) {
+					if (metabolite.getInchi() == null || metabolite.getInchi().isEmpty()) {
+						continue; // not valid, also not written to the output SD file
+					}
+					JSONObject m = new JSONObject();
+					m.put(ResultsWriter.PROPERTY_RANK, metabolite.getRank());
+					m.put(ResultsWriter.PROPERTY_PRIORITY_SCORE, metabolite.getPriorityScore());
+					m.put(ResultsWriter.PROPERTY_REACTION_TYPE, metabolite.getTransformationName());
+					m.put(ResultsWriter.PROPERTY_SMILES, metabolite.getSmiles());
+					m.put(INCHI_KEY, metabolite.getInchi());
+					metabolites.add(m);
+				}
+			}
+		}
+
+		prediction.put(ERRORS_KEY, errors);
+		prediction.put(METABOLITES_KEY, metabolites);
+		return prediction;
+	}
+
+
+	/**
+	 * Writes the predictions in the same format as the output SD file of the command line tool.
+	 * The parent molecules are taken from the input SD file if there is one, so it is written to a temporary file
+	 * because that is where the ResultsWriter reads them from.
+	 */
+	private String writeSdf(TestParameters testParameters, String sdf, Map<Integer, Prediction> allPredictedMolecules) throws IOException {
+
+		Filenames filenames = new Filenames("");
+		File inputFile = null;
+		try {
+			if (sdf != null) {
+				inputFile = File.createTempFile("gloryx_input", ".sdf");
+				Files.write(inputFile.toPath(), sdf.getBytes(StandardCharsets.UTF_8));
+				filenames.setUserInputFilename(inputFile.getPath());
+			}
+
+			StringWriter writer = new StringWriter();
+			new ResultsWriter(testParameters, filenames).writePredictionsToSdf(writer, allPredictedMolecules);
+			return writer.toString();
+
+		} finally {
+			if (inputFile != null) {
+				inputFile.delete();
+			}
+		}
+	}
+
+
+	private static List<String> readStrings(Object value, String errorMessage) {
+		List<String> strings = new ArrayList<>();
+		if (value instanceof String) {
+			strings.add((String) value);
+		} else if (value instanceof JSONArray) {
+			for (Object o : (JSONArray) value) {
+				if (!(o instanceof String)) {
+					throw new IllegalArgumentException(errorMessage);
+				}
+				strings.add((String) o);
+			}
+		} else {
+			throw new IllegalArgumentException(errorMessage);
+		}
+		return strings;
+	}
+
+
+	private static TestParameters createTestParameters(Phase phase, TestParameters.InputFormat inputFormat) {
+		return new TestParameters(
+				TestParameters.UseSoMsAsHardFilter.NO,
+				0.2, // only used if using SoMs as hard filter
+				TestParameters.Version.USER,
+				TestParameters.UserVersion.OFFLINE,
+				TestParameters.Reference.NONE,
+				inputFormat,
+				phase,
+				1); // the number of threads is determined by the shared executor
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject createErrorResponse(Object id, String message) {
+		JSONObject response = new JSONObject();
+		response.put(ID_KEY, id);
+		response.put(STATUS_KEY, STATUS_ERROR);
+		response.put(ERROR_KEY, message);
+		return response;
+	}
+
+
+	private void respond(JSONObject response) {
+		String line = response.toJSONString();
+		synchronized (out) { // one response per line, even if requests finish at the same time
+			out.println(line);
+			out.flush();
+		}
+	}
+
+
+}
@@ -25,7 +25,9 @@ package main.java.sompredictor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.openscience.cdk.aromaticity.CDKHueckelAromaticityDetector;
@@ -37,6 +39,7 @@ import org.openscience.cdk.interfaces.IAtomContainerSet;
 import org.openscience.cdk.interfaces.IRing;
 import org.openscience.cdk.interfaces.IRingSet;
 import org.openscience.cdk.normalize.SMSDNormalizer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.ringsearch.AllRingsFinder;
 import org.openscience.cdk.smiles.FixBondOrdersTool;
 import org.openscience.cdk.tools.CDKHydrogenAdder;
@@ -51,10 +54,14 @@ import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 import org.zbh.fame.fame3.globals.Globals;
 import org.zbh.fame.fame3.main.Main;
+import org.zbh.fame.fame3.modelling.MultiModelPredictor;
 import org.zbh.fame.fame3.modelling.Predictor;
+import org.zbh.fame.fame3.utils.MoleculeKUFAME;
 import org.zbh.fame.fame3.utils.data.FAMEMolSupplier;
 import org.zbh.fame.fame3.utils.data.parsers.SMILESListParser;
 
+import smartcyp.SMARTSnEnergiesTable;
+
 import main.java.utils.molecule.MoleculeManipulator;
 
 
@@ -192,6 +199,50 @@ public class SoMPredictor {
 		return moleculesWithSoMs;
 	}
 
+	/**
+	 * Predict SoMs with several FAME 3 models for only one molecule at a time. The descriptors are calculated only once 
+	 * and then used for all models. 
+	 * The molecule is used by FAME 3 directly instead of being parsed from SMILES again, so it is changed by the prediction. 
+	 * Note that FAME 3 prepares the molecule differently depending on the order of the atoms, so the molecule should be 
+	 * parsed from SMILES (see MetabolitePredictorWorker).
+	 * 
+	 * @param molecule the input molecule, or null if it could not be parsed
+	 * @param somModels
+	 * @return for each model name, an IAtomContainerSet containing a single molecule (the input molecule) with the SoMs predicted 
+	 * by that model annotated, or an empty IAtomContainerSet if the input molecule could not be parsed
+	 */
+	public Map<String, IAtomContainerSet> predict(IAtomContainer molecule, MultiModelPredictor somModels) {
+		logger.info(RUNNING_FAME3);
+		
+		// label the input molecule the same way as the SMILESListParser in predictSoMs
+		IAtomContainer fameMolecule = null;
+		if (molecule != null) {
+			try {
+				fameMolecule = new MoleculeKUFAME(molecule, new SMARTSnEnergiesTable().getSMARTSnEnergiesTable());
+				fameMolecule.setProperty(Globals.ID_PROP, MOL_PREFIX + moleculeCounter);
+				fameMolecule.setProperty(Globals.FILE_PATH_PROP, "");
+			} catch (CloneNotSupportedException e) {
+				logger.error(ERROR_PREPARING_MOLECULE, moleculeCounter, e);
+			}
+		}
+
+		Map<String, IAtomContainerSet> moleculesWithSoMs = new LinkedHashMap<>();
+		if (fameMolecule == null) {
+			for (String fameModelName : somModels.getModels().keySet()) {
+				moleculesWithSoMs.put(fameModelName, SilentChemObjectBuilder.getInstance().newInstance(IAtomContainerSet.class));
+			}
+			return moleculesWithSoMs;
+		}
+		
+		Map<String, IAtomContainer> predictedMolecules = somModels.predict(fameMolecule);
+		for (Map.Entry<String, IAtomContainer> entry : predictedMolecules.entrySet()) {
+			IAtomContainerSet molecules = SilentChemObjectBuilder.getInstance().newInstance(IAtomContainerSet.class);
+			molecules.addAtomContainer(entry.getValue());
+			moleculesWithSoMs.put(entry.getKey(), molecules);
+		}
+		return moleculesWithSoMs;
+	}
+
 	/**
 	 * For preparing a molecule the same as is done in FAME 3, e.g. for consistency if not actually using FAME 3.
 	 * 
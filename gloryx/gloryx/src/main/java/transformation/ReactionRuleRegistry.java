@@ -0,0 +1,256 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package main.java.transformation;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ambit2.smarts.SMIRKSManager;
+import ambit2.smarts.SMIRKSReaction;
+import main.java.transformation.reactionrules.GLORYTransformations;
+import main.java.transformation.reactionrules.SyGMaTransformationsPhaseI;
+import main.java.transformation.reactionrules.SyGMaTransformationsPhaseII;
+import main.java.transformation.reactionrules.TransformationsGST;
+import main.java.transformation.reactionrules.TransformationsMT;
+import main.java.transformation.reactionrules.TransformationsNAT;
+import main.java.transformation.reactionrules.TransformationsOtherPhaseII;
+import main.java.transformation.reactionrules.TransformationsSULT;
+import main.java.transformation.reactionrules.TransformationsUGT;
+import main.java.utils.Phase;
+import main.java.utils.TestParameters;
+
+/**
+ * This class holds the compiled reaction rules. 
+ * 
+ * The reaction rule sets for each phase are put together once per JVM. The SMIRKS of the reaction rules are parsed 
+ * once per thread and not for each molecule. Each thread gets its own SMIRKSManager and its own SMIRKSReaction 
+ * objects, because AMBIT stores the query state (e.g., the recursive SMARTS mapped against the current target) 
+ * in these objects, so they cannot be shared between the worker threads.
+ *
+ */
+public class ReactionRuleRegistry {
+	
+	private static final String ERROR_PARSING_SMIRKS = "Error parsing SMIRKS {} for reaction type {}: {}";
+	private static final String COMPILED_REACTION_RULES = "Compiled {} reaction rules for thread {}";
+
+	private static final Logger logger = LoggerFactory.getLogger(ReactionRuleRegistry.class.getName());
+	
+	private static final Transformations[] PHASE_1_RULES = combinePhase1Rules();
+	private static final Transformations[] PHASE_2_RULES = combinePhase2Rules();
+	private static final Transformations[] ALL_RULES = combineAllRules();
+	
+	// parsing errors are logged only once per JVM, not once for each thread
+	private static final Set<Transformations> rulesWithParsingErrors = ConcurrentHashMap.newKeySet();
+	
+	// the screens do not hold any state of the search, so they are shared by all threads
+	private static final Map<Transformations, ReactionRuleScreen> screens = new ConcurrentHashMap<>();
+	
+	// reactant side of the SMIRKS of each reaction rule, used to share the substructure search between reaction rules
+	private static final Map<Transformations, String> reactantQueries = new ConcurrentHashMap<>();
+	
+	private static final ThreadLocal<ReactionRuleRegistry> registryForThread = ThreadLocal.withInitial(ReactionRuleRegistry::new);
+	
+	private final SMIRKSManager smrkMan;
+	private final Map<Transformations, SMIRKSReaction> reactions;
+
+	
+	private ReactionRuleRegistry() {
+		
+		smrkMan = new SMIRKSManager(SilentChemObjectBuilder.getInstance());
+		setFlagsForSMIRKSManager(smrkMan);
+		
+		reactions = new HashMap<>(ALL_RULES.length * 2);
+		for (Transformations rule : ALL_RULES) {
+			reactions.put(rule, compile(rule));
+		}
+		for (Transformations rule : SyGMaTransformationsPhaseII.values()) { // only used if the SyGMa rules are used alone
+			reactions.put(rule, compile(rule));
+		}
+		
+		logger.debug(COMPILED_REACTION_RULES, reactions.size(), Thread.currentThread().getName());
+	}
+	
+	
+	/**
+	 * Returns the registry belonging to the current thread. The SMIRKSManager and the SMIRKSReaction objects 
+	 * of this registry must not be handed to other threads.
+	 */
+	public static ReactionRuleRegistry forCurrentThread() {
+		return registryForThread.get();
+	}
+	
+	
+	/**
+	 * Returns the reaction rules for the given phase, or null if the phase is not valid. 
+	 * The returned array is shared and must not be modified.
+	 */
+	public static Transformations[] getReactionRules(Phase phase) {
+		
+		switch (phase) {
+        case PHASE_1:
+        		if (TestParameters.useSygmaRulesOnly()) {
+        			return SyGMaTransformationsPhaseI.values();
+        		} 
+        		return PHASE_1_RULES;
+        case PHASE_2:  	
+        		if (TestParameters.useSygmaRulesOnly()) {
+        			return SyGMaTransformationsPhaseII.values(); 
+        		} 
+        		return PHASE_2_RULES;
+        case PHASES_1_AND_2:
+        		return ALL_RULES;
+        case UGT:
+        		return TransformationsUGT.values();
+        case GST:
+        		return TransformationsGST.values();
+        case SULT:
+        		return TransformationsSULT.values();
+        case NAT:
+        		return TransformationsNAT.values();
+        case MT:
+        		return TransformationsMT.values();
+        case OTHER_PHASE2:
+        		return TransformationsOtherPhaseII.values();
+	    default:
+	    		return null;
+		}
+	}
+	
+	
+	/**
+	 * Returns the screen that is used to skip the reaction rule for parent molecules that it cannot match.
+	 */
+	public static ReactionRuleScreen getScreen(Transformations rule) {
+		return screens.computeIfAbsent(rule, r -> new ReactionRuleScreen(r.getSMIRKS()));
+	}
+	
+	
+	/**
+	 * Returns the reactant side of the SMIRKS of the reaction rule. 
+	 * 
+	 * Many reaction rules are variants of the same reaction type that only differ in the product side 
+	 * (e.g., the different conjugations of an aromatic hydroxy group). Reaction rules with the same reactant query 
+	 * have the same mappings onto a parent molecule, in the same order of query atoms, 
+	 * so the substructure search only needs to be done once per parent for all of them (see {@link TransformationContext}).
+	 */
+	public static String getReactantQuery(Transformations rule) {
+		return reactantQueries.computeIfAbsent(rule, r -> {
+			String smirks = r.getSMIRKS();
+			int end = smirks.indexOf('>');
+			return (end < 0 ? smirks : smirks.substring(0, end)).trim();
+		});
+	}
+	
+	
+	public SMIRKSManager getSMIRKSManager() {
+		return smrkMan;
+	}
+	
+	
+	public SMIRKSReaction getReaction(Transformations rule) {
+		
+		SMIRKSReaction reaction = reactions.get(rule);
+		if (reaction == null) { // not part of one of the standard rule sets
+			reaction = compile(rule);
+			reactions.put(rule, reaction);
+		}
+		return reaction;
+	}
+	
+	
+	private SMIRKSReaction compile(Transformations rule) {
+		
+		SMIRKSReaction reaction = smrkMan.parse(rule.getSMIRKS());
+		
+		if (smrkMan.hasErrors() && rulesWithParsingErrors.add(rule)) {
+			logger.error(ERROR_PARSING_SMIRKS, rule.getSMIRKS(), rule.getName(), smrkMan.getErrors());
+		}
+		return reaction;
+	}
+	
+	
+	private static void setFlagsForSMIRKSManager(final SMIRKSManager smrkMan) {
+		smrkMan.setFlagFilterEquivalentMappings(false); // appears based on simple testing to have no effect
+		smrkMan.setFlagClearImplicitHAtomsBeforeResultProcess(true); // recommended (see source code)
+		smrkMan.setFlagClearAromaticityBeforeResultProcess(true); // recommended (see source code)
+		smrkMan.setFlagClearHybridizationBeforeResultProcess(true); // recommended (see source code)
+		smrkMan.setFlagAddImplicitHAtomsOnResultProcess(true);
+		smrkMan.setFlagCheckAromaticityOnResultProcess(true); 
+		smrkMan.setFlagConvertAddedImplicitHToExplicitOnResultProcess(true);
+		smrkMan.setFlagCheckResultStereo(true);
+		smrkMan.setFlagProcessResultStructures(true);
+		smrkMan.setFlagApplyStereoTransformation(true); // this way stereochemistry may be changed by SMIRKS
+	}
+	
+	
+	private static Transformations[] combinePhase1Rules() {
+		
+		int lenA = SyGMaTransformationsPhaseI.values().length;
+		int lenB = GLORYTransformations.values().length;
+     	
+		Transformations[] reactionRules = (Transformations[]) Array.newInstance(Transformations.class, lenA + lenB);
+		System.arraycopy(SyGMaTransformationsPhaseI.values(), 0, reactionRules, 0, lenA);
+		System.arraycopy(GLORYTransformations.values(), 0, reactionRules, lenA, lenB);
+		return reactionRules;
+	}
+
+	private static Transformations[] combinePhase2Rules() {
+		
+		int len1 = TransformationsGST.values().length;
+		int len2 = TransformationsMT.values().length;
+		int len3 = TransformationsNAT.values().length;
+		int len4 = TransformationsOtherPhaseII.values().length;
+		int len5 = TransformationsSULT.values().length;
+		int len6 = TransformationsUGT.values().length;
+
+		Transformations[] reactionRules = (Transformations[]) Array.newInstance(Transformations.class, len1 + len2 + len3 + len4 + len5 + len6);
+		System.arraycopy(TransformationsGST.values(), 0, reactionRules, 0, len1);
+		System.arraycopy(TransformationsMT.values(), 0, reactionRules, len1, len2);
+		System.arraycopy(TransformationsNAT.values(), 0, reactionRules, len1 + len2, len3);
+		System.arraycopy(TransformationsOtherPhaseII.values(), 0, reactionRules, len1 + len2 + len3, len4);
+		System.arraycopy(TransformationsSULT.values(), 0, reactionRules, len1 + len2 + len3 + len4, len5);
+		System.arraycopy(TransformationsUGT.values(), 0, reactionRules, len1 + len2 + len3 + len4 + len5, len6);
+		return reactionRules;
+	}
+	
+	private static Transformations[] combineAllRules() {
+		
+		Transformations[] phase1Rules = combinePhase1Rules();
+		Transformations[] phase2Rules = combinePhase2Rules();
+
+		// phase 2 rules first, then phase 1 rules
+		Transformations[] reactionRules = (Transformations[]) Array.newInstance(Transformations.class, phase2Rules.length + phase1Rules.length);
+		System.arraycopy(phase2Rules, 0, reactionRules, 0, phase2Rules.length);
+		System.arraycopy(phase1Rules, 0, reactionRules, phase2Rules.length, phase1Rules.length);
+		return reactionRules;
+	}
+
+}
@@ -0,0 +1,397 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package main.java.transformation;
+
+import java.util.BitSet;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.config.Elements;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.ringsearch.RingSearch;
+
+/**
+ * Screen that is used to skip reaction rules that cannot possibly match a parent molecule before the
+ * (expensive) substructure search is done.
+ * <p>
+ * The features required by a reaction rule are read from the reactant side of its SMIRKS: for each query atom,
+ * the element, whether it must be aromatic, charged, or in a ring. The feature counts of the parent molecule are
+ * calculated once per parent (see {@link TransformationContext}). Because each query atom has to be mapped to a
+ * different atom of the parent, a reaction rule cannot match if the parent has fewer atoms with a required feature
+ * than the reactant.
+ * <p>
+ * The screen has to be conservative: a query atom only contributes a feature if every atom that can match it
+ * has the feature. Anything that can match several elements (e.g. [C,N], [!C], or *), anything negated, and anything
+ * within recursive SMARTS does not contribute, and neither do hydrogens, since their handling depends on the matching mode.
+ *
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class ReactionRuleScreen {
+
+	// feature indices: the atomic number for elements, followed by these
+	private static final int AROMATIC = 119;
+	private static final int POSITIVE_CHARGE = 120;
+	private static final int NEGATIVE_CHARGE = 121;
+	private static final int IN_RING = 122;
+	private static final int NUMBER_OF_FEATURES = 123;
+
+	private final int[] requiredCounts = new int[NUMBER_OF_FEATURES];
+	private final BitSet requiredFeatures = new BitSet(NUMBER_OF_FEATURES);
+
+
+	/**
+	 * @param smirks SMIRKS of the reaction rule; only the reactant side is used
+	 */
+	public ReactionRuleScreen(String smirks) {
+
+		int end = smirks.indexOf('>');
+		String reactant = end < 0 ? smirks : smirks.substring(0, end);
+
+		int i = 0;
+		while (i < reactant.length()) {
+			char c = reactant.charAt(i);
+
+			if (c == '[') {
+				int close = findClosingBracket(reactant, i);
+				if (close < 0) { // cannot be parsed, so don't screen this rule at all
+					clear();
+					return;
+				}
+				addBracketAtom(reactant.substring(i + 1, close));
+				i = close + 1;
+
+			} else if (c == 'C' && i + 1 < reactant.length() && reactant.charAt(i + 1) == 'l') {
+				addRequirement(17);
+				i += 2;
+			} else if (c == 'B' && i + 1 < reactant.length() && reactant.charAt(i + 1) == 'r') {
+				addRequirement(35);
+				i += 2;
+			} else {
+				// organic subset outside of brackets; everything else (bonds, ring closures, branches, *) has no requirement
+				int atomicNumber = organicSubsetAtomicNumber(Character.toUpperCase(c));
+				if (atomicNumber > 0) {
+					addRequirement(atomicNumber);
+					if (Character.isLowerCase(c)) {
+						addRequirement(AROMATIC);
+					}
+				}
+				i++;
+			}
+		}
+	}
+
+
+	/**
+	 * Counts the features of a molecule in the form used by {@link #canMatch(int[])}.
+	 * Aromaticity has to be detected beforehand.
+	 */
+	public static int[] countFeatures(IAtomContainer molecule) {
+
+		int[] counts = new int[NUMBER_OF_FEATURES];
+		RingSearch ringSearch = new RingSearch(molecule);
+
+		for (int i = 0; i < molecule.getAtomCount(); i++) {
+			IAtom atom = molecule.getAtom(i);
+
+			Integer atomicNumber = atom.getAtomicNumber();
+			if (atomicNumber != null && atomicNumber > 0 && atomicNumber < AROMATIC) {
+				counts[atomicNumber] ++;
+			}
+			if (atom.getFlag(CDKConstants.ISAROMATIC)) {
+				counts[AROMATIC] ++;
+			}
+			Integer charge = atom.getFormalCharge();
+			if (charge != null && charge > 0) {
+				counts[POSITIVE_CHARGE] ++;
+			} else if (charge != null && charge < 0) {
+				counts[NEGATIVE_CHARGE] ++;
+			}
+			if (ringSearch.cyclic(i)) {
+				counts[IN_RING] ++;
+			}
+		}
+		return counts;
+	}
+
+
+	/**
+	 * @param moleculeFeatures feature counts of the parent molecule, see {@link #countFeatures(IAtomContainer)}
+	 * @return false if the reaction rule cannot match the molecule, true if it may match
+	 */
+	public boolean canMatch(int[] moleculeFeatures) {
+		for (int feature = requiredFeatures.nextSetBit(0); feature >= 0; feature = requiredFeatures.nextSetBit(feature + 1)) {
+			if (moleculeFeatures[feature] < requiredCounts[feature]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * @return true if the reaction rule requires any features, i.e., if the screen can ever skip it
+	 */
+	public boolean hasRequirements() {
+		return !requiredFeatures.isEmpty();
+	}
+
+
+	private void addBracketAtom(String expression) {
+
+		expression = removeRecursiveSmarts(expression);
+
+		// remove atom map number
+		int mapIndex = expression.lastIndexOf(':');
+		if (mapIndex >= 0) {
+			expression = expression.substring(0, mapIndex);
+		}
+
+		// The low-precedence AND (;) separates conjuncts that all have to be true. A conjunct containing OR (,)
+		// can be true for different atoms, so it does not contribute.
+		BitSet atomFeatures = new BitSet(NUMBER_OF_FEATURES);
+		for (String conjunct : expression.split(";")) {
+			if (conjunct.indexOf(',') >= 0) {
+				continue;
+			}
+			if (!addPrimitives(conjunct, atomFeatures)) {
+				return; // unknown syntax, so no requirement for this atom
+			}
+		}
+		for (int feature = atomFeatures.nextSetBit(0); feature >= 0; feature = atomFeatures.nextSetBit(feature + 1)) {
+			addRequirement(feature);
+		}
+	}
+
+
+	/**
+	 * Adds the features required by a conjunction of primitives (joined by & or by juxtaposition).
+	 *
+	 * @return false if the conjunction could not be parsed
+	 */
+	private static boolean addPrimitives(String conjunct, BitSet atomFeatures) {
+
+		int i = 0;
+		while (i < conjunct.length()) {
+
+			char c = conjunct.charAt(i);
+			boolean negated = false;
+			while (c == '!') {
+				negated = !negated;
+				i++;
+				if (i >= conjunct.length()) {
+					return false;
+				}
+				c = conjunct.charAt(i);
+			}
+
+			int start = i;
+			int feature = -1;
+
+			int twoLetterAtomicNumber = -1;
+			if (Character.isUpperCase(c) && i + 1 < conjunct.length() && Character.isLowerCase(conjunct.charAt(i + 1))) {
+				twoLetterAtomicNumber = atomicNumber(conjunct.substring(i, i + 2));
+			}
+
+			if (c == '&') {
+				i++;
+				continue;
+
+			} else if (twoLetterAtomicNumber > 0) { // e.g. Cl, Br
+				i += 2;
+				feature = twoLetterAtomicNumber;
+
+			} else if (c == '#') { // atomic number
+				i++;
+				int number = readNumber(conjunct, i);
+				i = skipDigits(conjunct, i);
+				if (number < 0 || number >= AROMATIC) {
+					return false;
+				}
+				feature = number;
+
+			} else if (c == '+' || c == '-') { // charge: +, ++, +2, ...
+				i++;
+				while (i < conjunct.length() && conjunct.charAt(i) == c) {
+					i++;
+				}
+				int number = readNumber(conjunct, i);
+				i = skipDigits(conjunct, i);
+				if (number != 0) {
+					feature = c == '+' ? POSITIVE_CHARGE : NEGATIVE_CHARGE;
+				}
+
+			} else if (c == 'R' || c == 'r') { // ring membership, R0 means not in a ring
+				i++;
+				int number = readNumber(conjunct, i);
+				i = skipDigits(conjunct, i);
+				if (number != 0) {
+					feature = IN_RING;
+				}
+
+			} else if (c == 'a') { // any aromatic atom
+				i++;
+				feature = AROMATIC;
+
+			} else if (c == 'H' || c == 'X' || c == 'D' || c == 'v' || c == 'x' || c == 'h') { // counts that are not screened
+				i++;
+				i = skipDigits(conjunct, i);
+
+			} else if (c == '*' || c == 'A' || c == '@' || c == '?') { // no requirement
+				i++;
+
+			} else if (Character.isUpperCase(c)) {
+				int atomicNumber = atomicNumber(String.valueOf(c));
+				i++;
+				if (atomicNumber < 0) {
+					return false;
+				}
+				feature = atomicNumber;
+
+			} else if (c == 'c' || c == 'n' || c == 'o' || c == 's' || c == 'p' || c == 'b') { // aromatic organic subset
+				i++;
+				if (!negated) {
+					require(atomFeatures, organicSubsetAtomicNumber(Character.toUpperCase(c)));
+					atomFeatures.set(AROMATIC);
+				}
+				continue;
+
+			} else {
+				return false;
+			}
+
+			if (i == start) {
+				return false;
+			}
+			if (!negated && feature >= 0) {
+				require(atomFeatures, feature);
+			}
+		}
+		return true;
+	}
+
+
+	private static void require(BitSet atomFeatures, int feature) {
+		if (feature != 1 && feature != 0) { // hydrogens are not screened
+			atomFeatures.set(feature);
+		}
+	}
+
+
+	private void addRequirement(int feature) {
+		requiredCounts[feature] ++;
+		requiredFeatures.set(feature);
+	}
+
+
+	private void clear() {
+		requiredFeatures.clear();
+		for (int i = 0; i < requiredCounts.length; i++) {
+			requiredCounts[i] = 0;
+		}
+	}
+
+
+	private static String removeRecursiveSmarts(String expression) {
+
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (i < expression.length()) {
+			if (expression.charAt(i) == '$' && i + 1 < expression.length() && expression.charAt(i + 1) == '(') {
+				int depth = 0;
+				i++;
+				do {
+					if (expression.charAt(i) == '(') {
+						depth ++;
+					} else if (expression.charAt(i) == ')') {
+						depth --;
+					}
+					i++;
+				} while (depth > 0 && i < expression.length());
+				sb.append('*'); // placeholder, so that it is not joined with the neighboring primitives
+			} else {
+				sb.append(expression.charAt(i));
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+
+	private static int findClosingBracket(String smarts, int open) {
+		int depth = 0;
+		for (int i = open + 1; i < smarts.length(); i++) {
+			char c = smarts.charAt(i);
+			if (c == '(' || c == '[') {
+				depth ++;
+			} else if (c == ')' || (c == ']' && depth > 0)) {
+				depth --;
+			} else if (c == ']') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	private static int readNumber(String s, int start) {
+		int end = skipDigits(s, start);
+		if (end == start) {
+			return -1; // no number
+		}
+		return Integer.parseInt(s.substring(start, end));
+	}
+
+
+	private static int skipDigits(String s, int i) {
+		while (i < s.length() && Character.isDigit(s.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+
+	private static int organicSubsetAtomicNumber(char c) {
+		switch (c) {
+		case 'B': return 5;
+		case 'C': return 6;
+		case 'N': return 7;
+		case 'O': return 8;
+		case 'F': return 9;
+		case 'P': return 15;
+		case 'S': return 16;
+		case 'I': return 53;
+		default: return -1;
+		}
+	}
+
+
+	/**
+	 * @return the atomic number of the element symbol, or -1 if it is not an element
+	 */
+	private static int atomicNumber(String symbol) {
+		int atomicNumber = Elements.ofString(symbol).number();
+		return atomicNumber > 0 ? atomicNumber : -1;
+	}
+
+}
@@ -0,0 +1,326 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package main.java.transformation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openscience.cdk.graph.GraphUtil;
+import org.openscience.cdk.graph.invariant.Canon;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.zbh.fame.fame3.globals.Globals;
+import org.zbh.fame.fame3.modelling.Modeller;
+
+import ambit2.smarts.SmartsFlags;
+import ambit2.smarts.SmartsParser;
+
+/**
+ * Holds everything about a parent molecule that is the same for all reaction rules, so that it is computed
+ * once per parent instead of once per reaction rule: the key of the parent (see Transformer.generateKey), the features used to screen the reaction rules,
+ * the target for the SMARTS search, and the mappings found for each reactant query.
+ * <p>
+ * All reaction rules are matched against the same target, which is a copy of the parent molecule.
+ * The target is never changed by applying a reaction rule, because the transformations are applied to a clone
+ * of the target (see SMIRKSManager.applyTransformationsAtLocationsWithCloning), so the parent is only cloned
+ * again if a reaction rule actually matches.
+ * The data needed for the SMARTS search (ring data, neighbour data, etc.) only depend on the target,
+ * so each kind of data is calculated the first time a reaction rule needs it and then reused for all other rules.
+ * Likewise, the mappings of a reactant query are searched for the first reaction rule with this reactant query 
+ * and then reused for all other reaction rules with the same reactant query (see ReactionRuleRegistry.getReactantQuery).
+ * They are only held until the last of these reaction rules has been applied.
+ * The symmetry classes of the target atoms and the heavy atoms that the hydrogens are bonded to, which are used to 
+ * collapse equivalent mappings, are calculated once as well.
+ *
+ * @author Christina de Bruyn Kops
+ *
+ */
+class TransformationContext {
+
+	private static final int AROMATIC_BOND = 7; // bond code in the canonical form of a mapping, the other bonds are coded by their order
+
+	private final IAtomContainer target;
+	private final String parentID;
+	private final String parentKey; // used to exclude the parent from its own metabolites
+	private final int[] features; // see ReactionRuleScreen
+
+	private final SmartsFlags preparedFlags = new SmartsFlags(); // the data that has already been calculated for the target
+	private final Map<String, List<List<IAtom>>> mappingsByReactantQuery = new HashMap<>();
+	private final Map<String, Integer> remainingUsesOfReactantQuery = new HashMap<>(); // reaction rules that still need the mappings
+	private Map<IAtom, Long> symmetryClasses; // calculated the first time a reaction rule has more than one mapping
+	private Map<IAtom, Integer> atomIndices; // calculated together with the symmetry classes
+	private long[] symmetryClassOfAtom; // by atom index
+	private int[][] adjacencyList;
+	private GraphUtil.EdgeToBondMap bondMap;
+	private Map<IAtom, IAtom> heavyAtomOfHydrogen; // calculated the first time a reaction rule has more than one mapping
+	private Double maxSoMProbability; // calculated the first time it is needed
+
+
+	/**
+	 * @param target copy of the parent molecule with aromaticity already detected
+	 * @param reactionRules the reaction rules that will be applied to the target
+	 * @param parentKey key of the parent molecule, compared to the key of each product
+	 */
+	TransformationContext(IAtomContainer target, Transformations[] reactionRules, String parentKey) {
+		this.target = target;
+		this.parentID = target.getProperty(Globals.ID_PROP);
+		this.parentKey = parentKey;
+		this.features = ReactionRuleScreen.countFeatures(target);
+		
+		for (Transformations rule : reactionRules) {
+			if (canMatch(rule)) {
+				remainingUsesOfReactantQuery.merge(ReactionRuleRegistry.getReactantQuery(rule), 1, Integer::sum);
+			}
+		}
+	}
+	
+	
+	/**
+	 * @return false if the reaction rule cannot match the parent molecule, so the substructure search can be skipped
+	 */
+	boolean canMatch(Transformations rule) {
+		return ReactionRuleRegistry.getScreen(rule).canMatch(features);
+	}
+
+
+	/**
+	 * Prepares the target for the SMARTS search of a reaction rule, calculating only the data that
+	 * has not yet been calculated for a previous reaction rule.
+	 *
+	 * @param parser SmartsParser of the SMIRKSManager that is used for the reaction rule
+	 * @param flags the reactant flags of the reaction rule
+	 */
+	@SuppressWarnings("static-access")
+	void prepareTargetForSMARTSSearch(SmartsParser parser, SmartsFlags flags) {
+
+		SmartsFlags missingFlags = new SmartsFlags();
+		boolean missing = false;
+
+		if (flags.mNeedNeighbourData && !preparedFlags.mNeedNeighbourData) {
+			missingFlags.mNeedNeighbourData = preparedFlags.mNeedNeighbourData = missing = true;
+		}
+		if (flags.mNeedValenceData && !preparedFlags.mNeedValenceData) {
+			missingFlags.mNeedValenceData = preparedFlags.mNeedValenceData = missing = true;
+		}
+		if (flags.mNeedRingData && !preparedFlags.mNeedRingData) {
+			missingFlags.mNeedRingData = preparedFlags.mNeedRingData = missing = true;
+		}
+		if (flags.mNeedRingData2 && !preparedFlags.mNeedRingData2) {
+			missingFlags.mNeedRingData2 = preparedFlags.mNeedRingData2 = missing = true;
+		}
+		if (flags.mNeedExplicitHData && !preparedFlags.mNeedExplicitHData) {
+			missingFlags.mNeedExplicitHData = preparedFlags.mNeedExplicitHData = missing = true;
+		}
+		if (flags.mNeedParentMoleculeData && !preparedFlags.mNeedParentMoleculeData) {
+			missingFlags.mNeedParentMoleculeData = preparedFlags.mNeedParentMoleculeData = missing = true;
+		}
+
+		if (missing) {
+			parser.prepareTargetForSMARTSSearch(missingFlags, target);
+		}
+	}
+
+
+	/**
+	 * Must be called once by each reaction rule that is applied, before its substructure search. 
+	 * Once the last reaction rule with this reactant query has taken the mappings, they are released.
+	 *
+	 * @param reactantQuery reactant side of the SMIRKS
+	 * @return the mappings of the reactant query onto the target, or null if they have not been searched yet
+	 */
+	List<List<IAtom>> takeMappings(String reactantQuery) {
+		
+		Integer remainingUses = remainingUsesOfReactantQuery.computeIfPresent(reactantQuery, (query, uses) -> uses > 1 ? uses - 1 : null);
+		if (remainingUses == null) {
+			return mappingsByReactantQuery.remove(reactantQuery);
+		}
+		return mappingsByReactantQuery.get(reactantQuery);
+	}
+
+	/**
+	 * Keeps the mappings only if another reaction rule with the same reactant query still has to be applied, 
+	 * so that the mappings of at most one search per reactant query are held at a time.
+	 *
+	 * @param reactantQuery reactant side of the SMIRKS
+	 * @param mappings all mappings of the reactant query onto the target; must not be modified afterwards
+	 */
+	void putMappings(String reactantQuery, List<List<IAtom>> mappings) {
+		if (remainingUsesOfReactantQuery.containsKey(reactantQuery)) {
+			mappingsByReactantQuery.put(reactantQuery, mappings);
+		}
+	}
+
+
+	/**
+	 * Returns the symmetry class of each atom of the target, hydrogens included. Atoms in the same symmetry class 
+	 * are topologically equivalent, so mappings that only differ by equivalent atoms give the same product.
+	 * The symmetry classes are calculated once per parent.
+	 * <p>
+	 * The symmetry classes do not take stereochemistry into account, so they are not calculated if the parent 
+	 * has stereo elements. 
+	 *
+	 * @return the symmetry class of each atom, or null if the parent has stereo elements
+	 */
+	Map<IAtom, Long> getSymmetryClasses() {
+
+		if (symmetryClasses == null) {
+
+			if (target.stereoElements().iterator().hasNext()) {
+				return null;
+			}
+
+			bondMap = GraphUtil.EdgeToBondMap.withSpaceFor(target);
+			adjacencyList = GraphUtil.toAdjList(target, bondMap);
+			symmetryClassOfAtom = Canon.symmetry(target, adjacencyList);
+			symmetryClasses = new IdentityHashMap<>(target.getAtomCount());
+			atomIndices = new IdentityHashMap<>(target.getAtomCount());
+			for (int i = 0; i < symmetryClassOfAtom.length; i++) {
+				symmetryClasses.put(target.getAtom(i), symmetryClassOfAtom[i]);
+				atomIndices.put(target.getAtom(i), i);
+			}
+		}
+		return symmetryClasses;
+	}
+
+
+	/**
+	 * Returns a canonical form of the target in which the atoms of the mapping are marked by their position in the mapping.
+	 * Two mappings have the same canonical form only if an automorphism of the target maps one mapping onto the other, 
+	 * position by position, so that they give the same product. Mappings whose atoms have the same symmetry classes 
+	 * (see {@link #getSymmetryClasses()}) do not necessarily have the same canonical form, e.g. if the roles of two 
+	 * symmetric atoms are swapped without an automorphism that swaps them.
+	 * <p>
+	 * The canonical form lists, in canonical order, the element, charge, mass number, implicit hydrogen count, and 
+	 * mark of each atom, followed by the canonical labels of its neighbors and the bond orders (aromatic bonds 
+	 * regardless of the Kekulé structure), so equal canonical forms always mean an automorphism exists. 
+	 * Must only be called if {@link #getSymmetryClasses()} did not return null.
+	 *
+	 * @param mapping atoms of the target mapped by the reactant query
+	 */
+	String getCanonicalFormOfMapping(List<IAtom> mapping) {
+
+		int atomCount = target.getAtomCount();
+		int marks = mapping.size() + 1;
+		int[] markOfAtom = new int[atomCount];
+		long[] invariants = new long[atomCount];
+		for (int position = 0; position < mapping.size(); position++) {
+			markOfAtom[atomIndices.get(mapping.get(position))] = position + 1;
+		}
+		for (int i = 0; i < atomCount; i++) {
+			invariants[i] = symmetryClassOfAtom[i] * marks + markOfAtom[i];
+		}
+
+		long[] labels = Canon.label(target, adjacencyList, invariants);
+		Integer[] canonicalOrder = new Integer[atomCount];
+		for (int i = 0; i < atomCount; i++) {
+			canonicalOrder[i] = i;
+		}
+		Arrays.sort(canonicalOrder, (first, second) -> Long.compare(labels[first], labels[second]));
+
+		StringBuilder canonicalForm = new StringBuilder();
+		for (int i : canonicalOrder) {
+			IAtom atom = target.getAtom(i);
+			canonicalForm.append(atom.getAtomicNumber()).append(',')
+				.append(atom.getFormalCharge()).append(',')
+				.append(atom.getMassNumber()).append(',')
+				.append(atom.getImplicitHydrogenCount()).append(',')
+				.append(markOfAtom[i]).append('(');
+			
+			int[] neighbors = adjacencyList[i];
+			long[] neighborKeys = new long[neighbors.length];
+			for (int j = 0; j < neighbors.length; j++) {
+				IBond bond = bondMap.get(i, neighbors[j]);
+				int bondCode = bond.isAromatic() ? AROMATIC_BOND : (bond.getOrder() == null ? 0 : bond.getOrder().numeric());
+				neighborKeys[j] = labels[neighbors[j]] * (AROMATIC_BOND + 1) + bondCode;
+			}
+			Arrays.sort(neighborKeys);
+			for (long neighborKey : neighborKeys) {
+				canonicalForm.append(neighborKey).append(' ');
+			}
+			canonicalForm.append(')');
+		}
+		return canonicalForm.toString();
+	}
+
+
+	/**
+	 * Returns the heavy atom that each explicit hydrogen of the target is bonded to. 
+	 * Calculated once per parent.
+	 */
+	Map<IAtom, IAtom> getHeavyAtomOfHydrogen() {
+
+		if (heavyAtomOfHydrogen == null) {
+
+			heavyAtomOfHydrogen = new IdentityHashMap<>();
+			for (IBond bond : target.bonds()) {
+				IAtom begin = bond.getBegin();
+				IAtom end = bond.getEnd();
+				if (begin.getAtomicNumber() == 1 && end.getAtomicNumber() != 1) {
+					heavyAtomOfHydrogen.put(begin, end);
+				} else if (end.getAtomicNumber() == 1 && begin.getAtomicNumber() != 1) {
+					heavyAtomOfHydrogen.put(end, begin);
+				}
+			}
+		}
+		return heavyAtomOfHydrogen;
+	}
+
+
+	/**
+	 * @return the highest SoM probability of all heavy atoms of the target, which is an upper bound 
+	 * for the SoM probability of any mapping
+	 */
+	double getMaxSoMProbability() {
+
+		if (maxSoMProbability == null) {
+
+			double max = 0;
+			for (IAtom atom : target.atoms()) {
+				Double probability = atom.getProperty(Modeller.proba_yes_fld);
+				if (atom.getAtomicNumber() != 1 && probability != null && probability > max) {
+					max = probability;
+				}
+			}
+			maxSoMProbability = max;
+		}
+		return maxSoMProbability;
+	}
+
+
+	IAtomContainer getTarget() {
+		return target;
+	}
+
+	String getParentID() {
+		return parentID;
+	}
+
+	String getParentKey() {
+		return parentKey;
+	}
+
+}
@@ -22,12 +22,16 @@
 
 package main.java.transformation;
 
-import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.openscience.cdk.aromaticity.Kekulization;
 import org.openscience.cdk.exception.CDKException;
@@ -48,17 +52,10 @@ import ambit2.smarts.SMIRKSManager;
 import ambit2.smarts.SMIRKSReaction;
 import ambit2.smarts.SmartsConst;
 import ambit2.smarts.StereoChemUtils;
+import main.java.metaboliteprediction.MetaboliteAccumulator;
+import main.java.metaboliteprediction.MetabolitePredictor;
 import main.java.metaboliteprediction.PredictionHandler;
 import main.java.sompredictor.SoMPredictor;
-import main.java.transformation.reactionrules.SyGMaTransformationsPhaseI;
-import main.java.transformation.reactionrules.SyGMaTransformationsPhaseII;
-import main.java.transformation.reactionrules.TransformationsGST;
-import main.java.transformation.reactionrules.TransformationsMT;
-import main.java.transformation.reactionrules.TransformationsNAT;
-import main.java.transformation.reactionrules.TransformationsOtherPhaseII;
-import main.java.transformation.reactionrules.TransformationsSULT;
-import main.java.transformation.reactionrules.TransformationsUGT;
-import main.java.transformation.reactionrules.GLORYTransformations;
 import main.java.transformation.PriorityLevel;
 import main.java.utils.Phase;
 import main.java.utils.TestParameters;
@@ -82,10 +79,18 @@ public class Transformer {
 	private static final String PERFORMING_TRANSFORMATION_FROM_SMILES = "Performing transformation from SMILES {}";
 	private static final String NO_TRANSFORMATION_BECAUSE_MOLECULE_COULD_NOT_BE_CLONED = "No transformation could be performed on molecule {} because the molecule could not be cloned.";
 	private static final String THERE_IS_NO_MAPPING_MESSAGE = "There is no mapping for SMIRKS {}";
-	private static final String ERROR_PARSING_SMIRKS = "Error parsing SMIRKS {} for reaction type {}";
 	private static final String ERROR_APPLYING_TRANSFORMATION_AT_LOCATION = "Error applying transformation {} at specific location (with cloning)";
 	private static final String ERROR_PROCESSING_PRODUCT = "Error processing product of applyTransformationsAtLocationsWithCloning for transformation {}";
 	private static final String NUMBER_OF_TOTAL_PRODUCTS_SO_FAR = "Number of total products so far: {}";
+	private static final String NUMBER_OF_SCREENED_OUT_RULES = "Number of reaction rules skipped because they cannot match the parent molecule: {} of {}";
+	private static final String NUMBER_OF_SHARED_SEARCHES = "Number of reaction rules that reused the substructure search of a reaction rule with the same reactant: {}";
+	private static final String APPLYING_REACTION_RULES_IN_PARALLEL = "Applying the reaction rules in {} parallel tasks";
+	private static final String NUMBER_OF_DISCARDED_PRODUCTS = "Number of products discarded because the priority score is below the minimum: {} (minimum: {})";
+	private static final String NUMBER_OF_PRUNED_RULES_AND_MAPPINGS = "Skipped because the products could not be ranked within the top {}: {} reaction rules, {} mappings";
+	private static final String NUMBER_OF_COLLAPSED_HYDROGEN_MAPPINGS = "Number of mappings collapsed because they map the same heavy atoms as another mapping: {} of {}";
+	private static final String NUMBER_OF_COLLAPSED_MAPPINGS = "Number of mappings collapsed because they are symmetric to another mapping: {} of {}";
+	private static final String NUMBER_OF_METABOLITES_MERGED_BY_INCHI = "Number of metabolites with different structure keys that were merged because they have the same InChI: {} of {}";
+	private static final String NULL_INCHI_FOR_PREDICTED_SMILES = "Null InChI for predicted smiles {}";
 	private static final String PRODUCTS_FOUND_WITH_SMIRKS = "Product(s) found with SMIRKS: {}";
 	private static final String ATOM_TYPE = "AtomType";
 	private static final String MOLECULE_NAME = "Molecule";  // molecule ID
@@ -103,19 +108,37 @@ public class Transformer {
 
 	private static final Logger logger = LoggerFactory.getLogger(Transformer.class.getName());
 	
+	private static final int MIN_RULES_PER_TASK = 16; // fewer reaction rules per task are not worth the extra copy of the parent molecule
+	
 
 	private TestParameters testParameters;
 	private String fame3model;
+	private Phase phase; // determines the reaction rules that are used
 	private Boolean duplicateOverride = false; // slight misnomer. It actually means that priority scores from the previous run will override the one from this run, for a given predicted metabolite
 	
+	private int numberOfScreenedOutRules = 0; // reaction rules that were skipped without substructure search (see ReactionRuleScreen)
+	private int numberOfSharedSearches = 0; // reaction rules that reused the substructure search of a previous rule with the same reactant query
+	private int numberOfDiscardedProducts = 0; // mappings that were not transformed because the priority score is below the minimum
+	private int numberOfPrunedRules = 0; // reaction rules that were skipped because none of their products could be ranked within the top k
+	private int numberOfPrunedMappings = 0; // mappings that were not transformed because the product could not be ranked within the top k
+	
 	public Transformer(TestParameters testParameters, String fame3model) { 
 		this.testParameters = testParameters;
 		this.fame3model = fame3model;
+		this.phase = testParameters.getPhase();
 	}
 	
 	public Transformer(TestParameters testParameters, String fame3model, Boolean duplicateOverride) { 
 		this.testParameters = testParameters;
 		this.fame3model = fame3model;
+		this.phase = testParameters.getPhase();
+		this.duplicateOverride = duplicateOverride;
+	}
+	
+	public Transformer(TestParameters testParameters, String fame3model, Phase phase, Boolean duplicateOverride) { 
+		this.testParameters = testParameters;
+		this.fame3model = fame3model;
+		this.phase = phase;
 		this.duplicateOverride = duplicateOverride;
 	}
 
@@ -133,39 +156,147 @@ public class Transformer {
 		//  aromaticity in rings with exocyclic heteroatoms involved in the aromaticity.
 		redetectAromaticity(molecule);
 
-
-		SMIRKSReaction transformation;
-		final SMIRKSManager smrkMan = new SMIRKSManager(SilentChemObjectBuilder.getInstance()); 
-
-		Set<PredictedMolecule> allProducts = new HashSet<>();
-
 		logger.debug("model: {}", fame3model);
 		
 		// select reaction rules based on current phase
 		Transformations[] reactionRules = selectAppropriateReactionRules();
+		
+		MetaboliteAccumulator allProducts;
+		int numberOfTasks = selectNumberOfRuleTasks(reactionRules.length);
+		if (numberOfTasks > 1) {
+			logger.debug(APPLYING_REACTION_RULES_IN_PARALLEL, numberOfTasks);
+			allProducts = ForkJoinPool.commonPool().invoke(new RuleRangeTask(molecule, reactionRules, 0, reactionRules.length, 
+					(reactionRules.length + numberOfTasks - 1) / numberOfTasks));
+		} else {
+			allProducts = transformWithRules(molecule, reactionRules);
+		}
+		
+		logger.debug(NUMBER_OF_SCREENED_OUT_RULES, numberOfScreenedOutRules, reactionRules.length);
+		logger.debug(NUMBER_OF_SHARED_SEARCHES, numberOfSharedSearches);
+		logger.debug(NUMBER_OF_DISCARDED_PRODUCTS, numberOfDiscardedProducts, testParameters.getMinPriorityScore());
+		if (pruneToTopK()) {
+			logger.debug(NUMBER_OF_PRUNED_RULES_AND_MAPPINGS, testParameters.getTopK(), numberOfPrunedRules, numberOfPrunedMappings);
+		}
 
+		if (testParameters.useStructureKey()) {
+			return addInchis(allProducts, molecule);
+		}
+		return allProducts.toSet(); 
+	}
+	
+	
+	/**
+	 * Returns the key that is used to compare the products with each other and with the parent molecule while they are collected: 
+	 * the structure key (see MoleculeManipulator.generateStructureKey) if specified in the test parameters, otherwise the InChI.
+	 * The InChI is also used if no structure key can be generated.
+	 */
+	private String generateKey(final IAtomContainer molecule) {
+		
+		String key = null;
+		if (testParameters.useStructureKey()) {
+			key = MoleculeManipulator.generateStructureKey(molecule);
+		}
+		if (key == null) {
+			key = MoleculeManipulator.generateInchiWithoutStereo(molecule);
+		}
+		return key;
+	}
+	
+	
+	/**
+	 * Generates the InChI of each of the distinct metabolites that were collected by structure key, instead of generating the InChI
+	 * of every product. Metabolites with different structure keys can still have the same InChI (e.g. tautomers), so the metabolites 
+	 * are merged by InChI in the same way as while they were collected, and metabolites with the same InChI as the parent molecule are removed. 
+	 * They are merged in the order in which they were collected (see MetaboliteAccumulator.toList), so that the same version is kept 
+	 * as when collecting the products by InChI if the priority scores are the same. 
+	 * The structure keys and the molecules kept for the InChI are not needed anymore afterwards.
+	 * PredictionEquivalenceCheck (structurekey) checks that the predictions are the same as when collecting the products by InChI.
+	 * 
+	 * @param allProducts the metabolites collected by structure key
+	 * @param molecule parent molecule
+	 * @return the predicted metabolites, all with InChI
+	 */
+	private Set<PredictedMolecule> addInchis(final MetaboliteAccumulator allProducts, final IAtomContainer molecule) {
+		
+		final String parentInchi = MoleculeManipulator.generateInchiWithoutStereo(molecule);
+		final List<PredictedMolecule> metabolites = allProducts.toList();
+		MetaboliteAccumulator metabolitesByInchi = new MetaboliteAccumulator();
+		int numberOfMergedMetabolites = 0;
+		
+		for (PredictedMolecule metabolite : metabolites) {
+			
+			if (metabolite.getStructureKey() != null) {
+				// the InChI is generated from the product (or its component) itself, so its SMILES does not have to be parsed
+				metabolite.setInchi(MoleculeManipulator.generateInchiWithoutStereo(metabolite.getAtomContainer()));
+				metabolite.setStructureKey(null);
+				metabolite.setAtomContainer(null);
+			}
+			
+			if (metabolite.getInchi() == null) {
+				logger.info(NULL_INCHI_FOR_PREDICTED_SMILES, metabolite.getSmiles());
+				continue;
+			}
+			if (metabolite.getInchi().equals(parentInchi)) {
+				logger.warn("The parent molecule was predicted as a metabolite with a different structure key. Not including!");
+				continue;
+			}
+			
+			int sizeBefore = metabolitesByInchi.size();
+			if (duplicateOverride) {
+				metabolitesByInchi.addIfNotPresent(metabolite);
+			} else {
+				metabolitesByInchi.addIfNotPresentOrHasHigherScore(metabolite);
+			}
+			if (metabolitesByInchi.size() == sizeBefore) {
+				numberOfMergedMetabolites ++;
+			}
+		}
+		
+		logger.debug(NUMBER_OF_METABOLITES_MERGED_BY_INCHI, numberOfMergedMetabolites, metabolites.size());
+		
+		return metabolitesByInchi.toSet();
+	}
+	
+	
+	/**
+	 * Applies the reaction rules to the molecule in the current thread.
+	 * 
+	 * @param molecule parent molecule with aromaticity already detected
+	 */
+	private MetaboliteAccumulator transformWithRules(final IAtomContainer molecule, final Transformations[] reactionRules) {
+
+		// the reaction rules are only parsed once per thread, not for each molecule
+		final ReactionRuleRegistry registry = ReactionRuleRegistry.forCurrentThread();
+		final SMIRKSManager smrkMan = registry.getSMIRKSManager(); 
+
+		final Boolean pruneToTopK = pruneToTopK();
+		MetaboliteAccumulator allProducts = new MetaboliteAccumulator(pruneToTopK ? testParameters.getTopK() : 0);
+
+		// All reaction rules are matched against the same copy of the parent molecule. It is only cloned again 
+		// when a transformation is applied, so that the parent is not cloned for each of the reaction rules. 
+		IAtomContainer target = initializeProduct(molecule);  // This involves cloning molecule. 
+		if (target == null) {
+			logger.error(NO_TRANSFORMATION_BECAUSE_MOLECULE_COULD_NOT_BE_CLONED, (String) molecule.getProperty(Globals.ID_PROP));
+			return allProducts;
+		}
+		TransformationContext context = new TransformationContext(target, reactionRules, generateKey(target));
 		
 		for (Transformations smirks : reactionRules) { 
 			
-//			if (smirks == null) { // it's a GST rule and has been left out for now // TODO remove once done with eval
-//				continue;
-//			}
-			
-			transformation = smrkMan.parse(smirks.getSMIRKS());
-
-			if (smrkMan.hasErrors()) {
-				logger.error(ERROR_PARSING_SMIRKS, smirks.getSMIRKS(), smirks.getName());
+			if (!context.canMatch(smirks)) {
+				numberOfScreenedOutRules ++;
+				continue;
 			}
-
-			IAtomContainer product = initializeProduct(molecule);  // This involves cloning molecule. 
-			String parentID = molecule.getProperty(Globals.ID_PROP);
-			String parentInchi = MoleculeManipulator.generateInchiWithoutStereo(molecule);
-				
-			if (product == null) {
-				logger.error(NO_TRANSFORMATION_BECAUSE_MOLECULE_COULD_NOT_BE_CLONED, (String) molecule.getProperty(Globals.ID_PROP));
-				break;
+			
+			// the priority score of any product of this reaction rule is at most the rule factor times the highest SoM probability of the parent
+			if (pruneToTopK && cannotMakeTopK(smirks, context.getMaxSoMProbability(), allProducts)) {
+				context.takeMappings(ReactionRuleRegistry.getReactantQuery(smirks)); // releases the mappings if this was the last rule that needed them
+				numberOfPrunedRules ++;
+				continue;
 			}
 			
+			SMIRKSReaction transformation = registry.getReaction(smirks);
+			
 			// In order to calculate a priority score for each product, I need to know the SoM probability of each atom in the mapping. 
 			// Therefore, I now generate the mappings and perform the transformations (as well as quite a bit of pre- and post-processing) 
 			// individually instead of using the single method from AMBIT SMIRKS. 
@@ -173,11 +304,114 @@ public class Transformer {
 			// SMIRKS for the same reaction type in cases where the mapping is topologically symmetrical. I therefore changed to using AllMappings 
 			// even in the case of not ranking the predicted metabolites.
 
-			transformWithRankingPrep(transformation, smrkMan, allProducts, smirks, product, parentID, parentInchi);
+			transformWithRankingPrep(transformation, smrkMan, allProducts, smirks, context);
 
 		}
+		
+		return allProducts;
+	}
+	
+	
+	/**
+	 * If only the top k metabolites are needed, predictions that cannot make it into the top k are skipped. 
+	 * Not when rerunning, because then the first version of a duplicate is kept instead of the one with the highest score.
+	 */
+	private Boolean pruneToTopK() {
+		return testParameters.keepTopKOnly() && !duplicateOverride;
+	}
+	
+	
+	/**
+	 * The reaction rules of one parent molecule are applied in parallel if fewer parent molecules are being predicted 
+	 * than there are processors, e.g., if only one or two large molecules are submitted.
+	 * 
+	 * @return the number of tasks the reaction rules are split into, 1 if they should be applied in the current thread
+	 */
+	private int selectNumberOfRuleTasks(int numberOfRules) {
+		
+		if (!TestParameters.parallelizeOverReactionRules()) {
+			return 1;
+		}
+		int processors = ForkJoinPool.getCommonPoolParallelism() + 1; // the current thread takes part as well
+		int parentsInProgress = Math.max(1, MetabolitePredictor.getNumberOfPendingParents());
+		
+		return Math.max(1, Math.min(processors / parentsInProgress, numberOfRules / MIN_RULES_PER_TASK));
+	}
+	
+	
+	/**
+	 * Applies a contiguous range of the reaction rules, split in half until the range is small enough.
+	 * Each range is applied by its own Transformer to its own copy of the parent molecule, because AMBIT stores 
+	 * the data of the SMARTS search in the target, and with the SMIRKSManager of the thread it runs in (see ReactionRuleRegistry).
+	 * The predicted metabolites of the ranges are merged in the order of the reaction rules, 
+	 * so that the result is the same as if the reaction rules were applied one after the other.
+	 */
+	private class RuleRangeTask extends RecursiveTask<MetaboliteAccumulator> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private final IAtomContainer molecule;
+		private final Transformations[] reactionRules;
+		private final int from;
+		private final int to;
+		private final int maxRulesPerTask;
+
+		RuleRangeTask(IAtomContainer molecule, Transformations[] reactionRules, int from, int to, int maxRulesPerTask) {
+			this.molecule = molecule;
+			this.reactionRules = reactionRules;
+			this.from = from;
+			this.to = to;
+			this.maxRulesPerTask = maxRulesPerTask;
+		}
+
+		@Override
+		protected MetaboliteAccumulator compute() {
+			
+			if (to - from <= maxRulesPerTask) {
+				
+				Transformer rangeTransformer = new Transformer(testParameters, fame3model, phase, duplicateOverride);
+				MetaboliteAccumulator products = rangeTransformer.transformWithRules(molecule, Arrays.copyOfRange(reactionRules, from, to));
+				addCounts(rangeTransformer);
+				return products;
+			}
+			
+			int middle = (from + to) >>> 1;
+			RuleRangeTask later = new RuleRangeTask(molecule, reactionRules, middle, to, maxRulesPerTask);
+			later.fork();
+			MetaboliteAccumulator products = new RuleRangeTask(molecule, reactionRules, from, middle, maxRulesPerTask).compute();
+			products.addAll(later.join(), duplicateOverride);
+			return products;
+		}
+	}
+	
+	
+	private synchronized void addCounts(Transformer rangeTransformer) {
+		numberOfScreenedOutRules += rangeTransformer.numberOfScreenedOutRules;
+		numberOfSharedSearches += rangeTransformer.numberOfSharedSearches;
+		numberOfDiscardedProducts += rangeTransformer.numberOfDiscardedProducts;
+		numberOfPrunedRules += rangeTransformer.numberOfPrunedRules;
+		numberOfPrunedMappings += rangeTransformer.numberOfPrunedMappings;
+	}
 
-		return allProducts; 
+	/**
+	 * @return the number of reaction rules that were skipped by the screen, without substructure search, in all calls to transform
+	 */
+	public int getNumberOfScreenedOutRules() {
+		return numberOfScreenedOutRules;
+	}
+
+	/**
+	 * @return the number of reaction rules that reused the mappings of a reaction rule with the same reactant query, in all calls to transform
+	 */
+	public int getNumberOfSharedSearches() {
+		return numberOfSharedSearches;
+	}
+
+	/**
+	 * @return the number of products that were not built because their priority score is below the minimum, in all calls to transform
+	 */
+	public int getNumberOfDiscardedProducts() {
+		return numberOfDiscardedProducts;
 	}
 
 	private void redetectAromaticity(final IAtomContainer molecule) {
@@ -193,110 +427,14 @@ public class Transformer {
 
 	private Transformations[] selectAppropriateReactionRules() {
 		
-		Transformations[] reactionRules = null;
-		
-		switch (testParameters.getPhase()) {
-        case PHASE_1:
-        		if (TestParameters.useSygmaRulesOnly()) {
-                reactionRules = SyGMaTransformationsPhaseI.values();
-        		} else {
-        			reactionRules = combinePhase1Rules(); 
-        		}
-            break;
-        case PHASE_2:  	
-        		if (TestParameters.useSygmaRulesOnly()) {
-            		reactionRules = SyGMaTransformationsPhaseII.values(); 
-        		} else {
-        			reactionRules = combinePhase2Rules();
-        		}
-	        break;
-        case PHASES_1_AND_2:
-        		reactionRules = combineAllRules();
-        		break;
-        case UGT:
-        		reactionRules = TransformationsUGT.values();
-        		break;
-        case GST:
-    			reactionRules = TransformationsGST.values();
-    			break;
-        case SULT:
-    			reactionRules = TransformationsSULT.values();
-    			break;
-        case NAT:
-    			reactionRules = TransformationsNAT.values();
-    			break;
-        case MT:
-    			reactionRules = TransformationsMT.values();
-    			break;
-        case OTHER_PHASE2:
-    			reactionRules = TransformationsOtherPhaseII.values();
-    			break;
-	    default:
-	    		logger.error("Invalid phase specification. Correct reaction rule set cannot be determined.", testParameters.getPhase());
+		Transformations[] reactionRules = ReactionRuleRegistry.getReactionRules(phase);
+		
+		if (reactionRules == null) {
+	    		logger.error("Invalid phase specification. Correct reaction rule set cannot be determined.", phase);
 	    		System.exit(1);
-	    		break;
 		}
 		return reactionRules;
 	}
-
-	private Transformations[] combinePhase1Rules() {
-		
-		int lenA = SyGMaTransformationsPhaseI.values().length;
-		int lenB = GLORYTransformations.values().length;
-     	
-		Transformations[] reactionRules = (Transformations[]) Array.newInstance(Transformations.class, lenA + lenB);
-         System.arraycopy(SyGMaTransformationsPhaseI.values(), 0, reactionRules, 0, lenA);
-         System.arraycopy(GLORYTransformations.values(), 0, reactionRules, lenA, lenB);
-		return reactionRules;
-	}
-
-	private Transformations[] combinePhase2Rules() {
-		
-		int len1 = TransformationsGST.values().length;
-		int len2 = TransformationsMT.values().length;
-		int len3 = TransformationsNAT.values().length;
-		int len4 = TransformationsOtherPhaseII.values().length;
-		int len5 = TransformationsSULT.values().length;
-		int len6 = TransformationsUGT.values().length;
-
-     	
-		Transformations[] reactionRules = (Transformations[]) Array.newInstance(Transformations.class, len1 + len2 + len3 + len4 + len5 + len6);
-         System.arraycopy(TransformationsGST.values(), 0, reactionRules, 0, len1);
-         System.arraycopy(TransformationsMT.values(), 0, reactionRules, len1, len2);
-         System.arraycopy(TransformationsNAT.values(), 0, reactionRules, len1 + len2, len3);
-         System.arraycopy(TransformationsOtherPhaseII.values(), 0, reactionRules, len1 + len2 + len3, len4);
-         System.arraycopy(TransformationsSULT.values(), 0, reactionRules, len1 + len2 + len3 + len4, len5);
-         System.arraycopy(TransformationsUGT.values(), 0, reactionRules, len1 + len2 + len3 + len4 + len5, len6);
-		return reactionRules;
-	}
-	
-	
-	private Transformations[] combineAllRules() {
-		
-		// phase 2
-		int len1 = TransformationsGST.values().length;
-		int len2 = TransformationsMT.values().length;
-		int len3 = TransformationsNAT.values().length;
-		int len4 = TransformationsOtherPhaseII.values().length;
-		int len5 = TransformationsSULT.values().length;
-		int len6 = TransformationsUGT.values().length;
-
-		// phase 1
-		int lenA = SyGMaTransformationsPhaseI.values().length;
-		int lenB = GLORYTransformations.values().length;
-
-		Transformations[] reactionRules = (Transformations[]) Array.newInstance(Transformations.class, len1 + len2 + len3 + len4 + len5 + len6 + lenA + lenB);
-		System.arraycopy(TransformationsGST.values(), 0, reactionRules, 0, len1);
-		System.arraycopy(TransformationsMT.values(), 0, reactionRules, len1, len2);
-		System.arraycopy(TransformationsNAT.values(), 0, reactionRules, len1 + len2, len3);
-		System.arraycopy(TransformationsOtherPhaseII.values(), 0, reactionRules, len1 + len2 + len3, len4);
-		System.arraycopy(TransformationsSULT.values(), 0, reactionRules, len1 + len2 + len3 + len4, len5);
-		System.arraycopy(TransformationsUGT.values(), 0, reactionRules, len1 + len2 + len3 + len4 + len5, len6);
-		System.arraycopy(SyGMaTransformationsPhaseI.values(), 0, reactionRules, len1 + len2 + len3 + len4 + len5 + len6, lenA);
-		System.arraycopy(GLORYTransformations.values(), 0, reactionRules, len1 + len2 + len3 + len4 + len5 + len6 + lenA, lenB);
-
-		return reactionRules;
-	}
 	
 	
 	public IAtomContainerSet performTransformationFromSmiles(String smiles, String smirks) { 
@@ -324,16 +462,39 @@ public class Transformer {
 	}
 
 
-	private void transformWithRankingPrep(final SMIRKSReaction transformation, final SMIRKSManager smrkMan, Set<PredictedMolecule> allProducts, 
-			final Transformations smirks, IAtomContainer product, final String parentID, final String parentInchi) {
+	private void transformWithRankingPrep(final SMIRKSReaction transformation, final SMIRKSManager smrkMan, MetaboliteAccumulator allProducts, 
+			final Transformations smirks, final TransformationContext context) {
 		
-		EquivalenceTester eqTester = prepareToApplyTransformation(transformation, smrkMan, product);
-
-		List<List<IAtom>> allMappings = smrkMan.getAllMappings(product);  
-		if (allMappings != null && !allMappings.isEmpty()) {
+		IAtomContainer product = context.getTarget();
+		
+		// reaction rules with the same reactant query share the result of the substructure search
+		String reactantQuery = ReactionRuleRegistry.getReactantQuery(smirks);
+		List<List<IAtom>> allMappings = context.takeMappings(reactantQuery);
+		if (allMappings == null) {
+			
+			EquivalenceTester eqTester = prepareToApplyTransformation(transformation, smrkMan, context);
+
+			allMappings = smrkMan.getAllMappings(product);  
+			if (allMappings == null) {
+				allMappings = Collections.emptyList();
+			} else if (!allMappings.isEmpty()) {
+				allMappings = filterEquivalentMappingsIfSpecified(smrkMan, product, eqTester, allMappings);
+				if (testParameters.useOneMappingPerHydrogenSite()) {
+					allMappings = collapseHydrogenSiteMappings(allMappings, context);
+				}
+				if (testParameters.collapseSymmetricMappings()) {
+					allMappings = collapseSymmetricMappings(allMappings, context);
+				}
+			}
+			context.putMappings(reactantQuery, allMappings);
+			
+		} else {
+			numberOfSharedSearches ++;
+		}
+		
+		if (!allMappings.isEmpty()) {
 
-			allMappings = filterEquivalentMappingsIfSpecified(smrkMan, product, eqTester, allMappings);
-			transformAndScoreForAllMappings(transformation, smrkMan, allProducts, smirks, product, allMappings, parentID, parentInchi);
+			transformAndScoreForAllMappings(transformation, smrkMan, allProducts, smirks, product, allMappings, context.getParentID(), context.getParentKey());
 
 		} else {
 			logger.debug(THERE_IS_NO_MAPPING_MESSAGE, smirks.getName());
@@ -343,12 +504,23 @@ public class Transformer {
 	}
 
 
-	private void transformAndScoreForAllMappings(SMIRKSReaction transformation, final SMIRKSManager smrkMan, Set<PredictedMolecule> allProducts, 
-			Transformations smirks, IAtomContainer product, List<List<IAtom>> allMappings, final String parentID, final String parentInchi) { 
+	private void transformAndScoreForAllMappings(SMIRKSReaction transformation, final SMIRKSManager smrkMan, MetaboliteAccumulator allProducts, 
+			Transformations smirks, IAtomContainer product, List<List<IAtom>> allMappings, final String parentID, final String parentKey) { 
 
 		for (List<IAtom> mapping : allMappings) {
 
 			Double maxSoMProbability = getMaxSoMProbabilityInMapping(mapping);  // get the maximum SoM probability in the mapping
+			
+			// the priority score is known before the product is built, so products below the minimum only cost the mapping
+			if (smirks.getPriorityLevel().getFactor() * maxSoMProbability < testParameters.getMinPriorityScore()) {
+				numberOfDiscardedProducts ++;
+				continue;
+			}
+			
+			if (cannotMakeTopK(smirks, maxSoMProbability, allProducts)) { // never true if all metabolites are needed
+				numberOfPrunedMappings ++;
+				continue;
+			}
 
 			IAtomContainer newProduct = doTransformationAndProcessProduct(transformation, smirks.getName(), smrkMan, product, mapping);
 			
@@ -377,7 +549,7 @@ public class Transformer {
 			calculateAndSetPriorityScore(maxSoMProbability, newProduct, smirks);  // calculate prediction score and add to product as property
 
 			// add product to set if not already there or if this prediction has a higher prediction score than the same product that is already in the set
-			addProductToSetIfNotAlreadyIn(allProducts, newProduct, parentInchi);
+			addProductToSetIfNotAlreadyIn(allProducts, newProduct, parentKey);
 		}
 	}
 	
@@ -558,14 +730,129 @@ public class Transformer {
 	}
 
 
-	@SuppressWarnings("static-access")
-	private EquivalenceTester prepareToApplyTransformation(SMIRKSReaction transformation, final SMIRKSManager smrkMan, IAtomContainer product) {
+	/**
+	 * @param maxSoMProbability upper bound of the SoM probability of the mapping(s)
+	 * @return true if a product of the reaction rule cannot be ranked within the top k metabolites, 
+	 * because its priority score is below the lowest priority score of the top k so far (taking ties into account)
+	 */
+	private boolean cannotMakeTopK(Transformations smirks, double maxSoMProbability, MetaboliteAccumulator allProducts) {
+		
+		double maxPriorityScore = smirks.getPriorityLevel().getFactor() * maxSoMProbability;
+		return maxPriorityScore < allProducts.getLowestTopKScore() - PredictionHandler.THRESHOLD;
+	}
+
+
+	/**
+	 * Keeps one mapping per heavy-atom site: mappings that map the same heavy atoms and only differ in which of the 
+	 * hydrogens of a heavy atom are mapped are collapsed to the first of them (e.g., the three hydrogens of a methyl group 
+	 * for aliphatic hydroxylation). The hydrogens of the same heavy atom can always be exchanged for each other, 
+	 * also if the parent has stereo elements, and the SoM probability only depends on the heavy atoms. 
+	 * Therefore, the products and priority scores are the same as if all mappings were transformed.
+	 * The order of the remaining mappings is kept.
+	 */
+	private List<List<IAtom>> collapseHydrogenSiteMappings(List<List<IAtom>> allMappings, final TransformationContext context) {
+		
+		if (allMappings.size() < 2) {
+			return allMappings;
+		}
+		Map<IAtom, IAtom> heavyAtomOfHydrogen = context.getHeavyAtomOfHydrogen();
+		
+		List<List<IAtom>> representatives = new ArrayList<>();
+		Set<List<IAtom>> sites = new HashSet<>();
+		
+		for (List<IAtom> mapping : allMappings) {
+			
+			List<IAtom> site = new ArrayList<>(mapping.size()); // hydrogens are replaced by the heavy atom they are bonded to
+			for (IAtom atom : mapping) {
+				IAtom heavyAtom = heavyAtomOfHydrogen.get(atom);
+				site.add(heavyAtom == null ? atom : heavyAtom);
+			}
+			if (sites.add(site)) {
+				representatives.add(mapping);
+			}
+		}
+		
+		logger.debug(NUMBER_OF_COLLAPSED_HYDROGEN_MAPPINGS, allMappings.size() - representatives.size(), allMappings.size());
+		
+		return representatives;
+	}
 
-		setFlagsForSMIRKSManager(smrkMan);
 
-		// VERY IMPORTANT TO IGNORE/SUPPRESS THE JAVA WARNING FOR THE FOLLOWING LINE! Must get the specific SmartsParser for this instance of the SMIRKSManager!
-		smrkMan.getSmartsParser().prepareTargetForSMARTSSearch(transformation.reactantFlags, product);  
+	/**
+	 * Collapses mappings that are mapped onto each other by an automorphism of the parent, position by position, 
+	 * because they give the same product (e.g., the two ortho positions of a para-substituted phenyl ring or 
+	 * the three hydrogens of a methyl group). 
+	 * Mappings can only be equivalent if they map each query atom onto an atom of the same symmetry class, so only those
+	 * are compared by their canonical form (see TransformationContext.getCanonicalFormOfMapping), which confirms the automorphism.
+	 * Of each group of equivalent mappings, the one with the highest SoM probability is kept, 
+	 * so the product gets the same priority score as if all mappings were transformed.
+	 * The order of the remaining mappings is kept.
+	 */
+	private List<List<IAtom>> collapseSymmetricMappings(List<List<IAtom>> allMappings, final TransformationContext context) {
+		
+		if (allMappings.size() < 2) {
+			return allMappings;
+		}
+		Map<IAtom, Long> symmetryClasses = context.getSymmetryClasses();
+		if (symmetryClasses == null) {
+			return allMappings;
+		}
+		
+		List<List<IAtom>> representatives = new ArrayList<>();
+		List<Double> maxSoMProbabilities = new ArrayList<>();
+		List<String> canonicalForms = new ArrayList<>(); // null until a mapping with the same symmetry classes is found
+		Map<List<Long>, List<Integer>> indicesOfSymmetryClasses = new HashMap<>();
 		
+		for (List<IAtom> mapping : allMappings) {
+			
+			List<Long> classes = new ArrayList<>(mapping.size());
+			for (IAtom atom : mapping) {
+				classes.add(symmetryClasses.get(atom));
+			}
+			Double maxSoMProbability = getMaxSoMProbabilityInMapping(mapping);
+			
+			List<Integer> candidates = indicesOfSymmetryClasses.computeIfAbsent(classes, key -> new ArrayList<>(1));
+			Integer index = null;
+			String canonicalForm = null;
+			if (!candidates.isEmpty()) {
+				canonicalForm = context.getCanonicalFormOfMapping(mapping);
+				for (Integer candidate : candidates) {
+					if (canonicalForms.get(candidate) == null) {
+						canonicalForms.set(candidate, context.getCanonicalFormOfMapping(representatives.get(candidate)));
+					}
+					if (canonicalForms.get(candidate).equals(canonicalForm)) {
+						index = candidate;
+						break;
+					}
+				}
+			}
+			
+			if (index == null) {
+				candidates.add(representatives.size());
+				representatives.add(mapping);
+				maxSoMProbabilities.add(maxSoMProbability);
+				canonicalForms.add(canonicalForm);
+			} else if (maxSoMProbability > maxSoMProbabilities.get(index)) {
+				representatives.set(index, mapping); // equivalent, so the canonical form stays the same
+				maxSoMProbabilities.set(index, maxSoMProbability);
+			}
+		}
+		
+		logger.debug(NUMBER_OF_COLLAPSED_MAPPINGS, allMappings.size() - representatives.size(), allMappings.size());
+		
+		return representatives;
+	}
+
+
+	private EquivalenceTester prepareToApplyTransformation(SMIRKSReaction transformation, final SMIRKSManager smrkMan, final TransformationContext context) {
+
+		// the flags of the SMIRKSManager are set once in the ReactionRuleRegistry
+
+		// Must get the specific SmartsParser for this instance of the SMIRKSManager!
+		// Only the data that no previous reaction rule needed are calculated for the target.
+		context.prepareTargetForSMARTSSearch(smrkMan.getSmartsParser(), transformation.reactantFlags);  
+		
+		IAtomContainer product = context.getTarget();
 		if (transformation.reactantFlags.hasRecursiveSmarts) {
 			smrkMan.mapRecursiveAtomsAgainstTarget(transformation.reactantRecursiveAtoms, product);
 		}
@@ -576,20 +863,6 @@ public class Transformer {
 	}
 
 
-	private void setFlagsForSMIRKSManager(final SMIRKSManager smrkMan) {
-		smrkMan.setFlagFilterEquivalentMappings(false); // appears based on simple testing to have no effect
-		smrkMan.setFlagClearImplicitHAtomsBeforeResultProcess(true); // recommended (see source code)
-		smrkMan.setFlagClearAromaticityBeforeResultProcess(true); // recommended (see source code)
-		smrkMan.setFlagClearHybridizationBeforeResultProcess(true); // recommended (see source code)
-		smrkMan.setFlagAddImplicitHAtomsOnResultProcess(true);
-		smrkMan.setFlagCheckAromaticityOnResultProcess(true); 
-		smrkMan.setFlagConvertAddedImplicitHToExplicitOnResultProcess(true);
-		smrkMan.setFlagCheckResultStereo(true);
-		smrkMan.setFlagProcessResultStructures(true);
-		smrkMan.setFlagApplyStereoTransformation(true); // this way stereochemistry may be changed by SMIRKS
-	}
-
-
 	private Double getMaxSoMProbabilityInMapping(List<IAtom> mapping) {
 		Double maxSoMProbability = (double) 0;
 		for (IAtom atom : mapping) {
@@ -609,20 +882,21 @@ public class Transformer {
 	}
 
 
-	private void addProductToSetIfNotAlreadyIn(Set<PredictedMolecule> products, final IAtomContainer product, final String parentInchi) {
+	private void addProductToSetIfNotAlreadyIn(MetaboliteAccumulator products, final IAtomContainer product, final String parentKey) {
 		// If the product is already in the set, it is checked whether the priority score is higher or lower 
 		// than the one recorded in the set. If the priority score of the current product is higher, then 
 		// the product in the set is replaced with the current product.
 		// Since the products predicted from transformations may be multicomponent 'molecules', a check for 
 		// multicomponent products is imlemented using SMILES ("." separates components) and all components are considered
 		// individually. 
+		// The products are compared by key (see generateKey), and the InChI is only generated for the distinct metabolites (see addInchis).
 		
-		if (MoleculeManipulator.generateInchiWithoutStereo(product).equals(parentInchi)) {
+		if (generateKey(product).equals(parentKey)) {
 			logger.warn("The parent molecule was predicted as a metabolite. Not including!");
 			return;
 		}
 		
-		PredictedMolecule predicted = MoleculeManipulator.convertIAtomContainerToPredictedMoleculeWithoutStereochemistry(product);
+		PredictedMolecule predicted = MoleculeManipulator.convertIAtomContainerToPredictedMoleculeWithoutInchi(product);  // the components get their own key
 		
 		PredictionHandler ph = new PredictionHandler();
 		Set<PredictedMolecule> predictedComponents = ph.getComponentsOfMoleculeWithoutStereochemistry(testParameters, predicted, product);  // check if multi-component (i.e. "." in SMILES string)
@@ -630,7 +904,8 @@ public class Transformer {
 		for (PredictedMolecule predictedComponent : predictedComponents) {
 
 			// make sure not to include any component that is the same as the parent molecule
-			if (MoleculeManipulator.generateInchiWithoutStereoFromSmiles(predictedComponent.getSmiles()).equals(parentInchi)) {
+			// (the key of the component was generated from the product, so its SMILES does not have to be parsed again)
+			if (MetaboliteAccumulator.getKey(predictedComponent).equals(parentKey)) {
 				logger.warn("The parent molecule was predicted as one component of a metabolite. Not including!");
 				continue;
 			} 
@@ -640,10 +915,10 @@ public class Transformer {
 			if (duplicateOverride) { //special case of redoing phase 2 predictions using the general P2 model
 				
 				logger.debug("only adding prediction if not in set");
-				ph.addPredictedMoleculeIfNotInSet(products, predictedComponent);
+				products.addIfNotPresent(predictedComponent);
 				
 			} else { //normal usage
-				ph.addPredictedMoleculeIfNotInSetOrHasHigherScore(products, predictedComponent);
+				products.addIfNotPresentOrHasHigherScore(predictedComponent);
 			}
 		}
 	}
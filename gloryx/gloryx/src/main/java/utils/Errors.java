@@ -47,7 +47,7 @@ public enum Errors {
 
     
     
-    INPUT_FILE_FORMAT ("The input file must be an SD file with the ending \".sdf\"."),
+    INPUT_FILE_FORMAT ("The input file must be an SD file with the ending \".sdf\" or a SMILES file with the ending \".smi\"."),
 
     INPUT_SD_FILE_BROKEN ("The input SD file could not be read properly and may be corrupted."),
 
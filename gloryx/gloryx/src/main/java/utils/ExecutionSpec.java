@@ -0,0 +1,66 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package main.java.utils;
+
+/**
+ * Describes one pass of the metabolite prediction for a parent molecule: the FAME 3 model that predicts the SoMs 
+ * and the phase that determines the reaction rules used with that model.
+ * <p>
+ * Each prediction task gets its own execution specs instead of reading the phase from the shared TestParameters, 
+ * so the passes of all models for all molecules can run concurrently. Execution specs are immutable.
+ * 
+ * @author Christina de Bruyn Kops
+ *
+ */
+public final class ExecutionSpec {
+	
+	private final String fameModelName;
+	private final Phase phase; // determines the reaction rules that are used
+	private final Boolean rerun; // true if rerunning with the generalized phase 2 model because an individual phase 2 model failed
+	
+	
+	public ExecutionSpec(String fameModelName, Phase phase, Boolean rerun) {
+		this.fameModelName = fameModelName;
+		this.phase = phase;
+		this.rerun = rerun;
+	}
+	
+	
+	public String getFameModelName() {
+		return fameModelName;
+	}
+	
+	public Phase getPhase() {
+		return phase;
+	}
+	
+	public Boolean isRerun() {
+		return rerun;
+	}
+	
+	@Override
+	public String toString() {
+		return fameModelName + " (" + phase.name() + (rerun ? ", rerun" : "") + ")";
+	}
+
+}
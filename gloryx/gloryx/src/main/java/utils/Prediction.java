@@ -52,6 +52,10 @@ public class Prediction {
 	
 	private Set<Errors> errors = new HashSet<>();
 	
+	private int numberOfScreenedOutRules = 0; // reaction rules skipped without substructure search, over all models
+	private int numberOfDiscardedProducts = 0; // products not built because their priority score is below the minimum, over all models
+	private long numberOfSmilesParses = 0; // SMILES parsed while predicting the metabolites (see MoleculeManipulator.getNumberOfSmilesParsesInThread), over all models
+	
 	
 	public Prediction(ParentMolecule parentMolecule, Set<PredictedMolecule> predictedMetabolites) {
 		this.parentMolecule = parentMolecule;
@@ -88,6 +92,27 @@ public class Prediction {
 		return this.errors;
 	}
 	
+	public int getNumberOfScreenedOutRules() {
+		return numberOfScreenedOutRules;
+	}
+	public void addScreenedOutRules(int numberOfRules) {
+		this.numberOfScreenedOutRules += numberOfRules;
+	}
+	
+	public int getNumberOfDiscardedProducts() {
+		return numberOfDiscardedProducts;
+	}
+	public void addDiscardedProducts(int numberOfProducts) {
+		this.numberOfDiscardedProducts += numberOfProducts;
+	}
+	
+	public long getNumberOfSmilesParses() {
+		return numberOfSmilesParses;
+	}
+	public void addSmilesParses(long numberOfParses) {
+		this.numberOfSmilesParses += numberOfParses;
+	}
+	
 	
 	public ParentMolecule getParentMolecule() {
 		return parentMolecule;
@@ -108,6 +133,15 @@ public class Prediction {
 		return rankedPredictedMetabolites;
 	}
 	
+	/**
+	 * Drops the predicted metabolites, e.g. once they have been written to the output file, so that they do not stay in memory 
+	 * until all input molecules are done. The parent molecule, the errors and the counts are kept.
+	 */
+	public void releaseMetabolites() {
+		this.predictedMetabolites = null;
+		this.rankedPredictedMetabolites = null;
+	}
+	
 	// adders
 	
 	/**
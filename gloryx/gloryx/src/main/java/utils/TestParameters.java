@@ -43,10 +43,22 @@ public class TestParameters {
 	
 	private static final Boolean USE_SYGMA_RULES_ONLY = false;
 	
+	private static final Boolean PARALLELIZE_OVER_REACTION_RULES = true; // if true, the reaction rules of one parent molecule are applied in parallel if there are fewer parent molecules than processors
+	
 	private static final int BATCH_SIZE = 1000; // TODO should be 1000 for distribution
 	
 	
 	private Boolean predictAllMetabolism = false;  
+	
+	private double minPriorityScore = 0; // if > 0, products with a lower priority score are discarded before they are built
+	
+	private int topK = 0; // if > 0, only the metabolites ranked within the top k are kept for each parent molecule
+	
+	private Boolean oneMappingPerHydrogenSite = true; // if true, mappings that only differ in which hydrogen of the same heavy atom is mapped are collapsed (see Transformer)
+	
+	private Boolean collapseSymmetricMappings = true; // if true, mappings that are exchanged by a symmetry of the parent molecule are collapsed (see Transformer)
+	
+	private Boolean useStructureKey = true; // if true, the products of a parent molecule are collected by structure key and the InChI is only generated for the distinct metabolites (see Transformer)
 
 	private int numThreads;
 
@@ -80,7 +92,8 @@ public class TestParameters {
 	public enum InputFormat {
 		DATABASE,  // use all compounds from Metabolite or DrugBank (as specified by Reference) as parent compounds for the prediction
 		INDIVIDUAL_SMILES,  // use individual SMILES specified by user or hard-coded
-		SDFILE
+		SDFILE,
+		SMILES_FILE  // one SMILES per line, optionally followed by the name of the molecule
 	}
 	private final InputFormat inputFormat;
 	
@@ -149,6 +162,10 @@ public class TestParameters {
 		return (inputFormat == InputFormat.INDIVIDUAL_SMILES);
 	}
 	
+	public Boolean inputIsSmilesFile() {
+		return (inputFormat == InputFormat.SMILES_FILE);
+	}
+	
 	public Boolean useSoMsAsHardFilter() {
 		return (useSoMsAsHardFilter == UseSoMsAsHardFilter.YES);
 	}
@@ -193,6 +210,30 @@ public class TestParameters {
 		return this.predictAllMetabolism;
 	}
 	
+	public double getMinPriorityScore() {
+		return this.minPriorityScore;
+	}
+	
+	public int getTopK() {
+		return this.topK;
+	}
+	
+	public Boolean keepTopKOnly() {
+		return this.topK > 0;
+	}
+	
+	public Boolean useOneMappingPerHydrogenSite() {
+		return this.oneMappingPerHydrogenSite;
+	}
+	
+	public Boolean collapseSymmetricMappings() {
+		return this.collapseSymmetricMappings;
+	}
+	
+	public Boolean useStructureKey() { // not if keeping the top k only, because metabolites with the same InChI but different structure keys would count twice for the top k
+		return this.useStructureKey && !keepTopKOnly();
+	}
+	
 	public int getNumThreads() {
 		return this.numThreads;
 	}
@@ -209,6 +250,10 @@ public class TestParameters {
 		return USE_SYGMA_RULES_ONLY;
 	}
 	
+	public static Boolean parallelizeOverReactionRules() {
+		return PARALLELIZE_OVER_REACTION_RULES;
+	}
+	
 	public static int getBatchSize() {
 		return BATCH_SIZE;
 	}
@@ -219,6 +264,26 @@ public class TestParameters {
 	public void setPhase(Phase phase) {
 		this.phase = phase;
 	}
+	
+	public void setMinPriorityScore(double minPriorityScore) {
+		this.minPriorityScore = minPriorityScore;
+	}
+	
+	public void setTopK(int topK) {
+		this.topK = topK;
+	}
+	
+	public void setOneMappingPerHydrogenSite(Boolean oneMappingPerHydrogenSite) {
+		this.oneMappingPerHydrogenSite = oneMappingPerHydrogenSite;
+	}
+	
+	public void setCollapseSymmetricMappings(Boolean collapseSymmetricMappings) {
+		this.collapseSymmetricMappings = collapseSymmetricMappings;
+	}
+	
+	public void setUseStructureKey(Boolean useStructureKey) {
+		this.useStructureKey = useStructureKey;
+	}
 
 
 
@@ -0,0 +1,270 @@
+/* Copyright (C) 2020  Christina de Bruyn Kops <christinadebk@gmail.com>
+ 
+    This file is part of GLORYx.
+
+    GLORYx is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    All we ask is that proper credit is given for our work, which includes 
+    - but is not limited to - adding the above copyright notice to the beginning 
+    of your source code files, and to any copyright notice that you may distribute 
+    with programs based on this work.
+
+    GLORYx is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with GLORYx.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package main.java.utils.analysis;
+
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.SDFWriter;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import main.java.utils.Filenames;
+import main.java.utils.Prediction;
+import main.java.utils.TestParameters;
+
+/**
+ * Writes the predictions to the output SD file(s) while the predictions are still being made, 
+ * so that the output does not have to wait for all input molecules and the predictions do not all have to be kept in memory.
+ * <p>
+ * The predictions can be handed over in any order, but are written in the order of the input molecules. 
+ * Predictions that are handed over before all previous input molecules are done are held in a reorder buffer. 
+ * The buffer is bounded: a thread handing over a prediction that is too far ahead waits until the earlier 
+ * predictions have been written. Therefore the predictions must be started in input order, e.g. by submitting 
+ * the input molecules in order to a first-in, first-out executor, so that the next prediction to be written never waits.
+ * <p>
+ * The output is the same as that of {@link ResultsWriter#writePredictionsToSdf(String, Map)} or, 
+ * for more than {@link TestParameters#getBatchSize()} input molecules, 
+ * {@link ResultsWriter#writeBatchedPredictionsToSdf(String, Map)}. Since the number of input molecules is not known 
+ * in advance, the predictions are written to the single output file until the first input molecule of the 
+ * second batch arrives; the single output file then becomes the output file of the first batch.
+ * <p>
+ * If the input is an SD file, the parent molecules are written as they are in the input file. Since the predictions 
+ * are written in input order, the input file is read once alongside the output instead of once per parent molecule.
+ * 
+ * @author Christina de Bruyn Kops
+ *
+ */
+public class OrderedSdfWriter implements Closeable {
+	
+	private static final String ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES = "Error writing SD file of predicted metabolites.";
+	private static final String NULL_PREDICTION = "Null prediction for input molecule {}, so nothing is written for this molecule.";
+	private static final String ERROR_WRITING_PREDICTION = "Error writing the predictions for input molecule {}.";
+	private static final String ERROR_READING_INPUT_SD_FILE = "Error reading input molecule {} from the input SD file.";
+	
+	private static final Logger logger = LoggerFactory.getLogger(OrderedSdfWriter.class.getName());
+	
+	private final ResultsWriter resultsWriter;
+	private final TestParameters testParameters;
+	private final String outputFilename;
+	private final int reorderBufferSize;
+	private final Boolean releaseWrittenPredictions; // drop the metabolites of a prediction once it has been written
+	
+	private final Map<Integer, Prediction> reorderBuffer = new HashMap<>(); // input number -> prediction that cannot be written yet
+	private final List<String> batchOutputFiles = new ArrayList<>();
+	private int nextToWrite = 1; // input number, starting at 1
+	private Boolean batched = false; // true once there are more input molecules than fit in one batch
+	private int currentBatch = 0;
+	private SDFWriter sdfWriter;
+	private int numWithPredictions = 0;
+	private IteratingSDFReader inputReader; // only if the input is an SD file
+	private int numberOfInputMoleculesRead = 0;
+	
+	
+	/**
+	 * @param reorderBufferSize maximum number of predictions that are held because an earlier input molecule is not done yet
+	 * @param releaseWrittenPredictions true if the predictions are not needed anymore after writing (see {@link Prediction#releaseMetabolites()})
+	 * @throws IOException if the output file cannot be opened
+	 */
+	public OrderedSdfWriter(TestParameters testParameters, Filenames filenames, int reorderBufferSize, 
+			Boolean releaseWrittenPredictions) throws IOException {
+		
+		this.resultsWriter = new ResultsWriter(testParameters, filenames);
+		this.testParameters = testParameters;
+		this.outputFilename = filenames.getOutputSDFilename();
+		this.reorderBufferSize = Math.max(1, reorderBufferSize);
+		this.releaseWrittenPredictions = releaseWrittenPredictions;
+		
+		logger.debug("writing to sdf {}", outputFilename);
+		sdfWriter = new SDFWriter(new FileWriter(outputFilename));
+		if (testParameters.inputIsSdf()) {
+			inputReader = resultsWriter.openInputSdf();
+		}
+	}
+	
+	
+	/**
+	 * Hands over the prediction for an input molecule. The prediction is written together with all following 
+	 * predictions that have already been handed over, as soon as the predictions for all previous input molecules are written.
+	 * 
+	 * @param molNum input number, starting at 1
+	 * @param prediction the ranked prediction, or null if nothing could be predicted
+	 * @throws InterruptedException if interrupted while waiting for space in the reorder buffer
+	 */
+	public synchronized void write(int molNum, Prediction prediction) throws InterruptedException {
+		
+		while (molNum >= nextToWrite + reorderBufferSize) {
+			wait();
+		}
+		reorderBuffer.put(molNum, prediction);
+		
+		while (reorderBuffer.containsKey(nextToWrite)) {
+			
+			Prediction p = reorderBuffer.remove(nextToWrite);
+			try {
+				IAtomContainer inputParent = readInputMolecule(nextToWrite);
+				if (p != null) {
+					writeNext(p, inputParent);
+				} else {
+					logger.error(NULL_PREDICTION, nextToWrite);
+				}
+			} catch (RuntimeException e) {
+				logger.error(ERROR_WRITING_PREDICTION, nextToWrite, e);
+			} finally {
+				// a failure for one input molecule must not hold up the following ones
+				nextToWrite ++;
+			}
+		}
+		notifyAll();
+	}
+	
+	
+	/**
+	 * @return number of input molecules for which metabolites were predicted and written so far
+	 */
+	public synchronized int getNumberOfInputMoleculesWithPredictions() {
+		return numWithPredictions;
+	}
+	
+	
+	/**
+	 * Closes the output file. In the web version, the batched output files are zipped.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		
+		if (!reorderBuffer.isEmpty()) {
+			logger.error("{} predictions were not written because an earlier input molecule was never handed over.", reorderBuffer.size());
+		}
+		if (sdfWriter != null) {
+			sdfWriter.close();
+			sdfWriter = null;
+		}
+		closeInputReader();
+		if (batched && testParameters.isWebVersion()) {
+			//  zip all files if possible, to original outputFilename but ending with .zip
+			resultsWriter.zipBatchedOutputSdfFiles(outputFilename, batchOutputFiles);
+			
+	        // delete individual files if entire zip was made successfully (rather than within the zipBatchedOutputSdfFiles method)
+			resultsWriter.deleteBatchedOutputSdfFiles(batchOutputFiles);
+		}
+	}
+	
+	
+	/**
+	 * Reads the input SD file up to the given input molecule. Input molecules are read in the same order 
+	 * as they are written, so each entry of the input file is only read once.
+	 * 
+	 * @param molNum input number, starting at 1
+	 * @return the input molecule, or null if the input is not an SD file or the molecule cannot be read, 
+	 * in which case the parent molecule is looked up by the {@link ResultsWriter}
+	 */
+	private IAtomContainer readInputMolecule(int molNum) {
+		
+		if (inputReader == null) {
+			return null;
+		}
+		IAtomContainer inputMolecule = null;
+		try {
+			while (numberOfInputMoleculesRead < molNum && inputReader.hasNext()) {
+				inputMolecule = inputReader.next();
+				numberOfInputMoleculesRead ++;
+			}
+		} catch (RuntimeException e) {
+			// the position in the input file is not known anymore, so the remaining parent molecules are looked up by the ResultsWriter
+			logger.error(ERROR_READING_INPUT_SD_FILE, molNum, e);
+			closeInputReader();
+			return null;
+		}
+		return numberOfInputMoleculesRead == molNum ? inputMolecule : null;
+	}
+	
+	
+	private void closeInputReader() {
+		if (inputReader == null) {
+			return;
+		}
+		try {
+			inputReader.close();
+		} catch (IOException e) {
+			logger.error(ERROR_READING_INPUT_SD_FILE, numberOfInputMoleculesRead, e);
+		}
+		inputReader = null;
+	}
+	
+	
+	private void writeNext(Prediction p, IAtomContainer inputParent) {
+		
+		try {
+			int batchNumber = (nextToWrite - 1) / TestParameters.getBatchSize();
+			if (batchNumber != currentBatch) {
+				openBatchOutputFile(batchNumber);
+			}
+			numWithPredictions = resultsWriter.getAndWriteRankedPredictions(numWithPredictions, sdfWriter, p, inputParent);
+			
+		} catch (IOException e) {
+			logger.error(ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES, e);
+		}
+		
+		if (releaseWrittenPredictions) {
+			p.releaseMetabolites();
+		}
+	}
+	
+	
+	private void openBatchOutputFile(int batchNumber) throws IOException {
+		
+		sdfWriter.close();
+		
+		if (!batched) {
+			// more input molecules than fit in one batch, so the single output file becomes the output file of the first batch
+			String firstBatchOutputFilename = getBatchOutputFilename(0);
+			Files.move(Paths.get(outputFilename), Paths.get(firstBatchOutputFilename), StandardCopyOption.REPLACE_EXISTING);
+			batchOutputFiles.add(firstBatchOutputFilename);
+			batched = true;
+		}
+		
+		String batchOutputFilename = getBatchOutputFilename(batchNumber);
+		batchOutputFiles.add(batchOutputFilename);
+		
+		sdfWriter = new SDFWriter(new FileWriter(batchOutputFilename));
+		currentBatch = batchNumber;
+	}
+	
+	
+	private String getBatchOutputFilename(int batchNumber) {
+		return outputFilename.substring(0, outputFilename.length()-4).concat("_").concat(Integer.toString(batchNumber)).concat(".sdf");
+	}
+
+}
@@ -29,6 +29,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -76,6 +77,15 @@ public class ResultsWriter {
 	private static final String ENDLINE = "\n";
 	private static final String NA = "N/A";
 	private static final String ERROR_READING_SDF_FILE = "Error reading SD file. Filename: {}. Exiting.";
+	
+	// names of the properties written to the output SD file
+	public static final String PROPERTY_RANK = "Rank";
+	public static final String PROPERTY_PRIORITY_SCORE = "Priority score";
+	public static final String PROPERTY_REACTION_TYPE = "Reaction type";
+	public static final String PROPERTY_PARENT_ID = "Parent ID";
+	public static final String PROPERTY_PARENT_INCHI = "Parent InChI";
+	public static final String PROPERTY_PARENT_SMILES = "Parent SMILES";
+	public static final String PROPERTY_SMILES = "SMILES";
 
 	
 	private static final Logger logger = LoggerFactory.getLogger(ResultsWriter.class.getName());
@@ -96,10 +106,10 @@ public class ResultsWriter {
 	 * @param p Prediction object containing information about the parent molecule
 	 * @param predictions the predicted metabolites
 	 */
-	private void writeAllToSdf(SDFWriter sdfWriter, Prediction p, List<PredictedMolecule> predictions) {
+	private void writeAllToSdf(SDFWriter sdfWriter, Prediction p, List<PredictedMolecule> predictions, IAtomContainer inputParent) {
 		
 		// first write the parent molecule
-		writeParent(sdfWriter, p);
+		writeParent(sdfWriter, p, inputParent);
 		
 		// now write the predicted metabolites
 		int counter = 1;
@@ -111,19 +121,36 @@ public class ResultsWriter {
 		}
 	}
 
-	private void writeParent(SDFWriter sdfWriter, Prediction p) {
+	/**
+	 * Opens the input SD file to read the parent molecules as they were given, see {@link OrderedSdfWriter}.
+	 * 
+	 * @throws FileNotFoundException
+	 */
+	IteratingSDFReader openInputSdf() throws FileNotFoundException {
+		return new IteratingSDFReader(new FileInputStream(new File(
+				filenames.getUserInputFilename())), DefaultChemObjectBuilder.getInstance(), 
+				false); // this boolean indicates whether or not to continue reading the file if a 
+						// null or broken SD entry occurs - however, if set to true, any broken molecules 
+						// just disappear (hasNext not true for them) so the numbering of the input 
+						// molecules would be all messed up. Therefore this value is set to false for now. //TODO same as in DatasetLoader
+	}
+
+	/**
+	 * @param inputParent the parent molecule as read from the input SD file, or null to look it up in the input SD file
+	 */
+	private void writeParent(SDFWriter sdfWriter, Prediction p, IAtomContainer inputParent) {
 		
-		if (testParameters.inputIsSdf()) {
+		if (testParameters.inputIsSdf() && inputParent != null) {
+			
+			inputParent.setProperty("ID_GLORYx", Integer.parseInt(p.getParentMolecule().getId()));
+			writeMoleculeToSDF(sdfWriter, p.getParentMolecule().getSmiles(), inputParent);
+			
+		} else if (testParameters.inputIsSdf()) {
 			
 			int molnum = Integer.parseInt(p.getParentMolecule().getId());
 			
 			// this is a time-consuming way to do this...
-			try (IteratingSDFReader reader = new IteratingSDFReader(new FileInputStream(new File(
-					filenames.getUserInputFilename())), DefaultChemObjectBuilder.getInstance(), 
-					false)) { // this boolean indicates whether or not to continue reading the file if a 
-							  // null or broken SD entry occurs - however, if set to true, any broken molecules 
-							  // just disappear (hasNext not true for them) so the numbering of the input 
-							  // molecules would be all messed up. Therefore this value is set to false for now. //TODO same as in DatasetLoader
+			try (IteratingSDFReader reader = openInputSdf()) {
 
 				int counter = 1;
 				while (reader.hasNext()) {
@@ -167,7 +194,7 @@ public class ResultsWriter {
 			if (validPrediction) {
 				try (SDFWriter sdfWriter = new SDFWriter(new FileWriter(outputFilename))){
 
-					writeAllToSdf(sdfWriter, pred, predictions);
+					writeAllToSdf(sdfWriter, pred, predictions, null);
 					
 				} catch (IOException e) {
 					logger.error(ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES, e);
@@ -221,12 +248,9 @@ public class ResultsWriter {
 		logger.debug("writing to sdf {}", outputFilename);
 		
 		int numWithPredictions = 0;
-		try (SDFWriter sdfWriter = new SDFWriter(new FileWriter(outputFilename))){
+		try (FileWriter writer = new FileWriter(outputFilename)){
 			
-			for (Prediction p : allPredictedMolecules.values()) {
-				
-				numWithPredictions = getAndWriteRankedPredictions(numWithPredictions, sdfWriter, p);
-			}
+			numWithPredictions = writePredictionsToSdf(writer, allPredictedMolecules);
 			
 		} catch (IOException e) {
 			logger.error(ERROR_WRITING_SD_FILE_OF_PREDICTED_METABOLITES, e);
@@ -234,6 +258,32 @@ public class ResultsWriter {
 		return numWithPredictions;
 	}
 	
+	/**
+	 * Writes the parent molecules and their ranked predicted metabolites in SDF format to the given writer,
+	 * e.g. so that the server mode can return the SD file in memory instead of writing it to disk.
+	 * The writer is not closed.
+	 * 
+	 * @param writer
+	 * @param allPredictedMolecules
+	 * @return number of input molecules for which metabolites were predicted
+	 * @throws IOException
+	 */
+	public int writePredictionsToSdf(Writer writer, Map<Integer, Prediction> allPredictedMolecules) throws IOException {
+		
+		int numWithPredictions = 0;
+		// SDFWriter uses a BufferedWriter as is, so it can be flushed here without closing the underlying writer
+		BufferedWriter bufferedWriter = new BufferedWriter(writer);
+		SDFWriter sdfWriter = new SDFWriter(bufferedWriter);
+		
+		for (Prediction p : allPredictedMolecules.values()) {
+			
+			numWithPredictions = getAndWriteRankedPredictions(numWithPredictions, sdfWriter, p);
+		}
+		bufferedWriter.flush();
+		
+		return numWithPredictions;
+	}
+	
 	
 	public int writeBatchedPredictionsToSdf(String outputFilename, Map<Integer, Prediction> allPredictedMolecules) throws IOException {
 		// numbering of map starts at 1
@@ -289,33 +339,40 @@ public class ResultsWriter {
 		return numWithPredictions;
 	}
 
-	private int getAndWriteRankedPredictions(int numWithPredictions, SDFWriter sdfWriter, Prediction p) {
+	int getAndWriteRankedPredictions(int numWithPredictions, SDFWriter sdfWriter, Prediction p) {
+		return getAndWriteRankedPredictions(numWithPredictions, sdfWriter, p, null);
+	}
+
+	/**
+	 * @param inputParent the parent molecule as read from the input SD file, or null to look it up in the input SD file
+	 */
+	int getAndWriteRankedPredictions(int numWithPredictions, SDFWriter sdfWriter, Prediction p, IAtomContainer inputParent) {
 		
 		List<PredictedMolecule> predictions = p.getRankedPredictedMetabolites();
 		
 		if (predictions != null && !predictions.isEmpty() && checkPredictionsForInchi(predictions)) {
 			numWithPredictions ++;
 			
-			writeAllToSdf(sdfWriter, p, predictions);
+			writeAllToSdf(sdfWriter, p, predictions, inputParent);
 		} else {
 			// TODO is this a sufficient validity check?
 			if (p.getErrors().contains(Errors.COULD_NOT_PROCESS_INPUT_MOL)) {
 				logger.error("Input molecule could not be processed and so cannot be written to output SDF.");
 			} else {
-				writeParent(sdfWriter, p);
+				writeParent(sdfWriter, p, inputParent);
 			}
 		}
 		return numWithPredictions;
 	}
 
-	private void deleteBatchedOutputSdfFiles(List<String> batchOutputFiles) {
+	void deleteBatchedOutputSdfFiles(List<String> batchOutputFiles) {
 		for (String batchOutputFilename : batchOutputFiles) {
 		    File f = new File(batchOutputFilename);
 		    f.delete();
 		}
 	}
 
-	private void zipBatchedOutputSdfFiles(String outputFilename, List<String> batchOutputFiles) throws FileNotFoundException, IOException {
+	void zipBatchedOutputSdfFiles(String outputFilename, List<String> batchOutputFiles) throws FileNotFoundException, IOException {
 		
 		String outputZip = outputFilename.substring(0, outputFilename.length()-4).concat(".zip");
 		
@@ -360,22 +417,22 @@ public class ResultsWriter {
 		
 		IAtomContainer predictedMetabolite = MoleculeManipulator.generateMoleculeFromSmiles(metabolite.getSmiles());
 		MoleculeManipulator.generate2dCoordinates(predictedMetabolite); // very important!
-		predictedMetabolite.setProperty("Rank", metabolite.getRank());
-		predictedMetabolite.setProperty("Priority score", metabolite.getPriorityScore());
-		predictedMetabolite.setProperty("Reaction type", metabolite.getTransformationName());
+		predictedMetabolite.setProperty(PROPERTY_RANK, metabolite.getRank());
+		predictedMetabolite.setProperty(PROPERTY_PRIORITY_SCORE, metabolite.getPriorityScore());
+		predictedMetabolite.setProperty(PROPERTY_REACTION_TYPE, metabolite.getTransformationName());
 		
 		ParentMolecule parent = prediction.getParentMolecule();
-		predictedMetabolite.setProperty("Parent ID", parent.getId());
+		predictedMetabolite.setProperty(PROPERTY_PARENT_ID, parent.getId());
 		predictedMetabolite.setProperty(CDKConstants.TITLE, parent.getName() + "_metabolite " + Integer.toString(metaboliteNumber));
-		predictedMetabolite.setProperty("Parent InChI", parent.getInchi());
+		predictedMetabolite.setProperty(PROPERTY_PARENT_INCHI, parent.getInchi());
 		
 		// use original input SMILES if the input was in SMILES format
 		if (parent.getOriginalInputSmiles() != null) {
-			predictedMetabolite.setProperty("Parent SMILES",  parent.getOriginalInputSmiles());
+			predictedMetabolite.setProperty(PROPERTY_PARENT_SMILES,  parent.getOriginalInputSmiles());
 		} else {
 			IAtomContainer parentMolecule = MoleculeManipulator.generateMoleculeFromSmiles(parent.getSmiles());
 			String smiles = MoleculeManipulator.generateSmilesWithoutExplicitHydrogens(parentMolecule); // important for readability
-			predictedMetabolite.setProperty("Parent SMILES",  smiles);
+			predictedMetabolite.setProperty(PROPERTY_PARENT_SMILES,  smiles);
 		}
 		
 		return predictedMetabolite;
@@ -395,10 +452,10 @@ public class ResultsWriter {
 		
 		// use original input SMILES if the input was in SMILES format // TODO redundant now
 		if (prediction.getParentMolecule().getOriginalInputSmiles() != null) {
-			parentMolecule.setProperty("SMILES", prediction.getParentMolecule().getOriginalInputSmiles());
+			parentMolecule.setProperty(PROPERTY_SMILES, prediction.getParentMolecule().getOriginalInputSmiles());
 		} else {
 			String smiles = MoleculeManipulator.generateSmilesWithoutExplicitHydrogens(parentMolecule); // important for readability
-			parentMolecule.setProperty("SMILES", smiles);
+			parentMolecule.setProperty(PROPERTY_SMILES, smiles);
 		}
 		
 		parentMolecule.setProperty(CDKConstants.TITLE, prediction.getParentMolecule().getName());
@@ -86,6 +86,8 @@ public class MoleculeManipulator {
 
 	private static final Logger logger = LoggerFactory.getLogger(MoleculeManipulator.class.getName());
 	
+	private static final ThreadLocal<long[]> numberOfSmilesParsesInThread = ThreadLocal.withInitial(() -> new long[1]); // see generateMoleculeFromSmiles
+	
 	
 	// --- molecule size ---
 	
@@ -240,6 +242,25 @@ public class MoleculeManipulator {
 			molecule.setInchi(generateInchiWithoutStereo(atomContainer));
 		}
 		
+		setSmilesAndPropertiesForPredictedMolecule(atomContainer, molecule);
+		
+		return molecule;
+	}
+	
+	
+	public static PredictedMolecule convertIAtomContainerToPredictedMoleculeWithoutInchi(IAtomContainer atomContainer) {
+		// the InChI can be generated later from the SMILES, e.g. only for the distinct predicted metabolites (see Transformer)
+		
+		PredictedMolecule molecule = new PredictedMolecule();
+		
+		setSmilesAndPropertiesForPredictedMolecule(atomContainer, molecule);
+		
+		return molecule;
+	}
+
+
+	private static void setSmilesAndPropertiesForPredictedMolecule(IAtomContainer atomContainer, PredictedMolecule molecule) {
+		
 		molecule.setSmiles(generateSmiles(atomContainer, atomContainer.getProperty(Globals.ID_PROP)));
 		if (molecule.getSmiles().equals(EMPTY_STRING)) {
 			logger.info("Couldn't generate SMILES. Trying to generate SMILES without stereochemistry information.");
@@ -251,8 +272,6 @@ public class MoleculeManipulator {
 		}
 
 		setPropertiesForPredictedMolecule(atomContainer, molecule);
-		
-		return molecule;
 	}
 
 
@@ -369,6 +388,27 @@ public class MoleculeManipulator {
 		return generateSmilesWithoutStereo(molecule, molId);
 	}
 	
+	public static String generateStructureKey(final IAtomContainer molecule) {
+		// Key for the structure without stereochemistry that is much faster to generate than the InChI: the canonical SMILES without stereochemistry.
+		// Unlike the InChI, it does not normalize tautomers or different representations of the same charged group (e.g. nitro groups), 
+		// so molecules with the same InChI can have different keys, but molecules with the same key always have the same InChI.
+		// The mass numbers are included, because the InChI distinguishes isotopes (e.g. deuterated metabolites).
+		
+		// BEWARE: returned key can be null
+		
+		String smiles = EMPTY_STRING;
+		final SmilesGenerator sg = new SmilesGenerator(SmiFlavor.Unique | SmiFlavor.AtomicMass);
+		try {
+			smiles = tryToCreateSmiles(molecule, EMPTY_STRING, smiles, sg);
+		} catch (NullPointerException n) {
+			return null;
+		}
+		if (smiles == null || smiles.isEmpty()) {
+			return null;
+		}
+		return smiles;
+	}
+	
 	public static String generateSmilesWithoutExplicitHydrogens(final IAtomContainer molecule) {
 		// for readability of ouptut files
 
@@ -400,6 +440,7 @@ public class MoleculeManipulator {
 	public static IAtomContainer generateMoleculeFromSmiles(final String smiles) {
 		final SmilesParser sp = new SmilesParser(SilentChemObjectBuilder.getInstance());
 	    IAtomContainer molecule = null;
+	    numberOfSmilesParsesInThread.get()[0] ++;
 		try {
 			molecule = sp.parseSmiles(smiles);
 		} catch (InvalidSmilesException e) {
@@ -409,6 +450,16 @@ public class MoleculeManipulator {
 		return molecule;
 	}
 	
+	/**
+	 * Counts the SMILES parses (see generateMoleculeFromSmiles) of the calling thread, so that the parses for one input molecule 
+	 * can be measured as the difference before and after its prediction.
+	 * 
+	 * @return the number of SMILES parsed in the calling thread so far
+	 */
+	public static long getNumberOfSmilesParsesInThread() {
+		return numberOfSmilesParsesInThread.get()[0];
+	}
+	
 	public static IAtomContainer generateMoleculeFromInchi(final String inchi) {
 		logger.warn("Generating a molecule from InChI! This should only be done as a last resort.");
 		final InChIToStructure intostruct = getInChIToStructureObject(inchi);
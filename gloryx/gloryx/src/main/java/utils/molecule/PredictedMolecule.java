@@ -22,6 +22,7 @@
 
 package main.java.utils.molecule;
 
+import org.openscience.cdk.interfaces.IAtomContainer;
 
 /** 
  * Class to store all relevant molecule information for predicted metabolites in a more memory-efficient way than using IAtomContainers.
@@ -40,6 +41,8 @@ public class PredictedMolecule extends BasicMolecule implements Comparable<Predi
 	private int rank = 0;
 	private String transformationName = "";
 	private Boolean madeSoMCutoff = true;
+	private String structureKey; // only set while the predicted metabolites of a parent molecule are collected (see Transformer)
+	private IAtomContainer atomContainer; // only set together with the structure key, so that the InChI can be generated without parsing the SMILES
 	
 	
 	public static final String PRIORITY_SCORE_PROPERTY = "PriorityScore";
@@ -126,6 +129,14 @@ public class PredictedMolecule extends BasicMolecule implements Comparable<Predi
 		this.parentSmiles = parentSmiles;
 	}
 	
+	public void setStructureKey(String structureKey) {
+		this.structureKey = structureKey;
+	}
+	
+	public void setAtomContainer(IAtomContainer atomContainer) {
+		this.atomContainer = atomContainer;
+	}
+	
 	
 	public Double getPriorityScore() {
 		return this.priorityScore;
@@ -159,5 +170,13 @@ public class PredictedMolecule extends BasicMolecule implements Comparable<Predi
 		return parentSmiles;
 	}
 
+	public String getStructureKey() {
+		return structureKey;
+	}
+
+	public IAtomContainer getAtomContainer() {
+		return atomContainer;
+	}
+
 	
 }